@@ -0,0 +1,76 @@
+package me.tombclarke.imageutils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks finding images in a folder tree
+ *
+ * @author Tom Clarke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscoveryBenchmark {
+
+    @Param({"200"})
+    public int dirs;
+
+    @Param({"100"})
+    public int filesPerDir;
+
+    private File root;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Fixtures.tree(dirs, filesPerDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public List<File> getListOfImages() {
+        List<File> images = new ArrayList<>();
+        ImageUtils.getListOfImages(root, images);
+        return images;
+    }
+
+    @Benchmark
+    public long streamImages() {
+        try (Stream<Path> images = ImageUtils.streamImages(root.toPath())) {
+            return images.count();
+        }
+    }
+
+    @Benchmark
+    public long streamImagesInParallel() {
+        try (Stream<Path> images = ImageUtils.streamImagesInParallel(root.toPath(), Integer.MAX_VALUE, true, 4)) {
+            return images.count();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package me.tombclarke.imageutils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates synthetic images for the benchmarks, so no large test images need to be checked in
+ *
+ * @author Tom Clarke
+ */
+final class Fixtures {
+
+    /**
+     * The kinds of file the scanners have to deal with
+     */
+    enum Kind {
+        /**
+         * A complete, valid image
+         */
+        GOOD,
+        /**
+         * A valid image with the last 40% of the file cut off
+         */
+        TRUNCATED,
+        /**
+         * Random bytes with an image extension
+         */
+        GARBAGE
+    }
+
+    private Fixtures() {
+        // Nothing to do here
+    }
+
+    /**
+     * Creates a photo-like image: smooth gradients with some fine noise, so it compresses like a real photo
+     *
+     * @param width  The width of the image
+     * @param height The height of the image
+     * @return The image
+     */
+    static BufferedImage photo(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(width * 31L + height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double fx = (double) x / width;
+                double fy = (double) y / height;
+                int r = clamp(128 + 100 * Math.sin(fx * 7 + fy * 3) + random.nextInt(9) - 4);
+                int g = clamp(128 + 90 * Math.cos(fx * 4 - fy * 5) + random.nextInt(9) - 4);
+                int b = clamp(128 + 80 * Math.sin(fx * fy * 20) + random.nextInt(9) - 4);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Writes an image file of the given kind
+     *
+     * @param dir    The folder to write into
+     * @param format "jpg" or "png"
+     * @param kind   What sort of file to write
+     * @param width  The width of the image
+     * @param height The height of the image
+     * @return The file written
+     */
+    static File write(File dir, String format, Kind kind, int width, int height) throws IOException {
+        File file = new File(dir, kind.name().toLowerCase() + "-" + width + "x" + height + "." + format);
+        if (kind == Kind.GARBAGE) {
+            byte[] garbage = new byte[width * height / 4];
+            new Random(garbage.length).nextBytes(garbage);
+            Files.write(file.toPath(), garbage);
+            return file;
+        }
+
+        ImageIO.write(photo(width, height), format, file);
+        if (kind == Kind.TRUNCATED) {
+            byte[] data = Files.readAllBytes(file.toPath());
+            Files.write(file.toPath(), Arrays.copyOf(data, data.length * 6 / 10));
+        }
+        return file;
+    }
+
+    /**
+     * Creates a tree of empty image files (plus some other files) for discovery benchmarks
+     *
+     * @param dirs        The number of folders, spread over two levels
+     * @param filesPerDir The number of images in each folder
+     * @return The root of the tree
+     */
+    static File tree(int dirs, int filesPerDir) throws IOException {
+        File root = Files.createTempDirectory("imageutils-tree").toFile();
+        for (int d = 0; d < dirs; d++) {
+            File dir = new File(root, "group" + (d % 10) + "/dir" + d);
+            dir.mkdirs();
+            for (int f = 0; f < filesPerDir; f++) {
+                new File(dir, "image" + f + (f % 2 == 0 ? ".jpg" : ".png")).createNewFile();
+            }
+            new File(dir, "notes.txt").createNewFile();
+        }
+        return root;
+    }
+
+    /**
+     * Deletes a folder and everything in it
+     *
+     * @param dir The folder to delete
+     */
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Parses a size written as WIDTHxHEIGHT
+     */
+    static int[] size(String size) {
+        String[] parts = size.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    private static int clamp(double v) {
+        return (int) Math.max(0, Math.min(255, v));
+    }
+}
@@ -0,0 +1,105 @@
+package me.tombclarke.imageutils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the decode, analyse and encode steps on a good image
+ *
+ * @author Tom Clarke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    private static final int TARGET_WIDTH = 800;
+    private static final int TARGET_HEIGHT = 600;
+
+    @Param({"1600x1200", "6000x4000"})
+    public String size;
+
+    private File dir;
+    private File jpeg;
+    private BufferedImage image;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] wh = Fixtures.size(size);
+        dir = Files.createTempDirectory("imageutils-image").toFile();
+        jpeg = Fixtures.write(dir, "jpg", Fixtures.Kind.GOOD, wh[0], wh[1]);
+        image = ImageIO.read(jpeg);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageIO.read(jpeg);
+    }
+
+    @Benchmark
+    public BufferedImage decodePooled() throws IOException {
+        return ImageCodecs.read(jpeg);
+    }
+
+    @Benchmark
+    public BufferedImage decodeSubsampled() throws IOException {
+        try (ImageInputStream in = ImageCodecs.open(jpeg)) {
+            ImageReader reader = ImageCodecs.getReader(in);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = ImageUtils.getSubsampling(reader.getWidth(0), reader.getHeight(0), TARGET_WIDTH, TARGET_HEIGHT);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                ImageCodecs.release(reader);
+            }
+        }
+    }
+
+    @Benchmark
+    public double halfCorruptionScore() {
+        return HalfCorruptionDetector.score(image, false);
+    }
+
+    @Benchmark
+    public byte[] encodeJpeg() throws IOException, ImageException {
+        return ImageCodecs.encodeJpeg(image, 0.8f);
+    }
+
+    @Benchmark
+    public byte[] encodePng() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+package me.tombclarke.imageutils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the resize engine's filters against Java2D, on one thread and on the common pool
+ *
+ * @author Tom Clarke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResizeBenchmark {
+
+    private static final int TARGET_WIDTH = 800;
+    private static final int TARGET_HEIGHT = 600;
+
+    @Param({"1600x1200", "3000x2000"})
+    public String size;
+
+    @Param({"BOX", "BILINEAR", "BICUBIC", "LANCZOS3"})
+    public String filter;
+
+    private BufferedImage image;
+    private ResizeFilter resizeFilter;
+    private ForkJoinPool singleThread;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] wh = Fixtures.size(size);
+        image = Fixtures.photo(wh[0], wh[1]);
+        resizeFilter = ResizeFilter.valueOf(filter);
+        singleThread = new ForkJoinPool(1);
+    }
+
+    @Benchmark
+    public BufferedImage resizer() {
+        return Resizer.resize(image, TARGET_WIDTH, TARGET_HEIGHT, resizeFilter, singleThread);
+    }
+
+    @Benchmark
+    public BufferedImage resizerParallel() {
+        return Resizer.resize(image, TARGET_WIDTH, TARGET_HEIGHT, resizeFilter);
+    }
+
+    /**
+     * Java2D's bilinear drawImage, for comparison (ignores the filter parameter)
+     */
+    @Benchmark
+    public BufferedImage java2d() {
+        BufferedImage resized = new BufferedImage(TARGET_WIDTH, TARGET_HEIGHT, image.getType());
+        Graphics2D g = resized.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, TARGET_WIDTH, TARGET_HEIGHT, null);
+        g.dispose();
+        return resized;
+    }
+}
@@ -0,0 +1,74 @@
+package me.tombclarke.imageutils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the corruption checks on good, truncated and garbage files
+ *
+ * @author Tom Clarke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    @Param({"GOOD", "TRUNCATED", "GARBAGE"})
+    public String kind;
+
+    @Param({"640x480", "4000x3000"})
+    public String size;
+
+    private File dir;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] wh = Fixtures.size(size);
+        dir = Files.createTempDirectory("imageutils-scan").toFile();
+        file = Fixtures.write(dir, format, Fixtures.Kind.valueOf(kind), wh[0], wh[1]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public BufferedImage fullDecode() {
+        try {
+            return ImageIO.read(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public ImageStructureChecker.Result structuralCheck() {
+        return ImageStructureChecker.check(file);
+    }
+}
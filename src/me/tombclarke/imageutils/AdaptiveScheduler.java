@@ -0,0 +1,246 @@
+package me.tombclarke.imageutils;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs file work (reads, moves, deletes) and CPU work (decoding, checking) on separate pools, so neither is sized for
+ * the other. The CPU pool has a thread per processor. The I/O pool has plenty of threads, but how many of them may be
+ * doing I/O at once is a limit that adapts to what the storage can take, AIMD-style: it goes up by one each window
+ * that work was left waiting, and is cut by a quarter when latency grows without throughput growing with it (the
+ * storage is saturated) or when the CPU pool has a backlog (the CPU is the bottleneck, so reading further ahead only
+ * fills the heap). I/O doesn't start at all while the CPU backlog is full. Callers with their own threads (e.g. a
+ * pipeline's readers) can run I/O under the same limit by entering and exiting around it.
+ *
+ * @author Tom Clarke
+ */
+final class AdaptiveScheduler implements Closeable {
+
+    /**
+     * The default most I/O tasks that can be in flight at once, plenty for network storage
+     */
+    static final int DEFAULT_MAX_IO = 64;
+
+    // How many tasks per CPU thread can be queued before I/O is held back
+    private static final int BACKLOG_PER_CPU = 4;
+
+    private final ExecutorService io;
+    private final ThreadPoolExecutor cpu;
+    private final int cpuThreads;
+    private final Limit limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+
+    /**
+     * @param maxIo      The most I/O tasks that can be in flight at once
+     * @param cpuThreads The number of threads for CPU work
+     */
+    AdaptiveScheduler(int maxIo, int cpuThreads) {
+        this.cpuThreads = Math.max(1, cpuThreads);
+        limit = new Limit(Math.max(1, maxIo), System.nanoTime());
+        io = Executors.newFixedThreadPool(Math.max(1, maxIo), daemonThreads("io"));
+        cpu = new ThreadPoolExecutor(this.cpuThreads, this.cpuThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), daemonThreads("cpu"));
+    }
+
+    /**
+     * @return A scheduler with the default I/O limit and a CPU thread per processor
+     */
+    static AdaptiveScheduler forHost() {
+        return new AdaptiveScheduler(DEFAULT_MAX_IO, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs a task on the I/O pool once the I/O limit and the CPU backlog allow it
+     *
+     * @param task The task, which should be mostly waiting on storage
+     * @return The task's result, or its exception
+     */
+    <T> CompletableFuture<T> io(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        io.execute(() -> {
+            try {
+                enter();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.cancel(false);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                exit(System.nanoTime() - start);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs a task on the CPU pool
+     *
+     * @param task The task, which should be mostly computing
+     * @return The task's result, or its exception
+     */
+    <T> CompletableFuture<T> cpu(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        cpu.execute(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                // The backlog is a bit shorter, which may let I/O go ahead
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return How many I/O tasks may currently be in flight at once
+     */
+    synchronized int getIoLimit() {
+        return limit.get();
+    }
+
+    /**
+     * Waits until the I/O limit and the CPU backlog allow another I/O task, for I/O run on the caller's own thread.
+     * Every enter must be followed by an exit once the I/O is done.
+     *
+     * @throws InterruptedException If interrupted while waiting, in which case it doesn't need an exit
+     */
+    synchronized void enter() throws InterruptedException {
+        waiting++;
+        try {
+            while (inFlight >= limit.get() || cpu.getQueue().size() >= cpuThreads * BACKLOG_PER_CPU) {
+                wait();
+            }
+        } finally {
+            waiting--;
+        }
+        inFlight++;
+    }
+
+    /**
+     * Marks I/O started by enter as done
+     *
+     * @param latencyNanos How long the I/O took
+     */
+    synchronized void exit(long latencyNanos) {
+        inFlight--;
+        limit.finished(latencyNanos, waiting, cpu.getQueue().size() > cpuThreads, System.nanoTime());
+        notifyAll();
+    }
+
+    /**
+     * Stops both pools, abandoning anything not yet started
+     */
+    @Override
+    public void close() {
+        io.shutdownNow();
+        cpu.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String kind) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "AdaptiveScheduler-" + kind + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * An AIMD concurrency limit, adjusted once per window from the throughput and mean latency seen in it
+     */
+    static final class Limit {
+
+        static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        // Latency this much above the best seen means the storage has started queueing
+        private static final double LATENCY_TOLERANCE = 2;
+        // Throughput has to grow by this much to be worth the extra latency
+        private static final double THROUGHPUT_TOLERANCE = 1.05;
+        // How far the best latency drifts up each window, so one lucky window doesn't hold the limit down forever
+        private static final double BEST_LATENCY_DRIFT = 1.05;
+        private static final double DECREASE = 0.75;
+
+        private final int max;
+        private double limit = 1;
+        private long windowStart;
+        private int completed = 0;
+        private long latencyTotal = 0;
+        private boolean demand = false;
+        private boolean backlog = false;
+        private double bestLatency = Double.MAX_VALUE;
+        private double lastThroughput = 0;
+
+        /**
+         * @param max   The highest the limit can go
+         * @param start When the first window starts, from System.nanoTime
+         */
+        Limit(int max, long start) {
+            this.max = max;
+            this.windowStart = start;
+        }
+
+        /**
+         * @return The current limit, at least 1
+         */
+        int get() {
+            return (int) limit;
+        }
+
+        /**
+         * Records a finished task, and adjusts the limit if the window is over
+         *
+         * @param latencyNanos How long the task took
+         * @param waiting      How many tasks are waiting for the limit
+         * @param backlog      Whether the work the tasks feed is falling behind
+         * @param now          The time, from System.nanoTime
+         */
+        void finished(long latencyNanos, int waiting, boolean backlog, long now) {
+            completed++;
+            latencyTotal += latencyNanos;
+            this.demand |= waiting > 0;
+            this.backlog |= backlog;
+            if (now - windowStart >= WINDOW_NANOS && completed >= get()) {
+                adjust(now);
+            }
+        }
+
+        private void adjust(long now) {
+            double throughput = completed / (double) (now - windowStart);
+            double latency = latencyTotal / (double) completed;
+            bestLatency = Math.min(bestLatency * BEST_LATENCY_DRIFT, latency);
+
+            boolean saturated = latency > bestLatency * LATENCY_TOLERANCE
+                    && throughput < lastThroughput * THROUGHPUT_TOLERANCE;
+            if (backlog || saturated) {
+                limit = Math.max(1, limit * DECREASE);
+            } else if (demand) {
+                limit = Math.min(max, limit + 1);
+            }
+
+            lastThroughput = throughput;
+            windowStart = now;
+            completed = 0;
+            latencyTotal = 0;
+            demand = false;
+            backlog = false;
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package me.tombclarke.imageutils;
 
-import javax.imageio.ImageIO;
-import java.awt.image.*;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /*
  * Finds and removes bad images from a given folder
@@ -17,12 +25,61 @@ import java.util.Scanner;
  */
 public class BatchBadImageRemover {
 
+    static final long DEFAULT_SETTLE_MILLIS = 2000;
+    // The share of the memory budget that files read ahead of being checked can take
+    private static final int PREFETCH_SHARE = 4;
+    // Fewer files than this are deleted or moved one by one, as starting the scheduler would take longer
+    private static final int MIN_FILES_TO_SCHEDULE = 8;
+
+    // Kinds of result workers send back to the coordinator
+    private static final String CORRUPT = "corrupt";
+    private static final String LIKELY_CORRUPT = "likely";
+
     private final File folder;
     private final List<File> allImages;
     private final List<File> corruptImages;
     private final List<File> halfCorruptImages;
+    private final int threads;
+    private final boolean adaptive;
+    private final RunMetrics metrics;
+    private ScanMode scanMode = ScanMode.FULL;
+    private File cacheFile = null;
+    private boolean rescan = false;
+    private double likelyCorruptThreshold = HalfCorruptionDetector.DEFAULT_THRESHOLD;
+    private boolean screening = false;
+    private MemoryBudget memoryBudget = MemoryBudget.forHeap();
+    private long maxPixels = MemoryBudget.DEFAULT_MAX_PIXELS;
 
     public BatchBadImageRemover(File folder) throws ImageException, FileNotFoundException {
+        this(folder, 1);
+    }
+
+    /**
+     * @param folder  The folder to look for images in
+     * @param threads The number of images to check at once
+     */
+    public BatchBadImageRemover(File folder, int threads) throws ImageException, FileNotFoundException {
+        this(folder, threads, false, true);
+    }
+
+    /**
+     * Makes a remover that splits reading and checking between adaptive I/O and CPU pools, reading as many files at
+     * once as the storage keeps up with and checking them on a thread per processor
+     *
+     * @param folder The folder to look for images in
+     * @return The remover
+     */
+    public static BatchBadImageRemover adaptive(File folder) throws ImageException, FileNotFoundException {
+        return new BatchBadImageRemover(folder, Runtime.getRuntime().availableProcessors(), true, true);
+    }
+
+    /**
+     * @param folder   The folder to look for images in
+     * @param threads  The number of images to check at once
+     * @param adaptive Whether to read on an adaptive I/O pool, leaving threads for checking
+     * @param discover Whether to list the folder's images, which workers leave to the coordinator
+     */
+    private BatchBadImageRemover(File folder, int threads, boolean adaptive, boolean discover) throws ImageException, FileNotFoundException {
         // Check initial folder is ok
         if (!folder.exists()) {
             throw new FileNotFoundException("Specified directory does not exist.");
@@ -33,21 +90,48 @@ public class BatchBadImageRemover {
         if (folder.list() == null || folder.list().length == -1) {
             throw new ImageException("Specified directory is empty.");
         }
+        if (threads < 1) {
+            throw new ImageException("At least one thread is needed to check images.");
+        }
 
         // Set things up
         this.folder = folder;
+        this.threads = threads;
+        this.adaptive = adaptive;
         allImages = new ArrayList<>();
         corruptImages = new ArrayList<>();
         halfCorruptImages = new ArrayList<>();
+        metrics = new RunMetrics("BatchBadImageRemover");
 
         // Get list of images
-        ImageUtils.getListOfImages(folder, allImages);
+        if (discover) {
+            long start = System.nanoTime();
+            ImageUtils.getListOfImages(folder, allImages);
+            metrics.record(RunMetrics.Stage.DISCOVER, start);
+            metrics.setFilesFound(allImages.size());
+        }
     }
 
     public static void main(String[] args) throws IOException, ImageException {
         File folder = null;
         boolean autoDelete = false;
         String autoMove = null;
+        int threads = 1;
+        boolean adaptive = false;
+        ScanMode scanMode = ScanMode.FULL;
+        boolean useCache = false;
+        File cacheFile = null;
+        boolean rescan = false;
+        boolean findLikely = false;
+        double threshold = HalfCorruptionDetector.DEFAULT_THRESHOLD;
+        boolean screening = false;
+        File metricsFile = null;
+        long settleMillis = -1;
+        long memoryBudget = -1;
+        long maxPixels = MemoryBudget.DEFAULT_MAX_PIXELS;
+        File coordinateFolder = null;
+        File workerFolder = null;
+        int shardSize = ShardQueue.DEFAULT_SHARD_SIZE;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -65,12 +149,98 @@ public class BatchBadImageRemover {
                     i++;
                     autoMove = args[i];
                     break;
+                case "-t":
+                case "-threads":
+                    i++;
+                    if (args[i].equals("auto")) {
+                        adaptive = true;
+                    } else {
+                        adaptive = false;
+                        threads = Integer.valueOf(args[i]);
+                    }
+                    break;
+                case "-fast":
+                    scanMode = ScanMode.FAST;
+                    break;
+                case "-deep":
+                    scanMode = ScanMode.DEEP;
+                    break;
+                case "-cache":
+                    useCache = true;
+                    break;
+                case "-cachefile":
+                    i++;
+                    useCache = true;
+                    cacheFile = new File(args[i]);
+                    break;
+                case "-rescan":
+                    rescan = true;
+                    break;
+                case "-l":
+                case "-likely":
+                    findLikely = true;
+                    break;
+                case "-threshold":
+                    i++;
+                    threshold = Double.valueOf(args[i]);
+                    break;
+                case "-screen":
+                    screening = true;
+                    break;
+                case "-metrics":
+                    i++;
+                    metricsFile = new File(args[i]);
+                    break;
+                case "-memory":
+                    i++;
+                    memoryBudget = Long.valueOf(args[i]) * 1024 * 1024;
+                    break;
+                case "-maxpixels":
+                    i++;
+                    maxPixels = (long) (Double.valueOf(args[i]) * 1000000);
+                    break;
+                case "-watch":
+                    settleMillis = DEFAULT_SETTLE_MILLIS;
+                    if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                        i++;
+                        settleMillis = Long.valueOf(args[i]);
+                    }
+                    break;
+                case "-coordinate":
+                    i++;
+                    coordinateFolder = new File(args[i]);
+                    break;
+                case "-shardsize":
+                    i++;
+                    shardSize = Integer.valueOf(args[i]);
+                    break;
+                case "-worker":
+                    i++;
+                    workerFolder = new File(args[i]);
+                    break;
                 case "-h":
                 case "-help":
-                    System.out.println("usage: BatchBadImageRemover -f <target_folder> [-d] [-m <move_folder>] [-h]");
+                    System.out.println("usage: BatchBadImageRemover -f <target_folder> [-d] [-m <move_folder>] [-t <threads> | -t auto] [-fast | -deep] [-cache | -cachefile <cache_file>] [-rescan] [-l [-threshold <score>] [-screen]] [-memory <mb>] [-maxpixels <megapixels>] [-watch [<settle_ms>] | -coordinate <queue_folder> [-shardsize <n>] | -worker <queue_folder>] [-metrics <json_file>] [-h]");
                     System.out.println("-f <target_folder> Specifies a folder to look for images in to check");
                     System.out.println("-d Automatically delete all corrupted files");
                     System.out.println("-m <move_folder> Specifies a folder to automatically move the corrupt pictures to");
+                    System.out.println("-t <threads> Specifies how many images to check at once (default 1)");
+                    System.out.println("-t auto Reads, moves and deletes as many files at once as the storage keeps up with, checking them on a thread per processor");
+                    System.out.println("-fast Only check the structure of images, without decoding them");
+                    System.out.println("-deep Check the structure of images, then decode the ones that pass");
+                    System.out.println("-cache Skip images that haven't changed since the last run, keeping results in the target folder");
+                    System.out.println("-cachefile <cache_file> As -cache, but keeps results in the given file");
+                    System.out.println("-rescan Check every image again, even if the cache has a result for it");
+                    System.out.println("-l Also find images that decode but are likely half corrupt (grey or noisy areas)");
+                    System.out.println("-threshold <score> How sure (0 to 1) to be before calling an image half corrupt (default " + HalfCorruptionDetector.DEFAULT_THRESHOLD + ")");
+                    System.out.println("-screen Decode a few bands of each image first, and only check the whole image if they look suspicious");
+                    System.out.println("-memory <mb> The most memory images being decoded can take at once (default " + (int) (MemoryBudget.DEFAULT_HEAP_FRACTION * 100) + "% of the heap)");
+                    System.out.println("-maxpixels <megapixels> Images bigger than this are skipped without being decoded (default " + MemoryBudget.DEFAULT_MAX_PIXELS / 1000000 + ")");
+                    System.out.println("-watch [<settle_ms>] Keeps running, checking images as they arrive once they've been left alone for settle_ms (default " + DEFAULT_SETTLE_MILLIS + "). Needs -d or -m");
+                    System.out.println("-coordinate <queue_folder> Splits the images into shards in a shared folder for -worker processes to check, then acts on their results");
+                    System.out.println("-shardsize <n> How many images to put in each shard (default " + ShardQueue.DEFAULT_SHARD_SIZE + ")");
+                    System.out.println("-worker <queue_folder> Checks shards from a coordinator's queue until they're all done, leaving removal to the coordinator");
+                    System.out.println("-metrics <json_file> Writes counts and per-stage timings for the run to the given file");
                     System.out.println("-h Show help");
                     System.exit(0);
                 default:
@@ -82,16 +252,98 @@ public class BatchBadImageRemover {
             System.out.println("No folder supplied! Run with -h to see help.");
             System.exit(-1);
         }
+        if (rescan && !useCache) {
+            System.out.println("Rescanning needs -cache or -cachefile! Run with -h to see help.");
+            System.exit(-1);
+        }
+        if ((settleMillis >= 0 ? 1 : 0) + (coordinateFolder != null ? 1 : 0) + (workerFolder != null ? 1 : 0) > 1) {
+            System.out.println("Only one of watching, coordinating or working can be given! Run with -h to see help.");
+            System.exit(-1);
+        }
+
+        if (threads < 1) {
+            System.out.println("At least one thread is needed to check images! Run with -h to see help.");
+            System.exit(-1);
+        }
+
+        BatchBadImageRemover imgRemover = new BatchBadImageRemover(folder,
+                adaptive ? Runtime.getRuntime().availableProcessors() : threads, adaptive, workerFolder == null);
+        imgRemover.setScanMode(scanMode);
+        if (useCache && workerFolder != null) {
+            // Workers would all be appending to the same file at once
+            System.out.println("Workers don't use the scan cache, carrying on without it.");
+        } else if (useCache) {
+            imgRemover.setCacheFile(cacheFile != null ? cacheFile : new File(folder, ScanCache.DEFAULT_NAME));
+            imgRemover.setRescan(rescan);
+        }
+        imgRemover.setLikelyCorruptThreshold(threshold);
+        imgRemover.setScreening(screening);
+        if (memoryBudget > 0) {
+            imgRemover.setMemoryBudget(memoryBudget);
+        }
+        imgRemover.setMaxPixels(maxPixels);
+
+        if (settleMillis >= 0) {
+            // Nobody is there to answer prompts, so the action must be given up front
+            if (!autoDelete && autoMove == null) {
+                System.out.println("Watching needs -d or -m, as there's no one to ask! Run with -h to see help.");
+                System.exit(-1);
+            }
+            imgRemover.metrics.register();
+            final File metricsOut = metricsFile;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                imgRemover.metrics.finish();
+                System.out.println(imgRemover.metrics);
+                if (metricsOut != null) {
+                    try {
+                        imgRemover.metrics.writeJson(metricsOut);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }));
+            System.out.println("BatchBadImageRemover watching " + folder + " for new images.");
+            imgRemover.watch(settleMillis, findLikely, autoDelete ? null : autoMove);
+            return;
+        }
+
+        if (workerFolder != null) {
+            imgRemover.metrics.register();
+            int shards = imgRemover.work(workerFolder, findLikely);
+            imgRemover.metrics.finish();
+            imgRemover.metrics.unregister();
+            System.out.println("BatchBadImageRemover checked " + shards + " shards.");
+            System.out.println(imgRemover.metrics);
+            if (metricsFile != null) {
+                imgRemover.metrics.writeJson(metricsFile);
+            }
+            return;
+        }
 
-        BatchBadImageRemover imgRemover = new BatchBadImageRemover(folder);
         System.out.println("BatchBadImageRemover initialised, found " + imgRemover.allImages.size() + " images to process.");
+        imgRemover.metrics.register();
 
-        // Find obviously corrupt files
-        imgRemover.findCorruptImages();
-        System.out.println("BatchBadImageRemover found " + imgRemover.corruptImages.size() + " corrupt images.");
-        // Find likely corrupt files
-//        imgRemover.findLikelyCorruptImages();
-//        System.out.println("BatchBadImageRemover found " + imgRemover.halfCorruptImages.size() + " liked corrupt images.");
+        if (coordinateFolder != null) {
+            // The workers do the checking, and the results are acted on here as if they'd been found here
+            imgRemover.coordinate(coordinateFolder, shardSize, findLikely);
+            System.out.println("BatchBadImageRemover workers found " + imgRemover.corruptImages.size() + " corrupt images"
+                    + (findLikely ? " and " + imgRemover.halfCorruptImages.size() + " likely corrupt images." : "."));
+        } else {
+            // Find obviously corrupt files
+            imgRemover.findCorruptImages();
+            System.out.println("BatchBadImageRemover found " + imgRemover.corruptImages.size() + " corrupt images.");
+            // Find likely corrupt files
+            if (findLikely) {
+                imgRemover.findLikelyCorruptImages();
+                System.out.println("BatchBadImageRemover found " + imgRemover.halfCorruptImages.size() + " likely corrupt images.");
+            }
+        }
+        imgRemover.metrics.finish();
+        imgRemover.metrics.unregister();
+        System.out.println(imgRemover.metrics);
+        if (metricsFile != null) {
+            imgRemover.metrics.writeJson(metricsFile);
+        }
 
         boolean cleaned = false;
         // Ask about deleting, or default action?
@@ -143,84 +395,471 @@ public class BatchBadImageRemover {
     }
 
     /**
-     * Checks all images and moves corrupt files to the corrupt list
+     * Checks all images and moves corrupt files to the corrupt list. Images are checked on the configured number of
+     * threads, but the corrupt list keeps the order the images were found in. If a cache file is set, images that
+     * haven't changed since they were last checked aren't checked again. If made adaptive, files are read on an
+     * adaptive I/O pool and checked from memory on a CPU pool.
      */
     public void findCorruptImages() {
-        List<File> imagesToMarkCorrupted = new ArrayList<>();
-        for (File imgToCheck : allImages) {
+        ScanCache cache = null;
+        if (cacheFile != null) {
             try {
-                BufferedImage image = ImageIO.read(imgToCheck);
-                if (image == null) {
-                    // Couldn't decode an image, so let's remove it
-                    imagesToMarkCorrupted.add(imgToCheck);
-                }
+                cache = ScanCache.open(cacheFile);
             } catch (IOException e) {
-                // The exception is expected (as the file is broken) so we shall ignore it
-                imagesToMarkCorrupted.add(imgToCheck);
-            } catch (Exception e) {
-                // A more general exception... not expected, so we'll log it and carry on anyway (assuming this file to be corrupt)
-                e.printStackTrace();
-                imagesToMarkCorrupted.add(imgToCheck);
+                // Not fatal, everything just gets checked
+                System.out.println("Could not open scan cache " + cacheFile + ", checking all images: " + e.getMessage());
+            }
+        }
+
+        final ScanCache scanCache = cache;
+        final File[] imagesToCheck = allImages.toArray(new File[0]);
+        final boolean[] corrupt = new boolean[imagesToCheck.length];
+        try {
+            if (adaptive) {
+                checkAdaptively(imagesToCheck, corrupt, scanCache);
+            } else {
+                ImageUtils.forEachIndex(imagesToCheck.length, threads, index -> {
+                    metrics.fileStarted();
+                    corrupt[index] = isCorrupt(imagesToCheck[index], scanCache);
+                    metrics.fileFinished(false);
+                });
+            }
+        } finally {
+            if (scanCache != null) {
+                try {
+                    scanCache.close();
+                } catch (IOException e) {
+                    System.out.println("Could not save scan cache " + cacheFile + ": " + e.getMessage());
+                }
             }
         }
 
         // Add/remove image list appropriately
-        allImages.removeAll(imagesToMarkCorrupted);
-        corruptImages.addAll(imagesToMarkCorrupted);
+        allImages.clear();
+        for (int i = 0; i < imagesToCheck.length; i++) {
+            if (corrupt[i]) {
+                corruptImages.add(imagesToCheck[i]);
+            } else {
+                allImages.add(imagesToCheck[i]);
+            }
+        }
     }
 
     /**
-     * Find images that are likely corrupt
+     * Checks images with their reads on the scheduler's I/O pool and the checking on its CPU pool. How far reading gets
+     * ahead of checking is limited by the scheduler, and by a share of the memory budget.
+     *
+     * @param imagesToCheck The images to check
+     * @param corrupt       Set to whether each image is corrupt
+     * @param cache         The scan cache, or null if there isn't one
      */
-    public void findLikelyCorruptImages() {
-        List<File> imagesToMarkLikelyCorrupted = new ArrayList<>();
-        for (File imgToCheck : allImages) {
+    private void checkAdaptively(File[] imagesToCheck, boolean[] corrupt, ScanCache cache) {
+        MemoryBudget prefetchBudget = new MemoryBudget(memoryBudget.getCapacity() / PREFETCH_SHARE);
+        try (AdaptiveScheduler scheduler = AdaptiveScheduler.forHost()) {
+            List<CompletableFuture<Void>> checks = new ArrayList<>(imagesToCheck.length);
+            for (int i = 0; i < imagesToCheck.length; i++) {
+                final int index = i;
+                checks.add(scheduler.io(() -> prefetch(imagesToCheck[index], cache, prefetchBudget))
+                        .thenCompose(read -> scheduler.cpu(() -> {
+                            try {
+                                corrupt[index] = read.check();
+                            } finally {
+                                prefetchBudget.release(read.reserved);
+                                metrics.fileFinished(false);
+                            }
+                            return null;
+                        })));
+            }
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Failed while processing images.", e.getCause());
+        }
+    }
+
+    /**
+     * Reads an image into memory to be checked, unless the cache already has a verdict for it
+     *
+     * @param imgToCheck The image to read
+     * @param cache      The scan cache, or null if there isn't one
+     * @param budget     The budget for files read but not yet checked
+     * @return The read image
+     * @throws InterruptedException If interrupted while waiting for the budget
+     */
+    private Prefetched prefetch(File imgToCheck, ScanCache cache, MemoryBudget budget) throws InterruptedException {
+        metrics.fileStarted();
+        Prefetched read = new Prefetched(imgToCheck, cache);
+        if (cache != null) {
             try {
-                BufferedImage image = ImageIO.read(imgToCheck);
-                if (image == null) {
-                    // Couldn't decode an image, so let's remove it
-                    imagesToMarkLikelyCorrupted.add(imgToCheck);
+                read.attrs = Files.readAttributes(imgToCheck.toPath(), BasicFileAttributes.class);
+                read.verdict = rescan ? null : cache.lookup(imgToCheck, read.attrs, scanMode);
+                if (read.verdict != null) {
+                    return read;
                 }
+            } catch (IOException e) {
+                // Can't stat it, so there's nothing to key a verdict on
+            }
+        }
 
-                // Blur, create histogram, look for bad things
-                float[] matrix = {
-                        0.111f, 0.111f, 0.111f,
-                        0.111f, 0.111f, 0.111f,
-                        0.111f, 0.111f, 0.111f,
-                };
-                BufferedImageOp op = new ConvolveOp(new Kernel(3, 3, matrix));
-                BufferedImage blurredImage = op.filter(image, null);
-
-                Raster raster = image.getRaster();
-                final int h = image.getHeight();
-                final int w = image.getWidth();
-                double[] r = new double[h * w];
-                r = raster.getSamples(0, 0, w, h, 0, r);
-                r = raster.getSamples(0, 0, w, h, 1, r);
-                r = raster.getSamples(0, 0, w, h, 2, r);
-
-                // TODO haven't decided how to do this yet, I may come back later...
+        long start = System.nanoTime();
+        read.reserved = budget.acquire(imgToCheck.length());
+        try {
+            read.data = Files.readAllBytes(imgToCheck.toPath());
+            metrics.addBytesRead(read.data.length);
+        } catch (IOException e) {
+            // Can't even read it, so it's as good as corrupt
+            read.verdict = true;
+        }
+        metrics.record(RunMetrics.Stage.READ, start);
+        return read;
+    }
 
-            } catch (IOException e) {
-                // The exception is kinda expected so we shall ignore it
-                imagesToMarkLikelyCorrupted.add(imgToCheck);
+    /**
+     * Checks whether an image is corrupt, using the cached verdict if the image hasn't changed since
+     *
+     * @param imgToCheck The image to check
+     * @param cache      The scan cache, or null if there isn't one
+     * @return True if the image is corrupt
+     */
+    private boolean isCorrupt(File imgToCheck, ScanCache cache) {
+        if (cache == null) {
+            return isCorrupt(imgToCheck);
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(imgToCheck.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Can't stat it, so there's nothing to key a verdict on
+            return isCorrupt(imgToCheck);
+        }
+
+        Boolean cached = rescan ? null : cache.lookup(imgToCheck, attrs, scanMode);
+        if (cached != null) {
+            return cached;
+        }
+        boolean corrupt = isCorrupt(imgToCheck);
+        cache.record(imgToCheck, attrs, scanMode, corrupt);
+        return corrupt;
+    }
+
+    /**
+     * Checks whether an image is corrupt, as thoroughly as the scan mode asks for
+     *
+     * @param imgToCheck The image to check
+     * @return True if the image is corrupt
+     */
+    private boolean isCorrupt(File imgToCheck) {
+        metrics.addBytesRead(imgToCheck.length());
+        return isCorrupt(imgToCheck, (byte[]) null);
+    }
+
+    /**
+     * Checks whether an image is corrupt, as thoroughly as the scan mode asks for
+     *
+     * @param imgToCheck The image to check
+     * @param data       The image file's contents if they've already been read, or null to read them from the file
+     * @return True if the image is corrupt
+     */
+    private boolean isCorrupt(File imgToCheck, byte[] data) {
+        if (scanMode == ScanMode.FULL) {
+            return !canDecode(imgToCheck, data);
+        }
+
+        long start = System.nanoTime();
+        ImageStructureChecker.Result structure;
+        if (data != null) {
+            structure = ImageStructureChecker.check(data);
+            metrics.record(RunMetrics.Stage.ANALYSE, start);
+        } else {
+            structure = ImageStructureChecker.check(imgToCheck);
+            metrics.record(RunMetrics.Stage.READ, start);
+        }
+        if (structure == ImageStructureChecker.Result.CORRUPT) {
+            return true;
+        }
+        // Only decode if asked to, or if the structure couldn't be checked at all
+        if (scanMode == ScanMode.DEEP || structure == ImageStructureChecker.Result.UNKNOWN_FORMAT) {
+            return !canDecode(imgToCheck, data);
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an image can be decoded
+     *
+     * @param imgToCheck The image to check
+     * @param data       The image file's contents if they've already been read, or null to read them from the file
+     * @return True if the image decoded
+     */
+    private boolean canDecode(File imgToCheck, byte[] data) {
+        long start = System.nanoTime();
+        try (ImageInputStream in = data != null ? ImageCodecs.open(data) : ImageCodecs.open(imgToCheck)) {
+            ImageReader reader = ImageCodecs.getReader(in);
+            if (reader == null) {
+                // Nothing can decode it
+                return false;
+            }
+            try {
+                if (isTooLarge(reader, imgToCheck)) {
+                    return true;
+                }
+                long reserved = memoryBudget.acquire(MemoryBudget.estimateDecode(reader, 1));
+                try {
+                    reader.read(0);
+                    return true;
+                } finally {
+                    memoryBudget.release(reserved);
+                }
+            } finally {
+                ImageCodecs.release(reader);
             }
+        } catch (InterruptedException e) {
+            // Stopping, so leave the image be
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (IOException e) {
+            // The exception is expected (as the file is broken) so we shall ignore it
+            return false;
+        } catch (Exception e) {
+            // A more general exception... not expected, so we'll log it and carry on anyway (assuming this file to be corrupt)
+            e.printStackTrace();
+            return false;
+        } finally {
+            metrics.record(RunMetrics.Stage.DECODE, start);
         }
+    }
+
+    /**
+     * Checks an image's header against the pixel limit. Images over it aren't decoded, as that alone could take more
+     * memory than there is, but they aren't called bad either as nothing is known to be wrong with them.
+     *
+     * @param reader     A reader set up on the image
+     * @param imgToCheck The image
+     * @return True if the image is too large to check
+     * @throws IOException If the header couldn't be read
+     */
+    private boolean isTooLarge(ImageReader reader, File imgToCheck) throws IOException {
+        try {
+            MemoryBudget.checkPixels(reader, maxPixels, imgToCheck);
+            return false;
+        } catch (ImageException e) {
+            System.out.println("Not checking: " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Finds images that decode but are likely corrupt (e.g. a grey bottom from truncation, or blocks of noise), and
+     * moves them to the half corrupt list. Images that don't decode at all are moved there too.
+     */
+    public void findLikelyCorruptImages() {
+        final File[] imagesToCheck = allImages.toArray(new File[0]);
+        final boolean[] likelyCorrupt = new boolean[imagesToCheck.length];
+        // Decoding dominates here, so an adaptive remover just uses its thread per processor
+        ImageUtils.forEachIndex(imagesToCheck.length, threads, index -> {
+            metrics.fileStarted();
+            likelyCorrupt[index] = isLikelyCorrupt(imagesToCheck[index]);
+            metrics.fileFinished(false);
+        });
 
         // Add/remove image list appropriately
-        allImages.removeAll(imagesToMarkLikelyCorrupted);
-        halfCorruptImages.addAll(imagesToMarkLikelyCorrupted);
+        allImages.clear();
+        for (int i = 0; i < imagesToCheck.length; i++) {
+            if (likelyCorrupt[i]) {
+                halfCorruptImages.add(imagesToCheck[i]);
+            } else {
+                allImages.add(imagesToCheck[i]);
+            }
+        }
+    }
+
+    /**
+     * Checks whether an image is likely to be corrupt, even if it decodes. If screening, a few bands are decoded first
+     * and the whole image is only decoded if one of them looks suspicious.
+     *
+     * @param imgToCheck The image to check
+     * @return True if the image scored at least the threshold, or couldn't be decoded
+     */
+    private boolean isLikelyCorrupt(File imgToCheck) {
+        metrics.addBytesRead(imgToCheck.length());
+        try (ImageInputStream in = ImageCodecs.open(imgToCheck)) {
+            ImageReader reader = ImageCodecs.getReader(in, !screening);
+            if (reader == null) {
+                // Couldn't decode an image, so let's remove it
+                return true;
+            }
+
+            try {
+                if (isTooLarge(reader, imgToCheck)) {
+                    return false;
+                }
+                // Only a JPEG that shows signs of being cut short has its flat bottom counted, and any warning while
+                // decoding (e.g. a premature end) is one. Releasing the reader resets it, removing the listener.
+                boolean jpeg = ImageCodecs.getFormat(reader) == ImageCodecs.Format.JPEG;
+                boolean[] warned = {false};
+                if (jpeg) {
+                    reader.addIIOReadWarningListener((source, warning) -> warned[0] = true);
+                }
+                if (screening) {
+                    long start = System.nanoTime();
+                    boolean suspicious = HalfCorruptionDetector.screen(reader);
+                    metrics.record(RunMetrics.Stage.ANALYSE, start);
+                    if (!suspicious) {
+                        return false;
+                    }
+                }
+                long reserved = memoryBudget.acquire(MemoryBudget.estimateDecode(reader, 1));
+                try {
+                    long start = System.nanoTime();
+                    BufferedImage image = reader.read(0);
+                    metrics.record(RunMetrics.Stage.DECODE, start);
+                    start = System.nanoTime();
+                    boolean truncated = jpeg && (warned[0] || HalfCorruptionDetector.isMissingEoi(imgToCheck));
+                    double score = HalfCorruptionDetector.score(image, truncated);
+                    metrics.record(RunMetrics.Stage.ANALYSE, start);
+                    return score >= likelyCorruptThreshold;
+                } finally {
+                    memoryBudget.release(reserved);
+                }
+            } finally {
+                ImageCodecs.release(reader);
+            }
+        } catch (InterruptedException e) {
+            // Stopping, so leave the image be
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            // The exception is kinda expected so we shall ignore it
+            return true;
+        } catch (Exception e) {
+            // Not expected, so log it and assume the image is corrupt
+            e.printStackTrace();
+            return true;
+        }
+    }
+
+    /**
+     * Keeps watching the folder, checking images as they're added or changed and deleting or moving the bad ones
+     * straight away. Only new arrivals are checked, so each batch costs as much as the images in it rather than a sweep
+     * of the whole folder. Images already in the folder are left for a normal run. Returns when the thread is
+     * interrupted.
+     *
+     * @param settleMillis How long an image must go unchanged before it's checked, so half written files aren't
+     *                     mistaken for corrupt ones
+     * @param findLikely   Whether to also remove images that are likely half corrupt
+     * @param moveDir      The folder to move bad images to, or null to delete them
+     * @throws IOException If the folder couldn't be watched
+     */
+    public void watch(long settleMillis, boolean findLikely, String moveDir) throws IOException {
+        List<Path> excluded = moveDir == null
+                ? Collections.emptyList()
+                : Collections.singletonList(new File(moveDir).toPath());
+        try (FolderWatcher watcher = new FolderWatcher(folder.toPath(), settleMillis, excluded)) {
+            watcher.watch(images -> {
+                allImages.clear();
+                corruptImages.clear();
+                halfCorruptImages.clear();
+                allImages.addAll(images);
+                metrics.setFilesFound(metrics.getFilesFound() + images.size());
+
+                findCorruptImages();
+                if (findLikely) {
+                    findLikelyCorruptImages();
+                }
+                int bad = corruptImages.size() + halfCorruptImages.size();
+                if (moveDir == null) {
+                    deleteBadImages();
+                } else {
+                    moveBadImages(moveDir);
+                }
+                System.out.println("BatchBadImageRemover checked " + images.size() + " new images, "
+                        + (moveDir == null ? "removed " : "moved ") + bad + ".");
+            });
+        }
+    }
+
+    /**
+     * Splits the images into shards in a shared queue folder, waits for worker processes to check them all, and gathers
+     * what they found into the corrupt and likely corrupt lists. A stopped coordinator started again with the same
+     * settings carries on with the same queue.
+     *
+     * @param queueFolder The queue folder, which workers must be given too
+     * @param shardSize   How many images to put in each shard
+     * @param findLikely  Whether workers also look for likely half corrupt images
+     * @throws IOException    If the queue couldn't be read or written
+     * @throws ImageException If the folder holds a queue for other work, or interrupted while waiting
+     */
+    public void coordinate(File queueFolder, int shardSize, boolean findLikely) throws IOException, ImageException {
+        try (ShardQueue queue = ShardQueue.create(queueFolder, getTask(findLikely), allImages, shardSize)) {
+            System.out.println("BatchBadImageRemover split " + allImages.size() + " images into " + queue.getShardCount()
+                    + " shards in " + queueFolder + ", waiting for workers.");
+            queue.awaitFinished((done, count) -> System.out.println("BatchBadImageRemover: " + done + " of " + count + " shards checked."));
+            Map<String, List<File>> results = queue.getResults();
+            corruptImages.clear();
+            halfCorruptImages.clear();
+            corruptImages.addAll(results.getOrDefault(CORRUPT, Collections.emptyList()));
+            halfCorruptImages.addAll(results.getOrDefault(LIKELY_CORRUPT, Collections.emptyList()));
+        }
     }
 
     /**
-     * Deletes bad images
+     * Checks shards from a coordinator's queue until every shard is done, writing what it finds back to the queue for
+     * the coordinator to act on. Any number of workers, on this machine or others sharing the queue folder, can work on
+     * one queue, and shards of workers that die are taken over once their leases run out.
+     *
+     * @param queueFolder The coordinator's queue folder
+     * @param findLikely  Whether to also look for likely half corrupt images, which must match the coordinator
+     * @return The number of shards this worker checked
+     * @throws IOException    If the queue couldn't be read or written
+     * @throws ImageException If there's no queue for this work, or interrupted while waiting
+     */
+    public int work(File queueFolder, boolean findLikely) throws IOException, ImageException {
+        try (ShardQueue queue = ShardQueue.open(queueFolder, getTask(findLikely))) {
+            // Checking doesn't change anything, so a shard that's been taken over is just finished and not reported
+            return queue.work((images, lost) -> {
+                allImages.clear();
+                corruptImages.clear();
+                halfCorruptImages.clear();
+                allImages.addAll(images);
+                metrics.setFilesFound(metrics.getFilesFound() + images.size());
+
+                findCorruptImages();
+                if (findLikely) {
+                    findLikelyCorruptImages();
+                }
+                Map<String, List<File>> results = new HashMap<>();
+                results.put(CORRUPT, new ArrayList<>(corruptImages));
+                results.put(LIKELY_CORRUPT, new ArrayList<>(halfCorruptImages));
+                return results;
+            });
+        }
+    }
+
+    /**
+     * @return A description of the checking, so workers with different settings don't share a queue
+     */
+    private String getTask(boolean findLikely) {
+        return "BatchBadImageRemover " + folder.getAbsolutePath() + " " + scanMode
+                + (findLikely ? " likely " + likelyCorruptThreshold + (screening ? " screening" : "") : "");
+    }
+
+    /**
+     * Deletes bad images, as many at once as the storage keeps up with
      */
     public void deleteBadImages() {
-        for (File i : corruptImages) {
-            i.delete();
+        List<File> badImages = getBadImages();
+        if (badImages.size() < MIN_FILES_TO_SCHEDULE) {
+            for (File i : badImages) {
+                i.delete();
+            }
+            return;
         }
-        for (File i : halfCorruptImages) {
-            i.delete();
+        try (AdaptiveScheduler scheduler = AdaptiveScheduler.forHost()) {
+            List<CompletableFuture<Boolean>> deletes = new ArrayList<>(badImages.size());
+            for (File i : badImages) {
+                deletes.add(scheduler.io(i::delete));
+            }
+            CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])).join();
         }
     }
 
@@ -238,21 +877,49 @@ public class BatchBadImageRemover {
             throw new ImageException("Specified move directory is not a directory.");
         }
 
-        moveFiles(corruptImages, moveFolder);
-        moveFiles(halfCorruptImages, moveFolder);
+        moveFiles(getBadImages(), moveFolder);
+    }
+
+    /**
+     * @return The corrupt images followed by the half corrupt ones
+     */
+    private List<File> getBadImages() {
+        List<File> badImages = new ArrayList<>(corruptImages);
+        badImages.addAll(halfCorruptImages);
+        return badImages;
     }
 
     /**
-     * Moves a list of files to a new folder
+     * Moves a list of files to a new folder, as many at once as the storage keeps up with
      *
      * @param files      The list of files
      * @param moveFolder The destination folder
-     * @throws IOException If a problem occured
+     * @throws IOException If a problem occured, after the other files have been moved
      */
     private void moveFiles(List<File> files, File moveFolder) throws IOException {
-        for (File i : files) {
-            File moveDest = new File(moveFolder.getPath() + "/" + i.getName());
-            Files.move(i.toPath(), moveDest.toPath());
+        if (files.size() < MIN_FILES_TO_SCHEDULE) {
+            for (File i : files) {
+                Files.move(i.toPath(), new File(moveFolder.getPath() + "/" + i.getName()).toPath());
+            }
+            return;
+        }
+        try (AdaptiveScheduler scheduler = AdaptiveScheduler.forHost()) {
+            List<CompletableFuture<Path>> moves = new ArrayList<>(files.size());
+            for (File i : files) {
+                File moveDest = new File(moveFolder.getPath() + "/" + i.getName());
+                moves.add(scheduler.io(() -> Files.move(i.toPath(), moveDest.toPath())));
+            }
+            // Report the first file's problem, as moving them one by one would have
+            for (CompletableFuture<Path> move : moves) {
+                try {
+                    move.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
         }
     }
 
@@ -272,8 +939,125 @@ public class BatchBadImageRemover {
         return halfCorruptImages;
     }
 
+    /**
+     * @return The counts and timings for this remover's work so far
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ScanMode getScanMode() {
+        return scanMode;
+    }
+
+    public void setScanMode(ScanMode scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    public double getLikelyCorruptThreshold() {
+        return likelyCorruptThreshold;
+    }
+
+    /**
+     * @param likelyCorruptThreshold The score (0 to 1) at which an image counts as likely corrupt. Lower finds more, but
+     *                               risks catching good images with large flat areas.
+     */
+    public void setLikelyCorruptThreshold(double likelyCorruptThreshold) {
+        this.likelyCorruptThreshold = likelyCorruptThreshold;
+    }
+
+    public boolean isScreening() {
+        return screening;
+    }
+
+    /**
+     * @param screening If set, finding likely corrupt images decodes a few bands of each image first, and only decodes
+     *                  the whole image if they look suspicious
+     */
+    public void setScreening(boolean screening) {
+        this.screening = screening;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget.getCapacity();
+    }
+
+    /**
+     * @param bytes The most memory images being decoded can take at once, going by their headers. Fewer images are
+     *              checked at once when they're big, and an image bigger than this is checked alone.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = new MemoryBudget(bytes);
+    }
+
+    public long getMaxPixels() {
+        return maxPixels;
+    }
+
+    /**
+     * @param maxPixels The most pixels an image can have, going by its header. Bigger images are skipped without being
+     *                  decoded, and are neither corrupt nor good.
+     */
+    public void setMaxPixels(long maxPixels) {
+        this.maxPixels = maxPixels;
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @param cacheFile A file to keep verdicts in between runs, or null to check every image every time
+     */
+    public void setCacheFile(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public boolean isRescan() {
+        return rescan;
+    }
+
+    /**
+     * @param rescan If set, every image is checked again, but the cache is still updated with the new verdicts
+     */
+    public void setRescan(boolean rescan) {
+        this.rescan = rescan;
+    }
+
     @Override
     public String toString() {
         return "'" + folder.getAbsolutePath() + "', " + allImages.size() + " good, " + corruptImages + " corrupt, " + halfCorruptImages + " expected corrupt";
     }
+
+    /**
+     * An image read ahead of being checked, or the verdict on it if there's no need to check it
+     */
+    private final class Prefetched {
+
+        private final File image;
+        private final ScanCache cache;
+        private BasicFileAttributes attrs = null;
+        private Boolean verdict = null;
+        private byte[] data = null;
+        private long reserved = 0;
+
+        private Prefetched(File image, ScanCache cache) {
+            this.image = image;
+            this.cache = cache;
+        }
+
+        /**
+         * @return True if the image is corrupt, caching the verdict if it was checked
+         */
+        private boolean check() {
+            if (verdict != null) {
+                return verdict;
+            }
+            boolean corrupt = isCorrupt(image, data);
+            if (cache != null && attrs != null) {
+                cache.record(image, attrs, scanMode, corrupt);
+            }
+            return corrupt;
+        }
+    }
 }
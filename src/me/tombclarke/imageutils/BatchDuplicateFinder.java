@@ -0,0 +1,508 @@
+package me.tombclarke.imageutils;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Finds duplicate and near-duplicate images (re-uploads, re-encodes and resizes of the same photo) in a given folder
+ *
+ * @author Tom Clarke
+ */
+public class BatchDuplicateFinder {
+
+    /**
+     * The default number of hash bits two images can differ by and still be duplicates
+     */
+    public static final int DEFAULT_MAX_DISTANCE = 5;
+
+    private final File folder;
+    private final List<File> allImages;
+    private final List<File> duplicateImages;
+    private final List<List<File>> duplicateGroups;
+    private final List<File> unreadableImages;
+    private final int threads;
+    private final RunMetrics metrics;
+    private int maxDistance = DEFAULT_MAX_DISTANCE;
+    private File cacheFile = null;
+    private boolean rescan = false;
+
+    public BatchDuplicateFinder(File folder) throws ImageException, FileNotFoundException {
+        this(folder, 1);
+    }
+
+    /**
+     * @param folder  The folder to look for images in
+     * @param threads The number of images to hash at once
+     */
+    public BatchDuplicateFinder(File folder, int threads) throws ImageException, FileNotFoundException {
+        // Check initial folder is ok
+        if (!folder.exists()) {
+            throw new FileNotFoundException("Specified directory does not exist.");
+        }
+        if (!folder.isDirectory()) {
+            throw new ImageException("Specified directory is not a directory.");
+        }
+        if (folder.list() == null || folder.list().length == -1) {
+            throw new ImageException("Specified directory is empty.");
+        }
+        if (threads < 1) {
+            throw new ImageException("At least one thread is needed to hash images.");
+        }
+
+        // Set things up
+        this.folder = folder;
+        this.threads = threads;
+        allImages = new ArrayList<>();
+        duplicateImages = new ArrayList<>();
+        duplicateGroups = new ArrayList<>();
+        unreadableImages = new ArrayList<>();
+        metrics = new RunMetrics("BatchDuplicateFinder");
+
+        // Get list of images
+        long start = System.nanoTime();
+        ImageUtils.getListOfImages(folder, allImages);
+        metrics.record(RunMetrics.Stage.DISCOVER, start);
+        metrics.setFilesFound(allImages.size());
+    }
+
+    public static void main(String[] args) throws IOException, ImageException {
+        File folder = null;
+        boolean autoDelete = false;
+        String autoMove = null;
+        int threads = 1;
+        int maxDistance = DEFAULT_MAX_DISTANCE;
+        boolean useCache = false;
+        File cacheFile = null;
+        boolean rescan = false;
+        File metricsFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-f":
+                case "-folder":
+                    i++;
+                    folder = new File(args[i]);
+                    break;
+                case "-d":
+                case "-delete":
+                    autoDelete = true;
+                    break;
+                case "-m":
+                case "-move":
+                    i++;
+                    autoMove = args[i];
+                    break;
+                case "-t":
+                case "-threads":
+                    i++;
+                    threads = Integer.valueOf(args[i]);
+                    break;
+                case "-distance":
+                    i++;
+                    maxDistance = Integer.valueOf(args[i]);
+                    break;
+                case "-cache":
+                    useCache = true;
+                    break;
+                case "-cachefile":
+                    i++;
+                    useCache = true;
+                    cacheFile = new File(args[i]);
+                    break;
+                case "-rescan":
+                    rescan = true;
+                    break;
+                case "-metrics":
+                    i++;
+                    metricsFile = new File(args[i]);
+                    break;
+                case "-h":
+                case "-help":
+                    System.out.println("usage: BatchDuplicateFinder -f <target_folder> [-d] [-m <move_folder>] [-t <threads>] [-distance <bits>] [-cache | -cachefile <cache_file>] [-rescan] [-metrics <json_file>] [-h]");
+                    System.out.println("-f <target_folder> Specifies a folder to look for duplicate images in");
+                    System.out.println("-d Automatically delete all duplicates, keeping the largest copy of each image");
+                    System.out.println("-m <move_folder> Specifies a folder to automatically move the duplicates to");
+                    System.out.println("-t <threads> Specifies how many images to hash at once (default 1)");
+                    System.out.println("-distance <bits> How many of the 64 hash bits images can differ by and still be duplicates (default " + DEFAULT_MAX_DISTANCE + ")");
+                    System.out.println("-cache Only hash images that are new or changed since the last run, keeping hashes in the target folder");
+                    System.out.println("-cachefile <cache_file> As -cache, but keeps hashes in the given file");
+                    System.out.println("-rescan Hash every image again, even if the cache has a hash for it");
+                    System.out.println("-metrics <json_file> Writes counts and per-stage timings for the run to the given file");
+                    System.out.println("-h Show help");
+                    System.exit(0);
+                default:
+                    System.out.println("Unknown argument: " + args[i]);
+            }
+        }
+
+        if (folder == null) {
+            System.out.println("No folder supplied! Run with -h to see help.");
+            System.exit(-1);
+        }
+
+        BatchDuplicateFinder finder = new BatchDuplicateFinder(folder, threads);
+        finder.setMaxDistance(maxDistance);
+        if (useCache) {
+            finder.setCacheFile(cacheFile != null ? cacheFile : new File(folder, HashCache.DEFAULT_NAME));
+            finder.setRescan(rescan);
+        }
+        System.out.println("BatchDuplicateFinder initialised, found " + finder.allImages.size() + " images to process.");
+        finder.metrics.register();
+
+        finder.findDuplicates();
+        System.out.println("BatchDuplicateFinder found " + finder.duplicateImages.size() + " duplicates of "
+                + finder.duplicateGroups.size() + " images, and " + finder.unreadableImages.size() + " images it couldn't read.");
+        finder.metrics.finish();
+        finder.metrics.unregister();
+        System.out.println(finder.metrics);
+        if (metricsFile != null) {
+            finder.metrics.writeJson(metricsFile);
+        }
+        if (finder.duplicateImages.isEmpty()) {
+            return;
+        }
+
+        if (autoDelete) {
+            finder.deleteDuplicates();
+            System.out.println("Removed.");
+        } else if (autoMove != null) {
+            finder.moveDuplicates(autoMove);
+            System.out.println("Moved to " + autoMove + ".");
+        } else {
+            Scanner scanner = new Scanner(System.in);
+            System.out.println("Do you want to delete duplicates? Y/N");
+            String input = scanner.nextLine().toLowerCase();
+            while (!input.equals("y") && !input.equals("n")) {
+                System.out.println("Do you want to delete duplicates? Y/N");
+                input = scanner.nextLine().toLowerCase();
+            }
+            if (input.equals("y")) {
+                finder.deleteDuplicates();
+                System.out.println("Removed.");
+                return;
+            }
+
+            System.out.println("Do you want to move duplicates? <folder>/N");
+            input = scanner.nextLine();
+            while (!input.equals("n") && !input.equals("N")) {
+                try {
+                    finder.moveDuplicates(input);
+                    System.out.println("Moved to " + input + ".");
+                    return;
+                } catch (ImageException | IOException e) {
+                    System.out.println("Could not move images to given folder.");
+                    System.out.println("Do you want to move duplicates? <folder>/N");
+                    input = scanner.nextLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes all images and groups those within the maximum distance of each other. In each group the image with the
+     * most pixels (then the largest file, then the first found) is kept in the image list, and the rest are moved to
+     * the duplicate list. Images that can't be decoded are moved to the unreadable list.
+     * <p>
+     * Groups are found by searching a BK-tree of each group's first image, so each image is compared against a small
+     * part of the tree rather than every other image.
+     */
+    public void findDuplicates() {
+        HashCache cache = null;
+        if (cacheFile != null) {
+            try {
+                cache = HashCache.open(cacheFile);
+            } catch (IOException e) {
+                // Not fatal, everything just gets hashed
+                System.out.println("Could not open hash cache " + cacheFile + ", hashing all images: " + e.getMessage());
+            }
+        }
+
+        final HashCache hashCache = cache;
+        final File[] imagesToHash = allImages.toArray(new File[0]);
+        final HashCache.Entry[] hashes = new HashCache.Entry[imagesToHash.length];
+        try {
+            ImageUtils.forEachIndex(imagesToHash.length, threads, index -> {
+                metrics.fileStarted();
+                hashes[index] = hash(imagesToHash[index], hashCache);
+                metrics.fileFinished(hashes[index] == null);
+            });
+        } finally {
+            if (hashCache != null) {
+                try {
+                    hashCache.close();
+                } catch (IOException e) {
+                    System.out.println("Could not save hash cache " + cacheFile + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // Group in the order the images were found, so results are the same every run
+        long start = System.nanoTime();
+        BkTree<Group> tree = new BkTree<>();
+        List<Group> groups = new ArrayList<>();
+        for (int i = 0; i < imagesToHash.length; i++) {
+            HashCache.Entry hash = hashes[i];
+            if (hash == null) {
+                continue;
+            }
+            Group closest = null;
+            int closestDistance = Integer.MAX_VALUE;
+            for (Group g : tree.search(hash.getHash(), maxDistance)) {
+                int d = PerceptualHash.distance(g.hash, hash.getHash());
+                if (d < closestDistance || d == closestDistance && g.index < closest.index) {
+                    closest = g;
+                    closestDistance = d;
+                }
+            }
+            if (closest == null) {
+                closest = new Group(i, hash.getHash());
+                tree.add(hash.getHash(), closest);
+                groups.add(closest);
+            }
+            closest.members.add(i);
+        }
+        metrics.record(RunMetrics.Stage.ANALYSE, start);
+
+        // Add/remove image list appropriately
+        allImages.clear();
+        for (int i = 0; i < imagesToHash.length; i++) {
+            if (hashes[i] == null) {
+                unreadableImages.add(imagesToHash[i]);
+            }
+        }
+        for (Group g : groups) {
+            int keep = g.members.get(0);
+            for (int i : g.members) {
+                if (isBetterCopy(imagesToHash, hashes, i, keep)) {
+                    keep = i;
+                }
+            }
+            allImages.add(imagesToHash[keep]);
+            if (g.members.size() > 1) {
+                List<File> group = new ArrayList<>();
+                group.add(imagesToHash[keep]);
+                for (int i : g.members) {
+                    if (i != keep) {
+                        group.add(imagesToHash[i]);
+                        duplicateImages.add(imagesToHash[i]);
+                    }
+                }
+                duplicateGroups.add(group);
+            }
+        }
+    }
+
+    /**
+     * @return True if image a is a better copy to keep than image b: more pixels, or failing that a larger file
+     */
+    private static boolean isBetterCopy(File[] images, HashCache.Entry[] hashes, int a, int b) {
+        long pixelsA = (long) hashes[a].getWidth() * hashes[a].getHeight();
+        long pixelsB = (long) hashes[b].getWidth() * hashes[b].getHeight();
+        if (pixelsA != pixelsB) {
+            return pixelsA > pixelsB;
+        }
+        return images[a].length() > images[b].length();
+    }
+
+    /**
+     * Hashes an image, using the cached hash if the image hasn't changed since
+     *
+     * @param image The image to hash
+     * @param cache The hash cache, or null if there isn't one
+     * @return The hash, or null if the image couldn't be decoded
+     */
+    private HashCache.Entry hash(File image, HashCache cache) {
+        BasicFileAttributes attrs = null;
+        if (cache != null) {
+            try {
+                attrs = Files.readAttributes(image.toPath(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                // Can't stat it, so there's nothing to key a hash on
+            }
+        }
+        if (attrs != null && !rescan) {
+            HashCache.Entry cached = cache.lookup(image, attrs);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        HashCache.Entry hash = hash(image);
+        if (attrs != null && hash != null) {
+            cache.record(image, attrs, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Hashes an image from a subsampled decode, as the hash only needs a few pixels
+     *
+     * @param image The image to hash
+     * @return The hash, or null if the image couldn't be decoded
+     */
+    private HashCache.Entry hash(File image) {
+        metrics.addBytesRead(image.length());
+        try (ImageInputStream in = ImageCodecs.open(image)) {
+            ImageReader reader = ImageCodecs.getReader(in);
+            if (reader == null) {
+                return null;
+            }
+
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = ImageUtils.getSubsampling(width, height, PerceptualHash.SAMPLE_SIZE, PerceptualHash.SAMPLE_SIZE);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+
+                long start = System.nanoTime();
+                BufferedImage sample = reader.read(0, param);
+                metrics.record(RunMetrics.Stage.DECODE, start);
+                start = System.nanoTime();
+                long hash = PerceptualHash.of(sample);
+                metrics.record(RunMetrics.Stage.ANALYSE, start);
+                return new HashCache.Entry(hash, width, height);
+            } finally {
+                ImageCodecs.release(reader);
+            }
+        } catch (IOException e) {
+            // The exception is expected (as the file is broken) so we shall ignore it
+            return null;
+        } catch (Exception e) {
+            // Not expected, so log it and skip the image
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes duplicates, keeping one copy of each image
+     */
+    public void deleteDuplicates() {
+        for (File i : duplicateImages) {
+            i.delete();
+        }
+    }
+
+    /**
+     * Moves duplicates to another folder, keeping one copy of each image where it was. Each keeps its path relative to
+     * the target folder, as copies often share a name.
+     *
+     * @param moveDir The folder to move duplicates to
+     */
+    public void moveDuplicates(String moveDir) throws ImageException, IOException {
+        File moveFolder = new File(moveDir);
+        if (!moveFolder.exists()) {
+            moveFolder.mkdirs();
+        }
+        if (!moveFolder.isDirectory()) {
+            throw new ImageException("Specified move directory is not a directory.");
+        }
+
+        for (File i : duplicateImages) {
+            File moveDest = new File(moveFolder, folder.toPath().relativize(i.toPath()).toString());
+            moveDest.getParentFile().mkdirs();
+            Files.move(i.toPath(), moveDest.toPath());
+        }
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return The images that aren't duplicates, including the copy kept of each duplicated image
+     */
+    public List<File> getAllImages() {
+        return allImages;
+    }
+
+    public List<File> getDuplicateImages() {
+        return duplicateImages;
+    }
+
+    /**
+     * @return Each group of duplicates, starting with the copy that's kept
+     */
+    public List<List<File>> getDuplicateGroups() {
+        return Collections.unmodifiableList(duplicateGroups);
+    }
+
+    public List<File> getUnreadableImages() {
+        return unreadableImages;
+    }
+
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * @param maxDistance How many of the 64 hash bits images can differ by and still be duplicates. Higher finds more
+     *                    edited copies, but risks grouping similar looking photos.
+     */
+    public void setMaxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @param cacheFile A file to keep hashes in between runs, or null to hash every image every time
+     */
+    public void setCacheFile(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public boolean isRescan() {
+        return rescan;
+    }
+
+    /**
+     * @param rescan If set, every image is hashed again, but the cache is still updated with the new hashes
+     */
+    public void setRescan(boolean rescan) {
+        this.rescan = rescan;
+    }
+
+    /**
+     * @return The counts and timings for this finder's work so far
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return "'" + folder.getAbsolutePath() + "', " + allImages.size() + " unique, " + duplicateImages + " duplicates";
+    }
+
+    /**
+     * Images found to be the same, filed in the tree under the first one's hash
+     */
+    private static final class Group {
+
+        private final int index;
+        private final long hash;
+        private final List<Integer> members = new ArrayList<>();
+
+        Group(int index, long hash) {
+            this.index = index;
+            this.hash = hash;
+        }
+    }
+}
@@ -1,12 +1,29 @@
 package me.tombclarke.imageutils;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 /**
  * A simple tool to help resize and compress images
@@ -15,9 +32,77 @@ import java.util.ArrayList;
  */
 public class BatchImageCompressor {
 
+    private static final double DEFAULT_MIN_SAVING = 0.05;
+    private static final float MIN_SEARCH_QUALITY = 0.05f;
+    private static final float MAX_SEARCH_QUALITY = 0.95f;
+    private static final int QUALITY_SEARCH_STEPS = 7;
+    private static final long DEFAULT_SETTLE_MILLIS = 2000;
+    // The kind of result workers send back to the coordinator
+    private static final String FAILED = "failed";
+    // The share of the memory budget that decoded and resized images kept for reuse can take
+    private static final int BUFFER_POOL_SHARE = 4;
+    // The share of the memory budget that files fetched ahead of being decoded can take, when reads are adaptive
+    private static final int PREFETCH_SHARE = 4;
+
+    /**
+     * Work to do on each batch of images that arrive while watching, e.g. c -> c.compressImages(800, 600, true)
+     */
+    public interface Task {
+        void run(BatchImageCompressor compressor) throws ImageException;
+    }
+
+    private final File folder;
     private final ArrayList<File> allImages;
+    private final List<File> failedImages;
+    private final int readThreads;
+    private final int resizeThreads;
+    private final int writeThreads;
+    private final boolean adaptiveReads;
+    private final RunMetrics metrics;
+    private ResizeFilter resizeFilter = ResizeFilter.BICUBIC;
+    private File journalFile = null;
+    private boolean resume = false;
+    private MemoryBudget memoryBudget = MemoryBudget.forHeap();
+    private long maxPixels = MemoryBudget.DEFAULT_MAX_PIXELS;
+    private MetadataPolicy metadataPolicy = MetadataPolicy.KEEP;
+    private boolean previewMode = false;
+    private int searchThreads = Runtime.getRuntime().availableProcessors();
+    // Set while working on a shard, to tell whether another worker has taken it over
+    private volatile BooleanSupplier shardLost = null;
 
     public BatchImageCompressor(File folder) throws ImageException, FileNotFoundException {
+        this(folder, 1, 1, 1);
+    }
+
+    /**
+     * @param folder        The folder to look for images in
+     * @param readThreads   The number of images to read and decode at once
+     * @param resizeThreads The number of images to resize at once
+     * @param writeThreads  The number of images to encode and write at once
+     */
+    public BatchImageCompressor(File folder, int readThreads, int resizeThreads, int writeThreads) throws ImageException, FileNotFoundException {
+        this(folder, readThreads, resizeThreads, writeThreads, false, true);
+    }
+
+    /**
+     * Makes a compressor that fetches as many files at once as the storage keeps up with, under an adaptive scheduler's
+     * I/O limit, and decodes, resizes and writes them on a thread per processor
+     *
+     * @param folder The folder to look for images in
+     * @return The compressor
+     */
+    public static BatchImageCompressor adaptive(File folder) throws ImageException, FileNotFoundException {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return new BatchImageCompressor(folder, AdaptiveScheduler.DEFAULT_MAX_IO, cpus, cpus, true, true);
+    }
+
+    /**
+     * @param adaptiveReads Whether files are fetched under an adaptive scheduler's I/O limit and decoded on its CPU
+     *                      pool, with readThreads the most files it can fetch at once
+     * @param discover      Whether to list the folder's images, which workers leave to the coordinator
+     */
+    private BatchImageCompressor(File folder, int readThreads, int resizeThreads, int writeThreads, boolean adaptiveReads,
+                                 boolean discover) throws ImageException, FileNotFoundException {
         // Check initial folder is ok
         if (!folder.exists()) {
             throw new FileNotFoundException("Specified directory does not exist.");
@@ -28,12 +113,27 @@ public class BatchImageCompressor {
         if (folder.list() == null || folder.list().length == -1) {
             throw new ImageException("Specified directory is empty.");
         }
+        if (readThreads < 1 || resizeThreads < 1 || writeThreads < 1) {
+            throw new ImageException("At least one thread is needed for each stage.");
+        }
 
         // Set things up
+        this.folder = folder;
         allImages = new ArrayList<>();
+        failedImages = new ArrayList<>();
+        this.readThreads = readThreads;
+        this.resizeThreads = resizeThreads;
+        this.writeThreads = writeThreads;
+        this.adaptiveReads = adaptiveReads;
+        metrics = new RunMetrics("BatchImageCompressor");
 
         // Get list of images
-        ImageUtils.getListOfImages(folder, allImages);
+        if (discover) {
+            long start = System.nanoTime();
+            ImageUtils.getListOfImages(folder, allImages);
+            metrics.record(RunMetrics.Stage.DISCOVER, start);
+            metrics.setFilesFound(allImages.size());
+        }
     }
 
     public static void main(String[] args) throws IOException, ImageException {
@@ -41,6 +141,30 @@ public class BatchImageCompressor {
         int width = -1;
         int height = -1;
         boolean ignoreAspectRatio = false;
+        // Not given means adapting to the host
+        int readThreads = -1;
+        int resizeThreads = -1;
+        int writeThreads = -1;
+        float quality = -1;
+        long targetSize = -1;
+        double minSaving = DEFAULT_MIN_SAVING;
+        File metricsFile = null;
+        ResizeFilter filter = ResizeFilter.BICUBIC;
+        List<Rendition> renditions = null;
+        String outputPattern = null;
+        long settleMillis = -1;
+        boolean resume = false;
+        File journalFile = null;
+        long memoryBudget = -1;
+        long maxPixels = MemoryBudget.DEFAULT_MAX_PIXELS;
+        MetadataPolicy metadataPolicy = MetadataPolicy.KEEP;
+        boolean previewMode = false;
+        boolean lossless = false;
+        boolean optimiseTables = true;
+        File coordinateFolder = null;
+        File workerFolder = null;
+        int shardSize = ShardQueue.DEFAULT_SHARD_SIZE;
+        int searchThreads = Runtime.getRuntime().availableProcessors();
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -63,12 +187,130 @@ public class BatchImageCompressor {
                     i++;
                     ignoreAspectRatio = Boolean.valueOf(args[i]);
                     break;
+                case "-filter":
+                    i++;
+                    filter = ResizeFilter.valueOf(args[i].toUpperCase());
+                    break;
+                case "-r":
+                case "-renditions":
+                    i++;
+                    renditions = Rendition.parseList(args[i]);
+                    break;
+                case "-o":
+                case "-output":
+                    i++;
+                    outputPattern = args[i];
+                    break;
+                case "-readers":
+                    i++;
+                    readThreads = Integer.valueOf(args[i]);
+                    break;
+                case "-resizers":
+                    i++;
+                    resizeThreads = Integer.valueOf(args[i]);
+                    break;
+                case "-writers":
+                    i++;
+                    writeThreads = Integer.valueOf(args[i]);
+                    break;
+                case "-q":
+                case "-quality":
+                    i++;
+                    quality = Float.valueOf(args[i]);
+                    break;
+                case "-s":
+                case "-size":
+                    i++;
+                    targetSize = Long.valueOf(args[i]) * 1024;
+                    break;
+                case "-margin":
+                    i++;
+                    minSaving = Double.valueOf(args[i]);
+                    break;
+                case "-metrics":
+                    i++;
+                    metricsFile = new File(args[i]);
+                    break;
+                case "-memory":
+                    i++;
+                    memoryBudget = Long.valueOf(args[i]) * 1024 * 1024;
+                    break;
+                case "-maxpixels":
+                    i++;
+                    maxPixels = (long) (Double.valueOf(args[i]) * 1000000);
+                    break;
+                case "-metadata":
+                    i++;
+                    metadataPolicy = MetadataPolicy.valueOf(args[i].toUpperCase());
+                    break;
+                case "-preview":
+                    previewMode = true;
+                    break;
+                case "-lossless":
+                    lossless = true;
+                    break;
+                case "-keeptables":
+                    optimiseTables = false;
+                    break;
+                case "-searchers":
+                    i++;
+                    searchThreads = Integer.valueOf(args[i]);
+                    break;
+                case "-resume":
+                    resume = true;
+                    break;
+                case "-journal":
+                    i++;
+                    journalFile = new File(args[i]);
+                    break;
+                case "-watch":
+                    settleMillis = DEFAULT_SETTLE_MILLIS;
+                    if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                        i++;
+                        settleMillis = Long.valueOf(args[i]);
+                    }
+                    break;
+                case "-coordinate":
+                    i++;
+                    coordinateFolder = new File(args[i]);
+                    break;
+                case "-shardsize":
+                    i++;
+                    shardSize = Integer.valueOf(args[i]);
+                    break;
+                case "-worker":
+                    i++;
+                    workerFolder = new File(args[i]);
+                    break;
                 case "-help":
-                    System.out.println("usage: BatchImageCompressor -f <target_folder> [-w <width> -h <height> [-a]]");
+                    System.out.println("usage: BatchImageCompressor -f <target_folder> [-w <width> -h <height> [-a] [-filter <filter>] | -q <quality> | -s <size_kb> | -r <renditions> -o <output_pattern> | -lossless [-keeptables] [-searchers <n>]] [-margin <fraction>] [-metadata <keep|strip>] [-preview] [-readers <n>] [-resizers <n>] [-writers <n>] [-memory <mb>] [-maxpixels <megapixels>] [-resume] [-journal <journal_file>] [-watch [<settle_ms>] | -coordinate <queue_folder> [-shardsize <n>] | -worker <queue_folder>] [-metrics <json_file>]");
                     System.out.println("-f <target_folder> Specifies a folder to look for images in to compress");
                     System.out.println("-w <width> Specifies a new (max) width of pictures");
                     System.out.println("-h <height> Specifies a new (max) height of pictures");
                     System.out.println("-a If set, aspect ration will be ignored");
+                    System.out.println("-filter <filter> The filter to resize with: box, bilinear, bicubic or lanczos3 (default bicubic)");
+                    System.out.println("-q <quality> Re-encodes JPEGs at the given quality (0 to 1), without resizing");
+                    System.out.println("-s <size_kb> Re-encodes JPEGs at the best quality that fits in the given size, without resizing");
+                    System.out.println("-r <renditions> Makes copies of each image at several sizes, e.g. thumb=160x160,card=640x480, decoding each image once");
+                    System.out.println("-o <output_pattern> The folder to put renditions in, where {name}, {width} and {height} are replaced, e.g. out/{name}");
+                    System.out.println("-lossless Makes JPEGs and PNGs smaller without changing their pixels, e.g. by dropping metadata, rebuilding JPEG Huffman tables and searching for the best PNG compression");
+                    System.out.println("-keeptables With -lossless, only drops metadata from JPEGs and leaves their Huffman tables alone");
+                    System.out.println("-searchers <n> With -lossless, how many ways of compressing a PNG to try at once (default the number of processors)");
+                    System.out.println("-margin <fraction> Keeps the original unless re-encoding saves at least this fraction of it (default " + DEFAULT_MIN_SAVING + ")");
+                    System.out.println("-metadata <keep|strip> Whether to carry EXIF, XMP, comments and the like over to rewritten images (default keep)");
+                    System.out.println("-preview Resizes and renditions start from the preview embedded in a JPEG's EXIF when it's big enough, instead of decoding the full image");
+                    System.out.println("-readers <n> Specifies how many images to read at once (default as many as the storage keeps up with)");
+                    System.out.println("-resizers <n> Specifies how many images to resize at once (default one per processor)");
+                    System.out.println("-writers <n> Specifies how many images to write at once (default one per processor)");
+                    System.out.println("-memory <mb> The most memory images being worked on can take at once (default " + (int) (MemoryBudget.DEFAULT_HEAP_FRACTION * 100) + "% of the heap)");
+                    System.out.println("-maxpixels <megapixels> Images bigger than this fail without being decoded (default " + MemoryBudget.DEFAULT_MAX_PIXELS / 1000000 + ")");
+                    System.out.println("-resume Skips images finished by an earlier run of the same task that was stopped part way");
+                    System.out.println("-journal <journal_file> Where to log finished images (default " + RunJournal.DEFAULT_NAME + " in the target folder)");
+                    System.out.println("-watch [<settle_ms>] Keeps running, only working on images as they arrive once they've been left alone for settle_ms (default " + DEFAULT_SETTLE_MILLIS + ")");
+                    System.out.println("-coordinate <queue_folder> Splits the images into shards in a shared folder for -worker processes given the same options to work on, and waits for them");
+                    System.out.println("-shardsize <n> How many images to put in each shard (default " + ShardQueue.DEFAULT_SHARD_SIZE + ")");
+                    System.out.println("-worker <queue_folder> Works on shards from a coordinator's queue until they're all done");
+                    System.out.println("-metrics <json_file> Writes counts and per-stage timings for the run to the given file");
                     System.out.println("-help Show help");
                     System.out.println("");
                     System.exit(0);
@@ -81,67 +323,1088 @@ public class BatchImageCompressor {
             System.out.println("No folder supplied! Run with -help to see help.");
             System.exit(-1);
         }
+        if ((settleMillis >= 0 ? 1 : 0) + (coordinateFolder != null ? 1 : 0) + (workerFolder != null ? 1 : 0) > 1) {
+            System.out.println("Only one of watching, coordinating or working can be given! Run with -help to see help.");
+            System.exit(-1);
+        }
 
-        BatchImageCompressor compressor = new BatchImageCompressor(folder);
+        boolean resizing = width > -1 || height > -1;
+        boolean recompressing = quality >= 0 || targetSize >= 0;
+        boolean rendering = renditions != null;
+        if ((resizing ? 1 : 0) + (quality >= 0 ? 1 : 0) + (targetSize >= 0 ? 1 : 0) + (rendering ? 1 : 0) + (lossless ? 1 : 0) > 1) {
+            System.out.println("Only one of resizing, quality, size, renditions or lossless can be given! Run with -help to see help.");
+            System.exit(-1);
+        }
+        if (rendering && outputPattern == null) {
+            System.out.println("An output folder pattern must be given for renditions! Run with -help to see help.");
+            System.exit(-1);
+        }
 
-        // Resize
-        if (width > -1 || height > -1) {
-            if (width == -1 || height == -1) {
-                System.out.println("Both a width and height must be specified for resizing! Run with -h to see help.");
+        if (resizing && (width == -1 || height == -1)) {
+            System.out.println("Both a width and height must be specified for resizing! Run with -h to see help.");
+            System.exit(-1);
+        }
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        BatchImageCompressor compressor = new BatchImageCompressor(folder,
+                readThreads == -1 ? AdaptiveScheduler.DEFAULT_MAX_IO : readThreads,
+                resizeThreads == -1 ? cpus : resizeThreads, writeThreads == -1 ? cpus : writeThreads,
+                readThreads == -1, workerFolder == null);
+        compressor.metrics.register();
+        compressor.setResizeFilter(filter);
+        if (memoryBudget > 0) {
+            compressor.setMemoryBudget(memoryBudget);
+        }
+        compressor.setMaxPixels(maxPixels);
+        compressor.setMetadataPolicy(metadataPolicy);
+        compressor.setPreviewMode(previewMode);
+        compressor.setSearchThreads(searchThreads);
+
+        if (settleMillis >= 0 || coordinateFolder != null || workerFolder != null) {
+            final int w = width;
+            final int h = height;
+            final boolean keepRatio = !ignoreAspectRatio;
+            final float q = quality;
+            final long size = targetSize;
+            final double margin = minSaving;
+            final List<Rendition> rs = renditions;
+            final String pattern = outputPattern;
+            final boolean tables = optimiseTables;
+            Task task;
+            // Workers must all be doing the same work as the coordinator expects
+            String description;
+            List<File> excluded = new ArrayList<>();
+            if (resizing) {
+                task = c -> c.compressImages(w, h, keepRatio);
+                description = "resize " + w + "x" + h + (keepRatio ? " keeping ratio" : "") + " " + filter;
+            } else if (quality >= 0) {
+                task = c -> c.recompressImages(q, margin);
+                description = "quality " + q + " saving " + margin;
+            } else if (targetSize >= 0) {
+                task = c -> c.recompressImagesToSize(size, margin);
+                description = "size " + size + " saving " + margin;
+            } else if (rendering) {
+                task = c -> c.createRenditions(rs, pattern);
+                description = "renditions " + renditions + " to " + pattern;
+                // Renditions are new images too, so don't pick them up if they're written inside the folder
+                for (Rendition r : renditions) {
+                    excluded.add(getRenditionFolder(r, outputPattern));
+                }
+            } else if (lossless) {
+                task = c -> c.optimiseImages(tables);
+                description = "lossless" + (tables ? " tables" : "");
+            } else {
+                System.out.println("Nothing to do with the images! Run with -help to see help.");
                 System.exit(-1);
+                return;
+            }
+
+            if (coordinateFolder != null) {
+                compressor.coordinate(coordinateFolder, shardSize, description);
+                System.out.println("BatchImageCompressor workers processed " + (compressor.allImages.size() - compressor.failedImages.size())
+                        + " images, " + compressor.failedImages.size() + " failed.");
+            } else if (workerFolder != null) {
+                int shards = compressor.work(workerFolder, description, task);
+                System.out.println("BatchImageCompressor processed " + shards + " shards.");
+            }
+            if (settleMillis < 0) {
+                compressor.metrics.finish();
+                compressor.metrics.unregister();
+                System.out.println(compressor.metrics);
+                if (metricsFile != null) {
+                    compressor.metrics.writeJson(metricsFile);
+                }
+                return;
             }
 
+            final File metricsOut = metricsFile;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                compressor.metrics.finish();
+                System.out.println(compressor.metrics);
+                if (metricsOut != null) {
+                    try {
+                        compressor.metrics.writeJson(metricsOut);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }));
+            System.out.println("BatchImageCompressor watching " + folder + " for new images.");
+            compressor.watch(settleMillis, excluded, task);
+            return;
+        }
+
+        compressor.setJournalFile(journalFile != null ? journalFile : new File(folder, RunJournal.DEFAULT_NAME));
+        compressor.setResume(resume);
+
+        // Resize
+        if (resizing) {
             compressor.compressImages(width, height, !ignoreAspectRatio);
+            System.out.println("BatchImageCompressor resized " + (compressor.allImages.size() - compressor.failedImages.size())
+                    + " images, " + compressor.failedImages.size() + " failed.");
+        }
+
+        // Recompress
+        if (recompressing) {
+            int rewritten = quality >= 0
+                    ? compressor.recompressImages(quality, minSaving)
+                    : compressor.recompressImagesToSize(targetSize, minSaving);
+            System.out.println("BatchImageCompressor recompressed " + rewritten + " images, " + compressor.failedImages.size() + " failed.");
+        }
+
+        // Renditions
+        if (rendering) {
+            compressor.createRenditions(renditions, outputPattern);
+            System.out.println("BatchImageCompressor made " + renditions.size() + " renditions of "
+                    + (compressor.allImages.size() - compressor.failedImages.size()) + " images, " + compressor.failedImages.size() + " failed.");
+        }
+
+        // Lossless
+        if (lossless) {
+            int rewritten = compressor.optimiseImages(optimiseTables);
+            System.out.println("BatchImageCompressor optimised " + rewritten + " images, " + compressor.failedImages.size() + " failed.");
         }
+
+        compressor.metrics.finish();
+        compressor.metrics.unregister();
+        System.out.println(compressor.metrics);
+        if (metricsFile != null) {
+            compressor.metrics.writeJson(metricsFile);
+        }
+    }
+
+    /**
+     * Keeps watching the folder, running a task on images as they're added or changed. Only new arrivals are worked on,
+     * so each batch costs as much as the images in it rather than a sweep of the whole folder, and images already in the
+     * folder are left alone. Images the task writes back are not picked up again. Returns when the thread is
+     * interrupted.
+     *
+     * @param settleMillis How long an image must go unchanged before it's worked on, so half written files are left
+     *                     until they're finished
+     * @param excluded     Folders not to watch, such as where renditions are written
+     * @param task         The work to do on each batch, which sees just that batch in the image list
+     * @throws IOException    If the folder couldn't be watched
+     * @throws ImageException If an excluded folder would exclude the whole folder
+     */
+    public void watch(long settleMillis, List<File> excluded, Task task) throws IOException, ImageException {
+        List<Path> excludedPaths = new ArrayList<>();
+        Path root = folder.toPath().toAbsolutePath().normalize();
+        for (File f : excluded) {
+            Path p = f.toPath().toAbsolutePath().normalize();
+            if (root.startsWith(p)) {
+                throw new ImageException("Output folder " + f + " contains the folder being watched.");
+            }
+            excludedPaths.add(p);
+        }
+
+        try (FolderWatcher watcher = new FolderWatcher(folder.toPath(), settleMillis, excludedPaths)) {
+            watcher.watch(images -> {
+                allImages.clear();
+                failedImages.clear();
+                allImages.addAll(images);
+                metrics.setFilesFound(metrics.getFilesFound() + images.size());
+
+                task.run(this);
+                System.out.println("BatchImageCompressor processed " + (images.size() - failedImages.size())
+                        + " new images, " + failedImages.size() + " failed.");
+            });
+        }
+    }
+
+    /**
+     * Splits the images into shards in a shared queue folder and waits for worker processes to work through them all,
+     * gathering the images that failed into the failed list. A stopped coordinator started again with the same work
+     * carries on with the same queue.
+     *
+     * @param queueFolder The queue folder, which workers must be given too
+     * @param shardSize   How many images to put in each shard
+     * @param description A description of the work, which workers must be given too
+     * @throws IOException    If the queue couldn't be read or written
+     * @throws ImageException If the folder holds a queue for other work, or interrupted while waiting
+     */
+    public void coordinate(File queueFolder, int shardSize, String description) throws IOException, ImageException {
+        try (ShardQueue queue = ShardQueue.create(queueFolder, getQueueTask(description), allImages, shardSize)) {
+            System.out.println("BatchImageCompressor split " + allImages.size() + " images into " + queue.getShardCount()
+                    + " shards in " + queueFolder + ", waiting for workers.");
+            queue.awaitFinished((done, count) -> System.out.println("BatchImageCompressor: " + done + " of " + count + " shards done."));
+            failedImages.clear();
+            failedImages.addAll(queue.getResults().getOrDefault(FAILED, Collections.emptyList()));
+        }
+    }
+
+    /**
+     * Works on shards from a coordinator's queue until every shard is done, reporting the images that failed back to the
+     * queue. Any number of workers, on this machine or others sharing the queue folder, can work on one queue, and shards
+     * of workers that die are taken over once their leases run out. No journal is kept, as the queue keeps track.
+     *
+     * @param queueFolder The coordinator's queue folder
+     * @param description A description of the work, which must match the coordinator's
+     * @param task        The work to do on each shard, which sees just that shard in the image list
+     * @return The number of shards this worker did
+     * @throws IOException    If the queue couldn't be read or written
+     * @throws ImageException If there's no queue for this work, or interrupted while waiting
+     */
+    public int work(File queueFolder, String description, Task task) throws IOException, ImageException {
+        try (ShardQueue queue = ShardQueue.open(queueFolder, getQueueTask(description))) {
+            return queue.work((images, lost) -> {
+                allImages.clear();
+                failedImages.clear();
+                allImages.addAll(images);
+                metrics.setFilesFound(metrics.getFilesFound() + images.size());
+
+                // Images are changed in place, so once another worker has the shard no more can be started or written
+                shardLost = lost;
+                try {
+                    task.run(this);
+                } finally {
+                    shardLost = null;
+                }
+                return Collections.singletonMap(FAILED, new ArrayList<>(failedImages));
+            });
+        }
+    }
+
+    /**
+     * @return A description of the work for a shared queue, so workers with different settings don't share one
+     */
+    private String getQueueTask(String description) {
+        return "BatchImageCompressor " + folder.getAbsolutePath() + " " + description + getOutputSettings();
+    }
+
+    /**
+     * Compresses all images to the width and height given. If maintainAspectRatio is set, the other parameters are treated as 'max'.
+     * Images that can't be compressed are left as they were and added to the failed list; the rest are still done.
+     * Decoded and resized images are given back to a buffer pool once they're done with, so images of the same shape
+     * as an earlier one are decoded and resized into its buffers rather than new ones. The pool takes a share of the
+     * memory budget, leaving the rest for the images being worked on.
+     *
+     * @param width               The (max) width of the resized image
+     * @param height              The (max) height of the resized image
+     * @param maintainAspectRatio Whether or not to maintain the aspect ratio
+     * @throws ImageException If interrupted before all the images were done
+     */
+    public void compressImages(int width, int height, boolean maintainAspectRatio) throws ImageException {
+        String task = "resize " + width + "x" + height + (maintainAspectRatio ? " keeping ratio" : "") + " " + resizeFilter
+                + getOutputSettings();
+        // The pool's buffers are held on top of the images being worked on, so they get the rest of the budget
+        MemoryBudget whole = memoryBudget;
+        long poolBytes = whole.getCapacity() / BUFFER_POOL_SHARE;
+        PixelBufferPool buffers = new PixelBufferPool(poolBytes);
+        memoryBudget = new MemoryBudget(whole.getCapacity() - poolBytes);
+        List<CompressionPipeline.Job> failures;
+        try {
+            failures = run(task,
+                    timed(RunMetrics.Stage.DECODE, job -> {
+                        metrics.addBytesRead(job.getFile().length());
+                        readForResize(job, width, height, maintainAspectRatio, buffers);
+                    }),
+                    timed(RunMetrics.Stage.RESIZE, job -> {
+                        BufferedImage decoded = job.image;
+                        job.image = Resizer.resize(decoded, job.width, job.height, resizeFilter, ForkJoinPool.commonPool(), buffers);
+                        buffers.give(decoded);
+                    }),
+                    timed(RunMetrics.Stage.WRITE, job -> {
+                        write(job);
+                        metrics.addBytesWritten(job.getFile().length());
+                        buffers.give(job.image);
+                        job.image = null;
+                    }));
+        } finally {
+            memoryBudget = whole;
+        }
+        recordFailures(failures);
     }
 
     /**
-     * Compresses all images to the width and height given. If maintainAspectRatio is set, the other parameters are treated as 'max'
+     * Decodes an image, working out the size it should be resized to
      *
+     * @param job                 The image's job, to store the decoded image and target size in
      * @param width               The (max) width of the resized image
      * @param height              The (max) height of the resized image
      * @param maintainAspectRatio Whether or not to maintain the aspect ratio
+     * @param buffers             The pool to decode into an image from, where the reader's layout allows
+     */
+    private void readForResize(CompressionPipeline.Job job, int width, int height, boolean maintainAspectRatio,
+                               PixelBufferPool buffers) throws IOException, ImageException {
+        byte[] preview = null;
+        try (ImageInputStream in = open(job)) {
+            ImageReader reader = getReader(in);
+            if (reader == null) {
+                throw new ImageException("No reader found for image " + job.getFile() + ".");
+            }
+
+            try {
+                job.format = ImageCodecs.getFormat(reader);
+                MemoryBudget.checkPixels(reader, maxPixels, job.getFile());
+                job.metadata = readMetadata(reader);
+                // The header gives the size without decoding anything
+                int originalWidth = reader.getWidth(0);
+                int originalHeight = reader.getHeight(0);
+
+                // Calculate new width / height if aspect ration is 'on'
+                if (maintainAspectRatio) {
+                    double wRatio = (double) width / (double) originalWidth;
+                    double hRatio = (double) height / (double) originalHeight;
+
+                    double transformRatio = Double.min(wRatio, hRatio);
+                    width = (int) (transformRatio * (double) originalWidth);
+                    height = (int) (transformRatio * (double) originalHeight);
+                }
+                job.width = width;
+                job.height = height;
+
+                preview = findPreview(job, originalWidth, originalHeight, width, height);
+                if (preview != null) {
+                    int[] size = ExifThumbnail.getSize(preview);
+                    reserve(job, 4L * size[0] * size[1] + 4L * width * (height + size[1]));
+                } else {
+                    // Read the image, skipping pixels that the resize would throw away anyway
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int subsampling = ImageUtils.getSubsampling(originalWidth, originalHeight, width, height);
+                    if (subsampling > 1) {
+                        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    // The resize also needs its output and intermediate, at up to 4 bytes a pixel
+                    long decodedHeight = (originalHeight + subsampling - 1) / subsampling;
+                    reserve(job, MemoryBudget.estimateDecode(reader, subsampling) + 4L * width * (height + decodedHeight));
+                    int decodedWidth = (originalWidth + subsampling - 1) / subsampling;
+                    BufferedImage destination = takeDestination(reader, decodedWidth, (int) decodedHeight, buffers);
+                    if (destination != null) {
+                        param.setDestination(destination);
+                    }
+                    job.image = reader.read(0, param);
+                }
+            } finally {
+                ImageCodecs.release(reader);
+            }
+        }
+        if (preview != null) {
+            // Decoded now, so this thread's JPEG reader is free for it
+            job.image = decodePreview(job, preview);
+        }
+    }
+
+    /**
+     * Takes an image from the pool for a reader to decode into, if the reader decodes to a layout that can be pooled.
+     * Layouts with a palette or their own colour profile are left to the reader.
+     *
+     * @param reader  A reader set up on the image
+     * @param width   The width it will decode to
+     * @param height  The height it will decode to
+     * @param buffers The pool to take the image from
+     * @return The image to decode into, cleared in case decoding stops part way, or null to let the reader make one
+     * @throws IOException If the header couldn't be read
+     */
+    private static BufferedImage takeDestination(ImageReader reader, int width, int height, PixelBufferPool buffers) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types == null || !types.hasNext()) {
+            return null;
+        }
+        // The first type is what the reader would have made
+        int type = types.next().getBufferedImageType();
+        return PixelBufferPool.isPooled(type) ? buffers.takeImage(width, height, type, true) : null;
+    }
+
+    /**
+     * Waits until the memory budget has room for an image, holding it in the image's job until the job is done
+     *
+     * @param job   The image's job
+     * @param bytes The memory the image will need
+     * @throws ImageException If interrupted while waiting
+     */
+    private void reserve(CompressionPipeline.Job job, long bytes) throws ImageException {
+        try {
+            job.reserved = memoryBudget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImageException("Interrupted while waiting for memory for " + job.getFile() + ".");
+        }
+    }
+
+    /**
+     * Finds a reader for an image, set up to read its metadata too if it's being kept
+     */
+    private ImageReader getReader(ImageInputStream in) throws IOException {
+        return ImageCodecs.getReader(in, true, metadataPolicy == MetadataPolicy.STRIP);
+    }
+
+    /**
+     * @return The image's metadata, or null if it isn't being kept
+     */
+    private IIOMetadata readMetadata(ImageReader reader) throws IOException {
+        return metadataPolicy == MetadataPolicy.KEEP ? reader.getImageMetadata(0) : null;
+    }
+
+    /**
+     * Finds the preview embedded in a JPEG, if preview mode is on and it has one that's big enough
+     *
+     * @param job          The image's job, with its format
+     * @param sourceWidth  The image's width
+     * @param sourceHeight The image's height
+     * @param width        The largest width that will be made from it
+     * @param height       The largest height that will be made from it
+     * @return The encoded preview, or null if the image itself should be decoded
+     */
+    private byte[] findPreview(CompressionPipeline.Job job, int sourceWidth, int sourceHeight, int width, int height) throws IOException {
+        if (!previewMode || job.format != ImageCodecs.Format.JPEG) {
+            return null;
+        }
+        byte[] preview = ExifThumbnail.find(job.getFile());
+        if (preview == null || !ExifThumbnail.covers(ExifThumbnail.getSize(preview), sourceWidth, sourceHeight, width, height)) {
+            return null;
+        }
+        return preview;
+    }
+
+    /**
+     * Decodes an embedded preview in place of the image it's from
+     */
+    private BufferedImage decodePreview(CompressionPipeline.Job job, byte[] preview) throws IOException, ImageException {
+        BufferedImage image = ImageCodecs.read(preview);
+        if (image == null) {
+            throw new ImageException("No reader found for the preview in image " + job.getFile() + ".");
+        }
+        return image;
+    }
+
+    /**
+     * Saves an image over its original file
+     *
+     * @param job The image's job
+     */
+    private void write(CompressionPipeline.Job job) throws IOException, ImageException {
+        write(job.image, job.format, job.metadata, job.getFile());
+    }
+
+    /**
+     * Saves an image in the format it was read in, whatever its file name says
+     *
+     * @param image    The image to save
+     * @param format   The format to save it in
+     * @param metadata The metadata it was read with, or null to write none
+     * @param i        The file to save it to
+     */
+    private void write(BufferedImage image, ImageCodecs.Format format, IIOMetadata metadata, File i) throws IOException, ImageException {
+        if (format == null) {
+            throw new ImageException("No writer found for image " + i + ".");
+        }
+        long start = System.nanoTime();
+        byte[] encoded = ImageCodecs.encode(image, format, -1, metadata);
+        metrics.record(RunMetrics.Stage.ENCODE, start);
+        ImageUtils.writeAtomically(i, encoded);
+    }
+
+    /**
+     * Makes a copy of every image at each rendition's size, leaving the originals alone. Each image is decoded once,
+     * then each rendition is resized from the next larger one, so every extra rendition costs a small resize rather
+     * than another decode.
+     *
+     * @param renditions    The sizes to make
+     * @param outputPattern The folder to put each rendition in, with {name}, {width} and {height} replaced by the
+     *                      rendition's. Subfolders of the target folder are kept.
+     * @throws ImageException If renditions would be written over each other, or if interrupted before all the images
+     *                        were done
+     */
+    public void createRenditions(List<Rendition> renditions, String outputPattern) throws ImageException {
+        if (renditions.isEmpty()) {
+            throw new ImageException("At least one rendition is needed.");
+        }
+        Set<File> outputFolders = new HashSet<>();
+        for (Rendition r : renditions) {
+            outputFolders.add(getRenditionFolder(r, outputPattern).getAbsoluteFile());
+        }
+        if (outputFolders.size() < renditions.size()) {
+            throw new ImageException("Renditions would be written over each other, the output pattern needs {name}.");
+        }
+
+        List<CompressionPipeline.Job> failures = run("renditions " + renditions + " to " + outputPattern + getOutputSettings(),
+                timed(RunMetrics.Stage.DECODE, job -> {
+                    metrics.addBytesRead(job.getFile().length());
+                    readForRenditions(job, renditions);
+                }),
+                job -> resizeRenditions(job, renditions),
+                timed(RunMetrics.Stage.WRITE, job -> {
+                    for (int r = 0; r < renditions.size(); r++) {
+                        File out = new File(getRenditionFolder(renditions.get(r), outputPattern),
+                                folder.toPath().relativize(job.getFile().toPath()).toString());
+                        out.getParentFile().mkdirs();
+                        write(job.renditions[r], job.format, job.metadata, out);
+                        metrics.addBytesWritten(out.length());
+                    }
+                    job.renditions = null;
+                }));
+        recordFailures(failures);
+    }
+
+    /**
+     * Decodes an image, skipping as many pixels as the largest rendition allows
+     *
+     * @param job        The image's job, to store the decoded image and original size in
+     * @param renditions The renditions that will be made
+     */
+    private void readForRenditions(CompressionPipeline.Job job, List<Rendition> renditions) throws IOException, ImageException {
+        byte[] preview = null;
+        try (ImageInputStream in = ImageCodecs.open(job.getFile())) {
+            ImageReader reader = getReader(in);
+            if (reader == null) {
+                throw new ImageException("No reader found for image " + job.getFile() + ".");
+            }
+
+            try {
+                job.format = ImageCodecs.getFormat(reader);
+                MemoryBudget.checkPixels(reader, maxPixels, job.getFile());
+                job.metadata = readMetadata(reader);
+                job.sourceWidth = reader.getWidth(0);
+                job.sourceHeight = reader.getHeight(0);
+                int[] largest = {0, 0};
+                long renditionPixels = 0;
+                for (Rendition r : renditions) {
+                    int[] size = r.fit(job.sourceWidth, job.sourceHeight);
+                    if ((long) size[0] * size[1] > (long) largest[0] * largest[1]) {
+                        largest = size;
+                    }
+                    renditionPixels += (long) size[0] * size[1];
+                }
+
+                preview = findPreview(job, job.sourceWidth, job.sourceHeight, largest[0], largest[1]);
+                if (preview != null) {
+                    int[] size = ExifThumbnail.getSize(preview);
+                    reserve(job, 4L * (size[0] * size[1] + renditionPixels + largest[0] * size[1]));
+                } else {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int subsampling = ImageUtils.getSubsampling(job.sourceWidth, job.sourceHeight, largest[0], largest[1]);
+                    if (subsampling > 1) {
+                        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    // Every rendition is held until written, plus the largest resize's intermediate, at up to 4 bytes a pixel
+                    long decodedHeight = (job.sourceHeight + subsampling - 1) / subsampling;
+                    reserve(job, MemoryBudget.estimateDecode(reader, subsampling) + 4L * (renditionPixels + largest[0] * decodedHeight));
+                    job.image = reader.read(0, param);
+                }
+            } finally {
+                ImageCodecs.release(reader);
+            }
+        }
+        if (preview != null) {
+            job.image = decodePreview(job, preview);
+        }
+    }
+
+    /**
+     * Resizes a decoded image to every rendition, largest first, each from the one before
+     *
+     * @param job        The image's job, holding the decoded image
+     * @param renditions The renditions to make, in the order to store them in the job
+     */
+    private void resizeRenditions(CompressionPipeline.Job job, List<Rendition> renditions) {
+        List<Integer> largestFirst = new ArrayList<>();
+        int[][] sizes = new int[renditions.size()][];
+        for (int r = 0; r < renditions.size(); r++) {
+            sizes[r] = renditions.get(r).fit(job.sourceWidth, job.sourceHeight);
+            largestFirst.add(r);
+        }
+        largestFirst.sort(Comparator.comparingLong((Integer r) -> (long) sizes[r][0] * sizes[r][1]).reversed());
+
+        job.renditions = new BufferedImage[renditions.size()];
+        BufferedImage previous = job.image;
+        for (int r : largestFirst) {
+            if (previous.getWidth() != sizes[r][0] || previous.getHeight() != sizes[r][1]) {
+                long start = System.nanoTime();
+                previous = Resizer.resize(previous, sizes[r][0], sizes[r][1], resizeFilter);
+                metrics.record(RunMetrics.Stage.RESIZE, start);
+            }
+            job.renditions[r] = previous;
+        }
+        job.image = null;
+    }
+
+    /**
+     * Works out the folder a rendition goes in
+     *
+     * @param rendition     The rendition
+     * @param outputPattern The folder pattern, with {name}, {width} and {height} to replace
+     * @return The folder
      */
-    public void compressImages(int width, int height, boolean maintainAspectRatio) throws IOException, ImageException {
-        int originalTargetWidth = width;
-        int originalTargetHeight = height;
-        for (File i : allImages) {
-            width = originalTargetWidth;
-            height = originalTargetHeight;
-
-            // Read the image
-            BufferedImage originalImage = ImageIO.read(i);
-            int type = originalImage.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : originalImage.getType();
-
-            // Calculate new width / height if aspect ration is 'on'
-            if (maintainAspectRatio) {
-                double wRatio = (double) width / (double) originalImage.getWidth();
-                double hRatio = (double) height / (double) originalImage.getHeight();
-
-                double transformRatio = Double.min(wRatio, hRatio);
-                width = (int) (transformRatio * (double) originalImage.getWidth());
-                height = (int) (transformRatio * (double) originalImage.getHeight());
-            }
-
-            // Resize into new buffered image
-            BufferedImage resizedImage = new BufferedImage(width, height, type);
-            Graphics2D g = resizedImage.createGraphics();
-            g.drawImage(originalImage, 0, 0, width, height, null);
-            g.dispose();
-            g.setComposite(AlphaComposite.Src);
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-            // Save the resized image
-            String formatName;
-            int index = i.getName().lastIndexOf('.');
-            if (index > 0) {
-                formatName = i.getName().substring(index + 1);
+    private static File getRenditionFolder(Rendition rendition, String outputPattern) {
+        return new File(outputPattern
+                .replace("{name}", rendition.getName())
+                .replace("{width}", Integer.toString(rendition.getMaxWidth()))
+                .replace("{height}", Integer.toString(rendition.getMaxHeight())));
+    }
+
+    /**
+     * Re-encodes all JPEGs at the given quality, keeping their resolution. An image is only replaced if that makes it
+     * at least minSaving smaller.
+     *
+     * @param quality   The JPEG quality, from 0 to 1
+     * @param minSaving The fraction of the original size that must be saved to replace it
+     * @return The number of images replaced
+     * @throws ImageException If interrupted before all the images were done
+     */
+    public int recompressImages(float quality, double minSaving) throws ImageException {
+        if (quality < 0 || quality > 1) {
+            throw new ImageException("Quality must be between 0 and 1.");
+        }
+        return recompress("quality " + quality, (image, metadata) -> ImageCodecs.encode(image, ImageCodecs.Format.JPEG, quality, metadata), minSaving);
+    }
+
+    /**
+     * Re-encodes all JPEGs at the highest quality that fits in the given size, keeping their resolution. The quality is
+     * found by binary search, so each image is encoded several times. An image is only replaced if that makes it at
+     * least minSaving smaller.
+     *
+     * @param targetSize The size to fit each image in, in bytes
+     * @param minSaving  The fraction of the original size that must be saved to replace it
+     * @return The number of images replaced
+     * @throws ImageException If interrupted before all the images were done
+     */
+    public int recompressImagesToSize(long targetSize, double minSaving) throws ImageException {
+        return recompress("size " + targetSize, (image, metadata) -> encodeJpegToSize(image, metadata, targetSize), minSaving);
+    }
+
+    /**
+     * Makes all JPEGs and PNGs smaller without changing their pixels. JPEGs have their segments rewritten instead of
+     * being decoded, and PNGs have their image data compressed every way that's worth trying at once on the search
+     * threads, keeping the smallest. Metadata is dropped by the metadata policy, and vendor extras and duplicates always
+     * are. An image is replaced whenever that saves anything, as there's no generation loss.
+     *
+     * @param optimiseTables Whether to also rebuild each JPEG's Huffman tables for its own data
+     * @return The number of images replaced
+     * @throws ImageException If interrupted before all the images were done
+     */
+    public int optimiseImages(boolean optimiseTables) throws ImageException {
+        AtomicInteger rewritten = new AtomicInteger();
+        ExecutorService search = Executors.newFixedThreadPool(searchThreads);
+        try {
+            List<CompressionPipeline.Job> failures = run("optimise" + (optimiseTables ? " tables" : "")
+                            + (metadataPolicy == MetadataPolicy.STRIP ? " stripping metadata" : ""),
+                    timed(RunMetrics.Stage.READ, job -> {
+                        long memory = 2 * job.getFile().length();
+                        try (ImageInputStream in = open(job)) {
+                            job.format = ImageCodecs.sniff(in);
+                            if (job.format == ImageCodecs.Format.PNG) {
+                                ImageReader reader = ImageCodecs.getReader(in, true, true);
+                                if (reader == null) {
+                                    throw new ImageException("No reader found for image " + job.getFile() + ".");
+                                }
+                                try {
+                                    MemoryBudget.checkPixels(reader, maxPixels, job.getFile());
+                                    // The pixels, and a filtered copy for each strategy being compressed at once
+                                    memory += (PngOptimiser.FILTERS + 1) * MemoryBudget.estimateDecode(reader, 1);
+                                } finally {
+                                    ImageCodecs.release(reader);
+                                }
+                            }
+                        }
+                        if (job.format != ImageCodecs.Format.JPEG && job.format != ImageCodecs.Format.PNG) {
+                            return;
+                        }
+                        // The original and the rewritten copy
+                        reserve(job, memory);
+                        job.encoded = job.source != null ? job.source : Files.readAllBytes(job.getFile().toPath());
+                        metrics.addBytesRead(job.encoded.length);
+                    }),
+                    timed(RunMetrics.Stage.ENCODE, job -> {
+                        if (job.encoded != null) {
+                            job.encoded = job.format == ImageCodecs.Format.PNG
+                                    ? PngOptimiser.optimise(job.encoded, metadataPolicy, search)
+                                    : JpegRewriter.rewrite(job.encoded, metadataPolicy, optimiseTables);
+                        }
+                    }),
+                    timed(RunMetrics.Stage.WRITE, job -> {
+                        if (job.encoded != null && job.encoded.length < job.getFile().length()) {
+                            ImageUtils.writeAtomically(job.getFile(), job.encoded);
+                            metrics.addBytesWritten(job.encoded.length);
+                            rewritten.incrementAndGet();
+                        }
+                    }));
+            recordFailures(failures);
+        } finally {
+            search.shutdownNow();
+        }
+        return rewritten.get();
+    }
+
+    /**
+     * Runs every JPEG through the pipeline, decoding, re-encoding in memory, then writing if it's small enough. JPEGs are
+     * told apart by their content, so other images are skipped before decoding whatever they're named.
+     *
+     * @param task      A description of the encoding, to tell runs apart in the journal
+     * @param encoder   Encodes a decoded image
+     * @param minSaving The fraction of the original size that must be saved to replace it
+     * @return The number of images replaced
+     */
+    private int recompress(String task, JpegEncoder encoder, double minSaving) throws ImageException {
+        AtomicInteger rewritten = new AtomicInteger();
+        List<CompressionPipeline.Job> failures = run("recompress " + task + " saving " + minSaving + getOutputSettings(),
+                timed(RunMetrics.Stage.DECODE, job -> {
+                    try (ImageInputStream in = open(job)) {
+                        job.format = ImageCodecs.sniff(in);
+                        if (job.format != ImageCodecs.Format.JPEG) {
+                            return;
+                        }
+                        metrics.addBytesRead(job.getFile().length());
+                        ImageReader reader = getReader(in);
+                        if (reader == null) {
+                            throw new ImageException("No reader found for image " + job.getFile() + ".");
+                        }
+                        try {
+                            MemoryBudget.checkPixels(reader, maxPixels, job.getFile());
+                            job.metadata = readMetadata(reader);
+                            // The re-encoded image is about as big as the original file
+                            reserve(job, MemoryBudget.estimateDecode(reader, 1) + job.getFile().length());
+                            job.image = reader.read(0);
+                        } finally {
+                            ImageCodecs.release(reader);
+                        }
+                    }
+                }),
+                timed(RunMetrics.Stage.ENCODE, job -> {
+                    if (job.image != null) {
+                        job.encoded = encoder.encode(job.image, job.metadata);
+                        job.image = null;
+                        job.metadata = null;
+                    }
+                }),
+                timed(RunMetrics.Stage.WRITE, job -> {
+                    // Not worth the generation loss unless it's a real saving
+                    long originalSize = job.getFile().length();
+                    if (job.encoded != null && job.encoded.length <= originalSize * (1 - minSaving)) {
+                        ImageUtils.writeAtomically(job.getFile(), job.encoded);
+                        metrics.addBytesWritten(job.encoded.length);
+                        rewritten.incrementAndGet();
+                    }
+                }));
+        recordFailures(failures);
+        return rewritten.get();
+    }
+
+    /**
+     * Encodes a JPEG at the highest quality that fits in the given size, or the lowest quality tried if none fit
+     *
+     * @param image      The image to encode
+     * @param metadata   The metadata it was read with, which counts towards the size, or null to write none
+     * @param targetSize The size to fit in, in bytes
+     * @return The encoded image
+     */
+    private static byte[] encodeJpegToSize(BufferedImage image, IIOMetadata metadata, long targetSize) throws IOException, ImageException {
+        float low = MIN_SEARCH_QUALITY;
+        float high = MAX_SEARCH_QUALITY;
+        byte[] best = null;
+        byte[] smallest = null;
+        for (int step = 0; step < QUALITY_SEARCH_STEPS; step++) {
+            float quality = (low + high) / 2;
+            byte[] encoded = ImageCodecs.encode(image, ImageCodecs.Format.JPEG, quality, metadata);
+            if (encoded.length <= targetSize) {
+                best = encoded;
+                low = quality;
             } else {
-                throw new ImageException("A image without an format name cannot be resized.");
+                high = quality;
+            }
+            if (smallest == null || encoded.length < smallest.length) {
+                smallest = encoded;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    /**
+     * Encodes an image in memory
+     */
+    private interface JpegEncoder {
+        byte[] encode(BufferedImage image, IIOMetadata metadata) throws IOException, ImageException;
+    }
+
+    /**
+     * Runs every image through the pipeline. If there's a journal, images an interrupted run already finished are
+     * skipped, and each image is logged once its last stage is done. The journal is removed once every image is done.
+     * If reads are adaptive, how many files are fetched at once is limited by a scheduler that adapts to the storage,
+     * and they're decoded on its CPU pool, which holds fetching back when decoding falls behind.
+     *
+     * @param task    A description of the work, so a journal from different work isn't carried on from
+     * @param read    Decodes an image
+     * @param process Works on a decoded image
+     * @param write   Saves a processed image
+     * @return The jobs that failed
+     * @throws ImageException If interrupted before all the images were done
+     */
+    private List<CompressionPipeline.Job> run(String task, CompressionPipeline.Stage read, CompressionPipeline.Stage process,
+                                              CompressionPipeline.Stage write) throws ImageException {
+        RunJournal journal = null;
+        if (journalFile != null) {
+            try {
+                journal = RunJournal.open(journalFile, task, resume);
+            } catch (IOException e) {
+                // Not fatal, the run just can't be carried on if it's stopped
+                System.out.println("Could not open journal " + journalFile + ", carrying on without one: " + e.getMessage());
+            }
+        }
+
+        List<File> todo = allImages;
+        if (journal != null && journal.getDoneCount() > 0) {
+            todo = new ArrayList<>();
+            for (File i : allImages) {
+                if (!journal.isDone(i)) {
+                    todo.add(i);
+                }
+            }
+            System.out.println("Resuming, skipping " + (allImages.size() - todo.size()) + " images already done.");
+        }
+
+        final RunJournal runJournal = journal;
+        MemoryBudget whole = memoryBudget;
+        List<CompressionPipeline.Job> failures;
+        try (AdaptiveScheduler scheduler = adaptiveReads ? AdaptiveScheduler.forHost() : null) {
+            CompressionPipeline.Stage firstStage = read;
+            if (scheduler != null) {
+                // Fetched files are held on top of the images being worked on, so they get the rest of the budget
+                MemoryBudget prefetchBudget = new MemoryBudget(whole.getCapacity() / PREFETCH_SHARE);
+                memoryBudget = new MemoryBudget(whole.getCapacity() - prefetchBudget.getCapacity());
+                firstStage = fetchedFirst(read, scheduler, prefetchBudget);
+            }
+            CompressionPipeline pipeline = new CompressionPipeline(readThreads, resizeThreads, writeThreads, metrics, memoryBudget);
+            failures = pipeline.run(todo, unlessShardLost(firstStage), process, unlessShardLost(job -> {
+                write.process(job);
+                if (runJournal != null) {
+                    runJournal.record(job.getFile());
+                }
+            }));
+        } finally {
+            memoryBudget = whole;
+        }
+
+        if (journal != null) {
+            try {
+                if (failures.isEmpty()) {
+                    journal.delete();
+                } else {
+                    // Keep it, so resuming only retries the failed images
+                    journal.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Could not save journal " + journalFile + ": " + e.getMessage());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Wraps a read stage so the file is first fetched into memory under the scheduler's I/O limit, then decoded on the
+     * scheduler's CPU pool. Only the fetch counts towards the limit, so it adapts to the storage rather than to how long
+     * decoding takes.
+     *
+     * @param read           The read stage, which decodes from the fetched contents
+     * @param scheduler      The scheduler to fetch and decode on
+     * @param prefetchBudget The budget fetched files are held in until they're decoded
+     * @return The wrapped stage
+     */
+    private static CompressionPipeline.Stage fetchedFirst(CompressionPipeline.Stage read, AdaptiveScheduler scheduler,
+                                                          MemoryBudget prefetchBudget) {
+        return job -> {
+            long reserved = 0;
+            try {
+                reserved = prefetchBudget.acquire(job.getFile().length());
+                scheduler.enter();
+                long start = System.nanoTime();
+                try {
+                    job.source = Files.readAllBytes(job.getFile().toPath());
+                } finally {
+                    scheduler.exit(System.nanoTime() - start);
+                }
+                scheduler.cpu(() -> {
+                    read.process(job);
+                    return null;
+                }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ImageException("Interrupted while reading " + job.getFile() + ".");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof ImageException) {
+                    throw (ImageException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw (Error) cause;
+            } finally {
+                job.source = null;
+                prefetchBudget.release(reserved);
+            }
+        };
+    }
+
+    /**
+     * Opens an image to decode, from its fetched contents if it was fetched ahead
+     *
+     * @param job The image's job
+     * @return The stream, which should be closed after use
+     */
+    private static ImageInputStream open(CompressionPipeline.Job job) throws IOException {
+        return job.source != null ? ImageCodecs.open(job.source) : ImageCodecs.open(job.getFile());
+    }
+
+    /**
+     * Wraps a pipeline stage so it fails the image rather than working on it once the shard being worked on has been
+     * taken over by another worker, which is working on the same images
+     *
+     * @param work The work the stage does
+     * @return The checked stage
+     */
+    private CompressionPipeline.Stage unlessShardLost(CompressionPipeline.Stage work) {
+        return job -> {
+            BooleanSupplier lost = shardLost;
+            if (lost != null && lost.getAsBoolean()) {
+                throw new ImageException("Another worker has taken over the shard with " + job.getFile() + ".");
             }
-            ImageIO.write(resizedImage, formatName, i);
+            work.process(job);
+        };
+    }
+
+    /**
+     * Wraps a pipeline stage so the time it takes per image is recorded, whether it succeeds or not
+     *
+     * @param stage The stage to record the time against
+     * @param work  The work the stage does
+     * @return The timed stage
+     */
+    private CompressionPipeline.Stage timed(RunMetrics.Stage stage, CompressionPipeline.Stage work) {
+        return job -> {
+            long start = System.nanoTime();
+            try {
+                work.process(job);
+            } finally {
+                metrics.record(stage, start);
+            }
+        };
+    }
+
+    /**
+     * @return How images are written, to tell runs apart in the journal
+     */
+    private String getOutputSettings() {
+        return (metadataPolicy == MetadataPolicy.STRIP ? " stripping metadata" : "") + (previewMode ? " from previews" : "");
+    }
+
+    /**
+     * Reports images that failed and adds them to the failed list
+     *
+     * @param failures The failed jobs
+     */
+    private void recordFailures(List<CompressionPipeline.Job> failures) {
+        for (CompressionPipeline.Job job : failures) {
+            System.out.println("Could not compress " + job.getFile() + ": " + job.getFailure());
+            failedImages.add(job.getFile());
         }
     }
+
+    public List<File> getAllImages() {
+        return allImages;
+    }
+
+    public List<File> getFailedImages() {
+        return failedImages;
+    }
+
+    public ResizeFilter getResizeFilter() {
+        return resizeFilter;
+    }
+
+    /**
+     * @param resizeFilter The filter to resize images with. Box is fastest, Lanczos3 sharpest.
+     */
+    public void setResizeFilter(ResizeFilter resizeFilter) {
+        this.resizeFilter = resizeFilter;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget.getCapacity();
+    }
+
+    /**
+     * @param bytes The most memory images being worked on can take at once, going by their headers. Fewer images are
+     *              worked on at once when they're big, and an image bigger than this is worked on alone.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = new MemoryBudget(bytes);
+    }
+
+    public long getMaxPixels() {
+        return maxPixels;
+    }
+
+    /**
+     * @param maxPixels The most pixels an image can have, going by its header. Bigger images fail without being decoded.
+     */
+    public void setMaxPixels(long maxPixels) {
+        this.maxPixels = maxPixels;
+    }
+
+    public MetadataPolicy getMetadataPolicy() {
+        return metadataPolicy;
+    }
+
+    /**
+     * @param metadataPolicy Whether rewritten images keep the original's EXIF, XMP, comments and the like
+     */
+    public void setMetadataPolicy(MetadataPolicy metadataPolicy) {
+        this.metadataPolicy = metadataPolicy;
+    }
+
+    public boolean isPreviewMode() {
+        return previewMode;
+    }
+
+    /**
+     * @param previewMode If set, resizes and renditions start from the preview embedded in a JPEG's EXIF data whenever
+     *                    it's at least as big as what's being made and shows the whole image, skipping the full decode
+     */
+    public void setPreviewMode(boolean previewMode) {
+        this.previewMode = previewMode;
+    }
+
+    public int getSearchThreads() {
+        return searchThreads;
+    }
+
+    /**
+     * @param searchThreads How many ways of compressing a PNG losslessly to try at once
+     */
+    public void setSearchThreads(int searchThreads) throws ImageException {
+        if (searchThreads < 1) {
+            throw new ImageException("At least one search thread is needed.");
+        }
+        this.searchThreads = searchThreads;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * @param journalFile A file to log finished images in while a run is going, or null to not keep one
+     */
+    public void setJournalFile(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * @param resume If set, images the journal says were finished by an interrupted run (and haven't changed since) are
+     *               skipped, as long as the journal is from the same task
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @return The counts and timings for this compressor's work so far
+     */
+    public RunMetrics getMetrics() {
+        return metrics;
+    }
 }
@@ -0,0 +1,124 @@
+package me.tombclarke.imageutils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A BK-tree of 64 bit hashes, for finding every hash within a Hamming distance of another without comparing against
+ * them all. Each child is filed under its distance from its parent, so by the triangle inequality a search only has to
+ * follow children whose distance is within the search radius of the query's distance to the parent. For the small
+ * radii used for near-duplicates, that visits a small fraction of the tree.
+ *
+ * @param <T> The values stored with each hash
+ * @author Tom Clarke
+ */
+final class BkTree<T> {
+
+    private Node<T> root;
+    private int size;
+
+    /**
+     * Adds a hash to the tree. The same hash can be added more than once.
+     *
+     * @param hash  The hash
+     * @param value The value to return when the hash is found
+     */
+    void add(long hash, T value) {
+        Node<T> added = new Node<>(hash, value);
+        size++;
+        if (root == null) {
+            root = added;
+            return;
+        }
+
+        Node<T> node = root;
+        while (true) {
+            int d = PerceptualHash.distance(node.hash, hash);
+            Node<T> child = node.child(d);
+            if (child == null) {
+                node.addChild(d, added);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Finds every value whose hash is within a distance of the given one
+     *
+     * @param hash        The hash to search around
+     * @param maxDistance The most bits a hash can differ by
+     * @return The values found, in no particular order
+     */
+    List<T> search(long hash, int maxDistance) {
+        List<T> found = new ArrayList<>();
+        if (root == null) {
+            return found;
+        }
+
+        Deque<Node<T>> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            Node<T> node = toVisit.pop();
+            int d = PerceptualHash.distance(node.hash, hash);
+            if (d <= maxDistance) {
+                found.add(node.value);
+            }
+            for (int i = 0; i < node.childCount; i++) {
+                if (Math.abs(node.childDistances[i] - d) <= maxDistance) {
+                    toVisit.push(node.childAt(i));
+                }
+            }
+        }
+        return found;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static final class Node<T> {
+
+        private static final byte[] NO_DISTANCES = new byte[0];
+
+        private final long hash;
+        private final T value;
+        // Most nodes have few children, so they're kept in small arrays rather than one slot per possible distance
+        private byte[] childDistances = NO_DISTANCES;
+        private Node<?>[] children;
+        private int childCount;
+
+        Node(long hash, T value) {
+            this.hash = hash;
+            this.value = value;
+        }
+
+        Node<T> child(int distance) {
+            for (int i = 0; i < childCount; i++) {
+                if (childDistances[i] == distance) {
+                    return childAt(i);
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<T> childAt(int i) {
+            return (Node<T>) children[i];
+        }
+
+        void addChild(int distance, Node<T> child) {
+            if (childCount == childDistances.length) {
+                int capacity = Math.max(2, childCount * 2);
+                childDistances = Arrays.copyOf(childDistances, capacity);
+                children = children == null ? new Node<?>[capacity] : Arrays.copyOf(children, capacity);
+            }
+            childDistances[childCount] = (byte) distance;
+            children[childCount] = child;
+            childCount++;
+        }
+    }
+}
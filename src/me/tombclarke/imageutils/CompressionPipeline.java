@@ -0,0 +1,273 @@
+package me.tombclarke.imageutils;
+
+import javax.imageio.metadata.IIOMetadata;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs images through read, process (e.g. resize) and write stages, each on its own threads, so disk and CPU work
+ * overlap.
+ * <p>
+ * The queues between stages only hold as many images as the next stage has threads, so a fast reader waits for the
+ * processing threads rather than filling the heap with decoded images. An image that fails in any stage is set aside and the
+ * rest carry on. Memory a stage reserves for a job is given back once the job is written or fails.
+ *
+ * @author Tom Clarke
+ */
+final class CompressionPipeline {
+
+    /**
+     * One step of the work done on an image
+     */
+    interface Stage {
+        void process(Job job) throws IOException, ImageException;
+    }
+
+    /**
+     * An image on its way through the pipeline. Each stage reads what the one before it left.
+     */
+    static final class Job {
+
+        private final int index;
+        private final File file;
+        private Exception failure;
+
+        /**
+         * The image being worked on, replaced by each stage that changes it
+         */
+        BufferedImage image;
+        /**
+         * The size the image should end up
+         */
+        int width;
+        int height;
+        /**
+         * The encoded image, for stages that encode in memory before writing
+         */
+        byte[] encoded;
+        /**
+         * The image file's contents, if they were fetched before the read stage decodes them
+         */
+        byte[] source;
+        /**
+         * The format the image was decoded from, going by its content
+         */
+        ImageCodecs.Format format;
+        /**
+         * The metadata the image was read with, if it's being kept
+         */
+        IIOMetadata metadata;
+        /**
+         * The size of the original image, before any subsampled decode
+         */
+        int sourceWidth;
+        int sourceHeight;
+        /**
+         * Copies of the image at other sizes, for stages that make several
+         */
+        BufferedImage[] renditions;
+        /**
+         * The bytes of the memory budget held for this image
+         */
+        long reserved;
+
+        Job(int index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * @return Why the image failed, or null if it didn't
+         */
+        Exception getFailure() {
+            return failure;
+        }
+    }
+
+    private static final Job END = new Job(-1, null);
+
+    private final int readThreads;
+    private final int processThreads;
+    private final int writeThreads;
+    private final RunMetrics metrics;
+    private final MemoryBudget budget;
+
+    /**
+     * @param readThreads    How many images to read and decode at once
+     * @param processThreads How many images to process at once
+     * @param writeThreads   How many images to write at once
+     * @param metrics        Where to count images as they start and finish
+     * @param budget         The budget jobs reserve memory from
+     */
+    CompressionPipeline(int readThreads, int processThreads, int writeThreads, RunMetrics metrics, MemoryBudget budget) {
+        this.readThreads = readThreads;
+        this.processThreads = processThreads;
+        this.writeThreads = writeThreads;
+        this.metrics = metrics;
+        this.budget = budget;
+    }
+
+    /**
+     * Runs every file through the stages, waiting until they're all done
+     *
+     * @param files   The images to process
+     * @param read    Decodes an image
+     * @param process Resizes or otherwise works on a decoded image
+     * @param write   Saves a processed image
+     * @return The jobs that failed, in the same order as the files
+     * @throws ImageException If interrupted before all the images were done
+     */
+    List<Job> run(List<File> files, Stage read, Stage process, Stage write) throws ImageException {
+        BlockingQueue<Job> toProcess = new ArrayBlockingQueue<>(processThreads);
+        BlockingQueue<Job> toWrite = new ArrayBlockingQueue<>(writeThreads);
+        Queue<Job> failed = new ConcurrentLinkedQueue<>();
+        AtomicInteger nextFile = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(readThreads + processThreads + writeThreads);
+        List<Future<?>> workers = new ArrayList<>();
+        try {
+            AtomicInteger readersLeft = new AtomicInteger(readThreads);
+            for (int i = 0; i < readThreads; i++) {
+                workers.add(submit(pool, () -> {
+                    int index;
+                    while ((index = nextFile.getAndIncrement()) < files.size()) {
+                        Job job = new Job(index, files.get(index));
+                        metrics.fileStarted();
+                        if (process(read, job, failed)) {
+                            toProcess.put(job);
+                        }
+                    }
+                    if (readersLeft.decrementAndGet() == 0) {
+                        toProcess.put(END);
+                    }
+                }));
+            }
+            AtomicInteger processorsLeft = new AtomicInteger(processThreads);
+            for (int i = 0; i < processThreads; i++) {
+                workers.add(submit(pool, () -> drain(toProcess, process, toWrite, processorsLeft, failed)));
+            }
+            AtomicInteger writersLeft = new AtomicInteger(writeThreads);
+            for (int i = 0; i < writeThreads; i++) {
+                workers.add(submit(pool, () -> drain(toWrite, write, null, writersLeft, failed)));
+            }
+
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImageException("Interrupted while compressing images.");
+        } catch (ExecutionException e) {
+            // Per-image problems are caught in process, so this is something like running out of memory
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Failed while compressing images.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<Job> failures = new ArrayList<>(failed);
+        failures.sort(Comparator.comparingInt(j -> j.index));
+        return failures;
+    }
+
+    /**
+     * Takes jobs from a queue until the previous stage has finished, passing them on to the next
+     *
+     * @param in         The queue to take jobs from
+     * @param stage      The stage to run
+     * @param out        The queue for the next stage, or null if this is the last
+     * @param stageLeft  The number of workers in this stage still running
+     * @param failed     Where to put jobs that failed
+     */
+    private void drain(BlockingQueue<Job> in, Stage stage, BlockingQueue<Job> out,
+                       AtomicInteger stageLeft, Queue<Job> failed) throws InterruptedException {
+        Job job;
+        while ((job = in.take()) != END) {
+            if (process(stage, job, failed)) {
+                if (out != null) {
+                    out.put(job);
+                } else {
+                    finish(job);
+                    metrics.fileFinished(false);
+                }
+            }
+        }
+        // Leave the end marker for the rest of this stage's workers
+        in.put(END);
+        if (stageLeft.decrementAndGet() == 0 && out != null) {
+            out.put(END);
+        }
+    }
+
+    /**
+     * Gives back the memory held for a job that's done with
+     */
+    private void finish(Job job) {
+        budget.release(job.reserved);
+        job.reserved = 0;
+    }
+
+    /**
+     * A worker's loop, which can be interrupted while waiting on a queue
+     */
+    private interface Worker {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Starts a worker. If it stops early for any reason the whole pool is stopped, as the other stages would
+     * otherwise wait forever for it.
+     */
+    private static Future<?> submit(ExecutorService pool, Worker worker) {
+        return pool.submit(() -> {
+            try {
+                worker.run();
+            } catch (Throwable t) {
+                pool.shutdownNow();
+                throw t;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Runs a stage on a job, catching anything the image itself could have caused
+     *
+     * @return True if the job can carry on to the next stage
+     */
+    private boolean process(Stage stage, Job job, Queue<Job> failed) {
+        try {
+            stage.process(job);
+            return true;
+        } catch (Exception e) {
+            job.failure = e;
+            job.image = null;
+            job.encoded = null;
+            job.source = null;
+            job.renditions = null;
+            finish(job);
+            failed.add(job);
+            metrics.fileFinished(true);
+            return false;
+        }
+    }
+}
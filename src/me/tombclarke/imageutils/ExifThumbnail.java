@@ -0,0 +1,213 @@
+package me.tombclarke.imageutils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Finds the small JPEG preview cameras embed in a JPEG's EXIF data, so a thumbnail can be made from it without decoding
+ * the full image. Only the segments before the image data are read, so finding one costs a few kilobytes of I/O.
+ * <p>
+ * ImageIO's JPEG reader only knows about JFIF thumbnails, which hardly anything writes, so the EXIF segment is walked
+ * here: the TIFF header, past the first IFD to the second, which points at the preview's bytes.
+ *
+ * @author Tom Clarke
+ */
+final class ExifThumbnail {
+
+    // How far a preview's aspect ratio can be from the image's before it's assumed to be letterboxed or cropped
+    private static final double MAX_RATIO_ERROR = 0.02;
+
+    private static final int SOI = 0xFFD8;
+    private static final int EOI = 0xFFD9;
+    private static final int SOS = 0xFFDA;
+    private static final int APP1 = 0xFFE1;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int TAG_JPEG_OFFSET = 0x0201;
+    private static final int TAG_JPEG_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+
+    private ExifThumbnail() {
+        // Nothing to do here
+    }
+
+    /**
+     * Finds a JPEG's embedded preview
+     *
+     * @param file The JPEG
+     * @return The preview, itself a JPEG, or null if there isn't one
+     * @throws IOException If the file couldn't be read
+     */
+    static byte[] find(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedShort() != SOI) {
+                return null;
+            }
+            // Segments are at most 64 KB, and reading through is as cheap as skipping on a buffered stream
+            byte[] skip = new byte[0xFFFF];
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == SOS || marker == EOI) {
+                    // Into the image data without finding one
+                    return null;
+                }
+                if (marker == 0xFFFF) {
+                    // Fill byte
+                    continue;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker == APP1) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    byte[] thumbnail = fromExif(segment);
+                    if (thumbnail != null) {
+                        return thumbnail;
+                    }
+                } else {
+                    in.readFully(skip, 0, length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a JPEG's size from its frame header, without decoding it
+     *
+     * @param jpeg The JPEG
+     * @return The width and height, or null if there's no frame header
+     */
+    static int[] getSize(byte[] jpeg) {
+        int p = 2;
+        while (p + 9 < jpeg.length) {
+            if ((jpeg[p] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = jpeg[p + 1] & 0xFF;
+            if (marker == 0xFF) {
+                p++;
+                continue;
+            }
+            // Every SOF marker except DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                return new int[]{readShort(jpeg, p + 7, false), readShort(jpeg, p + 5, false)};
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                return null;
+            }
+            p += 2 + readShort(jpeg, p + 2, false);
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a preview shows the whole image, and has enough pixels to be shrunk to a size rather than enlarged
+     *
+     * @param thumbnail    The preview's width and height
+     * @param sourceWidth  The full image's width
+     * @param sourceHeight The full image's height
+     * @param width        The width that will be made from it
+     * @param height       The height that will be made from it
+     * @return True if the preview can stand in for the full image
+     */
+    static boolean covers(int[] thumbnail, int sourceWidth, int sourceHeight, int width, int height) {
+        if (thumbnail == null || thumbnail[0] < width || thumbnail[1] < height) {
+            return false;
+        }
+        // Many cameras pad previews to 4:3 whatever the image's shape
+        double ratio = (double) thumbnail[0] / thumbnail[1];
+        double sourceRatio = (double) sourceWidth / sourceHeight;
+        return Math.abs(ratio - sourceRatio) <= sourceRatio * MAX_RATIO_ERROR;
+    }
+
+    /**
+     * Finds the preview in an APP1 segment, if it's EXIF and has one
+     */
+    private static byte[] fromExif(byte[] segment) {
+        if (segment.length < EXIF_HEADER.length + 8) {
+            return null;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[i] != EXIF_HEADER[i]) {
+                return null;
+            }
+        }
+
+        // Offsets in the TIFF structure are from its header
+        int tiff = EXIF_HEADER.length;
+        boolean little;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            little = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            little = false;
+        } else {
+            return null;
+        }
+
+        // IFD0 describes the image, and ends with a link to IFD1, which describes the preview
+        long ifd0 = readInt(segment, tiff + 4, little);
+        if (ifd0 < 8 || tiff + ifd0 + 2 > segment.length) {
+            return null;
+        }
+        int entries = readShort(segment, (int) (tiff + ifd0), little);
+        int next = (int) (tiff + ifd0 + 2 + 12L * entries);
+        if (next + 4 > segment.length) {
+            return null;
+        }
+        long ifd1 = readInt(segment, next, little);
+        if (ifd1 < 8 || tiff + ifd1 + 2 > segment.length) {
+            return null;
+        }
+
+        int count = readShort(segment, (int) (tiff + ifd1), little);
+        long offset = -1;
+        long length = -1;
+        for (int e = 0; e < count; e++) {
+            int entry = (int) (tiff + ifd1 + 2 + 12L * e);
+            if (entry + 12 > segment.length) {
+                return null;
+            }
+            int tag = readShort(segment, entry, little);
+            if (tag == TAG_JPEG_OFFSET || tag == TAG_JPEG_LENGTH) {
+                long value = readShort(segment, entry + 2, little) == TYPE_SHORT
+                        ? readShort(segment, entry + 8, little)
+                        : readInt(segment, entry + 8, little);
+                if (tag == TAG_JPEG_OFFSET) {
+                    offset = value;
+                } else {
+                    length = value;
+                }
+            }
+        }
+        if (offset <= 0 || length <= 4 || tiff + offset + length > segment.length) {
+            return null;
+        }
+
+        int start = (int) (tiff + offset);
+        if ((segment[start] & 0xFF) != 0xFF || (segment[start + 1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        byte[] thumbnail = new byte[(int) length];
+        System.arraycopy(segment, start, thumbnail, 0, thumbnail.length);
+        return thumbnail;
+    }
+
+    private static int readShort(byte[] b, int p, boolean little) {
+        return little
+                ? (b[p] & 0xFF) | (b[p + 1] & 0xFF) << 8
+                : (b[p] & 0xFF) << 8 | (b[p + 1] & 0xFF);
+    }
+
+    private static long readInt(byte[] b, int p, boolean little) {
+        return little
+                ? (b[p] & 0xFFL) | (b[p + 1] & 0xFFL) << 8 | (b[p + 2] & 0xFFL) << 16 | (b[p + 3] & 0xFFL) << 24
+                : (b[p] & 0xFFL) << 24 | (b[p + 1] & 0xFFL) << 16 | (b[p + 2] & 0xFFL) << 8 | (b[p + 3] & 0xFFL);
+    }
+}
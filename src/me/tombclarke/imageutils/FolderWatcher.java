@@ -0,0 +1,287 @@
+package me.tombclarke.imageutils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches a folder and its subfolders for images that are created or changed, handing them over in batches once
+ * they've stopped being written to.
+ * <p>
+ * An image is ready once no events have arrived for it for the settle time, and its size and last modified time are
+ * the same as when it was last looked at, which catches writers that don't cause an event for every write. New
+ * subfolders are watched as they appear, and any images already in them are picked up. If the operating system drops
+ * events, every image changed since watching started is checked again.
+ *
+ * @author Tom Clarke
+ */
+final class FolderWatcher implements Closeable {
+
+    /**
+     * Something to do with each batch of ready images
+     */
+    interface Handler {
+        void handle(List<File> images) throws IOException, ImageException;
+    }
+
+    private final Path root;
+    private final long settleNanos;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+    private final Set<Path> excluded = new HashSet<>();
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private final Map<Path, Snapshot> handled = new HashMap<>();
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * @param root         The folder to watch
+     * @param settleMillis How long an image must go unchanged before it's ready
+     * @param excluded     Folders not to watch, such as where results are written
+     * @throws IOException If the folder couldn't be watched
+     */
+    FolderWatcher(Path root, long settleMillis, List<Path> excluded) throws IOException {
+        this.root = root;
+        this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        for (Path p : excluded) {
+            this.excluded.add(p.toAbsolutePath().normalize());
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        register(root, false);
+    }
+
+    /**
+     * Watches until the thread is interrupted or the watcher is closed, passing ready images to the handler on this
+     * thread. Files the handler writes are not handed back to it, unless they're changed again.
+     *
+     * @param handler What to do with each batch of ready images
+     */
+    void watch(Handler handler) {
+        long pollMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(settleNanos) / 2);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    processEvents(key);
+                    key = watchService.poll();
+                }
+
+                List<File> ready = takeReady();
+                if (!ready.isEmpty()) {
+                    try {
+                        handler.handle(ready);
+                    } catch (IOException | ImageException e) {
+                        // Keep watching, the next batch may be fine
+                        System.out.println("Could not process " + ready.size() + " new images: " + e.getMessage());
+                    }
+                    // Remember what the handler left, so its own writes don't come back round
+                    for (File f : ready) {
+                        Snapshot after = Snapshot.of(f.toPath());
+                        if (after != null) {
+                            handled.put(f.toPath(), after);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Closed, so stop
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void processEvents(WatchKey key) {
+        Path dir = watched.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan();
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path p = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                // Writers often delete and recreate a file, so wait to see if it comes back
+                if (ImageUtils.isSupportedImage(p)) {
+                    touch(p);
+                }
+            } else if (Files.isDirectory(p)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    register(p, true);
+                }
+            } else if (ImageUtils.isSupportedImage(p)) {
+                touch(p);
+            }
+        }
+        if (!key.reset()) {
+            watched.remove(key);
+        }
+    }
+
+    /**
+     * Watches a folder and its subfolders
+     *
+     * @param dir        The folder
+     * @param queueFiles Whether images already there are new (true for folders that appear while watching, as they
+     *                   may have been filled before they could be watched)
+     */
+    private void register(Path dir, boolean queueFiles) {
+        if (isExcluded(dir)) {
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watched.put(key, dir);
+            try (Stream<Path> entries = Files.list(dir)) {
+                for (Iterator<Path> it = entries.iterator(); it.hasNext(); ) {
+                    Path p = it.next();
+                    if (Files.isDirectory(p)) {
+                        register(p, queueFiles);
+                    } else if (queueFiles && ImageUtils.isSupportedImage(p)) {
+                        touch(p);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not watch " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues every image changed since watching started, after events were lost
+     */
+    private void rescan() {
+        try (Stream<Path> images = ImageUtils.streamImages(root)) {
+            images.filter(p -> !isExcluded(p) && p.toFile().lastModified() >= startMillis).forEach(this::touch);
+        }
+    }
+
+    private boolean isExcluded(Path p) {
+        Path absolute = p.toAbsolutePath().normalize();
+        for (Path e : excluded) {
+            if (absolute.startsWith(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notes that an image has just changed
+     */
+    private void touch(Path p) {
+        Pending entry = pending.get(p);
+        if (entry == null) {
+            entry = new Pending();
+            pending.put(p, entry);
+        }
+        entry.lastEvent = System.nanoTime();
+    }
+
+    /**
+     * @return The pending images that have settled, sorted so batches are handled in a repeatable order
+     */
+    private List<File> takeReady() {
+        List<File> ready = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Pending> e = it.next();
+            Pending entry = e.getValue();
+            if (now - entry.lastEvent < settleNanos) {
+                continue;
+            }
+
+            Snapshot current = Snapshot.of(e.getKey());
+            if (current == null) {
+                // Gone, or can't be read
+                it.remove();
+                handled.remove(e.getKey());
+            } else if (!current.equals(entry.lastSeen)) {
+                // Still changing without events, so look again after another settle time
+                entry.lastSeen = current;
+                entry.lastEvent = now;
+            } else {
+                it.remove();
+                if (!current.equals(handled.get(e.getKey()))) {
+                    ready.add(e.getKey().toFile());
+                }
+            }
+        }
+        Collections.sort(ready);
+        return ready;
+    }
+
+    private static final class Pending {
+
+        private long lastEvent;
+        private Snapshot lastSeen;
+    }
+
+    /**
+     * A file's size and last modified time, to tell whether it has changed
+     */
+    private static final class Snapshot {
+
+        private final long size;
+        private final long lastModified;
+
+        private Snapshot(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return The file's snapshot, or null if it isn't a readable regular file
+         */
+        static Snapshot of(Path p) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                if (!attrs.isRegularFile() || !Files.isReadable(p)) {
+                    return null;
+                }
+                return new Snapshot(attrs.size(), attrs.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Snapshot)) {
+                return false;
+            }
+            Snapshot other = (Snapshot) o;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package me.tombclarke.imageutils;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Scores how likely a decodable image is to be half corrupt, from 0 (looks fine) to 1 (mostly broken).
+ * <p>
+ * Two things are looked for in a single pass over the rows. Truncated JPEGs decode with the missing rows filled in a
+ * single flat colour, so for a JPEG that shows other signs of being cut short (no EOI marker at the end, or a warning
+ * from the decoder) the fraction of the image covered by identical flat rows at the bottom counts towards the score
+ * (unless the same flat colour is at the top too, which is more likely letterboxing). Plenty of good images end in a
+ * flat colour, e.g. product shots on white or screenshots with a plain footer, so a flat bottom alone never counts.
+ * Corrupt scan data decodes as blocks of smeared noise, where neighbouring pixels differ about as much as the band
+ * varies overall, so the fraction of horizontal bands like that counts too. Heavily textured or dithered photos have
+ * bands like that too, but once scan data goes wrong it stays wrong to the end of the image, so for an image with no
+ * sign of being cut short only the unbroken run of noisy bands at the bottom counts.
+ *
+ * @author Tom Clarke
+ */
+final class HalfCorruptionDetector {
+
+    static final double DEFAULT_THRESHOLD = 0.1;
+
+    private static final int BANDS = 32;
+    // Natural images change far less between neighbours than across a whole band, noise doesn't
+    private static final double NOISE_GRADIENT_RATIO = 0.5;
+    // Bands flatter than this (as a standard deviation) can't be noise
+    private static final double NOISE_MIN_DEVIATION = 8;
+
+    // Screening looks below this fraction of the height, as truncation shows at the bottom
+    private static final double SCREEN_TOP = 0.25;
+    // Screening keeps every nth row and column, so the shorter side comes out around this size
+    private static final int SCREEN_SIZE = 512;
+    // Skipping pixels makes texture look more like noise, so screening needs more before it's suspicious
+    private static final double SCREEN_NOISE_GRADIENT_RATIO = 0.8;
+
+    // How far from the end of a JPEG to look for its EOI marker, allowing for a little padding after it
+    private static final int EOI_SEARCH_BYTES = 1024;
+
+    private HalfCorruptionDetector() {
+        // Nothing to do here
+    }
+
+    /**
+     * Scores an image
+     *
+     * @param image     The decoded image
+     * @param truncated Whether there's other evidence the image was cut short, so a flat bottom counts too
+     * @return The score, from 0 to 1
+     */
+    static double score(BufferedImage image, boolean truncated) {
+        return score(image, truncated, NOISE_GRADIENT_RATIO);
+    }
+
+    /**
+     * Scores an image
+     *
+     * @param image      The decoded image
+     * @param truncated  Whether there's other evidence the image was cut short, so a flat bottom counts too
+     * @param noiseRatio How large the neighbour gradient must be, relative to the deviation, for a band to be noise
+     * @return The score, from 0 to 1
+     */
+    private static double score(BufferedImage image, boolean truncated, double noiseRatio) {
+        final int w = image.getWidth();
+        final int h = image.getHeight();
+        if (w == 0 || h == 0) {
+            return 1;
+        }
+
+        int[] row = new int[w];
+        int[] prev = new int[w];
+        int[] scratch = new int[w];
+
+        int bands = Math.min(BANDS, h);
+        long[] sum = new long[bands];
+        long[] sumSq = new long[bands];
+        long[] gradientX = new long[bands];
+        long[] gradientY = new long[bands];
+
+        int headRows = 0;
+        int headValue = -1;
+        int tailRows = 0;
+        int tailValue = -1;
+
+        for (int y = 0; y < h; y++) {
+            Luma.readRow(image, y, row, scratch);
+            int band = (int) ((long) y * bands / h);
+            boolean firstInBand = y == 0 || (int) ((long) (y - 1) * bands / h) != band;
+
+            boolean uniform = true;
+            int first = row[0];
+            long s = 0;
+            long sq = 0;
+            long gx = 0;
+            long gy = 0;
+            for (int x = 0; x < w; x++) {
+                int l = row[x];
+                s += l;
+                sq += l * l;
+                if (l != first) {
+                    uniform = false;
+                }
+                if (x > 0) {
+                    gx += Math.abs(l - row[x - 1]);
+                }
+                if (!firstInBand) {
+                    gy += Math.abs(l - prev[x]);
+                }
+            }
+            sum[band] += s;
+            sumSq[band] += sq;
+            gradientX[band] += gx;
+            gradientY[band] += gy;
+
+            // Track runs of identical flat rows at the top and bottom
+            if (uniform && headRows == y && (y == 0 || first == headValue)) {
+                headRows++;
+                headValue = first;
+            }
+            if (uniform && tailRows > 0 && first == tailValue) {
+                tailRows++;
+            } else if (uniform) {
+                tailRows = 1;
+                tailValue = first;
+            } else {
+                tailRows = 0;
+            }
+
+            int[] t = prev;
+            prev = row;
+            row = t;
+        }
+
+        if (!truncated) {
+            tailRows = 0;
+        } else if (headRows > 0 && headRows < h && headValue == tailValue) {
+            // A whole image of one colour is still counted, as that's what a JPEG cut off after its header gives
+            tailRows = Math.max(0, tailRows - headRows);
+        }
+
+        boolean[] noisy = new boolean[bands];
+        for (int b = 0; b < bands; b++) {
+            int y0 = (int) (((long) b * h + bands - 1) / bands);
+            int y1 = (int) (((long) (b + 1) * h + bands - 1) / bands);
+            long pixels = (long) (y1 - y0) * w;
+            if (pixels == 0) {
+                continue;
+            }
+            double mean = (double) sum[b] / pixels;
+            double deviation = Math.sqrt(Math.max(0, (double) sumSq[b] / pixels - mean * mean));
+            double gradient = Math.max((double) gradientX[b] / ((long) (y1 - y0) * Math.max(1, w - 1)),
+                    y1 - y0 > 1 ? (double) gradientY[b] / ((long) (y1 - y0 - 1) * w) : 0);
+            noisy[b] = deviation >= NOISE_MIN_DEVIATION && gradient >= noiseRatio * deviation;
+        }
+
+        int noisyBands = 0;
+        if (truncated) {
+            for (boolean n : noisy) {
+                noisyBands += n ? 1 : 0;
+            }
+        } else {
+            // Only the noise running to the bottom, as broken scan data smears on to the end of the image, where
+            // texture or dither can be anywhere
+            for (int b = bands - 1; b >= 0 && noisy[b]; b--) {
+                noisyBands++;
+            }
+        }
+
+        return Math.min(1, (double) tailRows / h + (double) noisyBands / bands);
+    }
+
+    /**
+     * Cheaply checks whether an image is worth scoring in full. Only the lower part of the image is decoded, keeping
+     * every nth row and column, so a sample of thin bands weighted to the bottom is all that's looked at. Any flat rows
+     * or strong noise in them makes the image suspicious, leaving the full score to decide whether a flat bottom is
+     * backed up by other evidence.
+     * <p>
+     * JPEG scan data is sequential, so the decoder still works through the file up to the bottom, but the skipped rows
+     * and columns are never converted or stored. That roughly halves the time of a full decode and needs a fraction of
+     * the memory.
+     *
+     * @param reader A reader set up on the image, which must allow seeking back if the image may be read again
+     * @return True if the sample looked suspicious, so the whole image should be checked
+     * @throws IOException If the sample couldn't be decoded
+     */
+    static boolean screen(ImageReader reader) throws IOException {
+        int w = reader.getWidth(0);
+        int h = reader.getHeight(0);
+        int top = (int) (h * SCREEN_TOP);
+        int subsampling = Math.max(1, Math.min(w, h) / SCREEN_SIZE);
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, top, w, h - top));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return score(reader.read(0, param), true, SCREEN_NOISE_GRADIENT_RATIO) > 0;
+    }
+
+    /**
+     * Checks whether a JPEG file ends without an EOI marker, as one cut short does
+     *
+     * @param file The JPEG file
+     * @return True if there's no EOI marker near the end of the file
+     * @throws IOException If the file couldn't be read
+     */
+    static boolean isMissingEoi(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            int length = (int) Math.min(in.length(), EOI_SEARCH_BYTES);
+            byte[] end = new byte[length];
+            in.seek(in.length() - length);
+            in.readFully(end);
+            for (int i = length - 2; i >= 0; i--) {
+                if (end[i] == (byte) 0xFF && end[i + 1] == (byte) 0xD9) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
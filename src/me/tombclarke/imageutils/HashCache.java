@@ -0,0 +1,120 @@
+package me.tombclarke.imageutils;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * An append-only, on-disk record of perceptual hashes, so only new or changed images have to be decoded to look for
+ * duplicates. A hash is only reused if the file's size and last modified time are unchanged. The file format, recovery
+ * and compaction are the RecordStore's, as for the ScanCache.
+ *
+ * @author Tom Clarke
+ */
+final class HashCache implements Closeable {
+
+    static final String DEFAULT_NAME = ".imageutils-hash-cache";
+
+    private static final int MAGIC = 0x49554843; // "IUHC"
+    private static final int VERSION = 1;
+
+    private static final RecordStore.Codec<Entry> CODEC = new RecordStore.Codec<Entry>() {
+        @Override
+        public int length() {
+            return 8 + 4 + 4;
+        }
+
+        @Override
+        public Entry read(DataInputStream in) throws IOException {
+            long hash = in.readLong();
+            int width = in.readInt();
+            int height = in.readInt();
+            return new Entry(hash, width, height);
+        }
+
+        @Override
+        public void write(DataOutputStream out, Entry entry) throws IOException {
+            out.writeLong(entry.hash);
+            out.writeInt(entry.width);
+            out.writeInt(entry.height);
+        }
+    };
+
+    private final RecordStore<Entry> store;
+
+    private HashCache(RecordStore<Entry> store) {
+        this.store = store;
+    }
+
+    /**
+     * Loads the cache from a file, creating it if needed. Anything after the last complete record is cut off, and a
+     * file from a different version is started again.
+     *
+     * @param file The cache file
+     * @return The loaded cache, ready to record new hashes
+     * @throws IOException If the file couldn't be read or written
+     */
+    static HashCache open(File file) throws IOException {
+        return new HashCache(RecordStore.open(file, MAGIC, VERSION, CODEC));
+    }
+
+    /**
+     * Finds a previous hash for an image
+     *
+     * @param image The image
+     * @param attrs The image's current attributes
+     * @return The hash and size, or null if there's no up to date hash
+     */
+    Entry lookup(File image, BasicFileAttributes attrs) {
+        return store.lookup(image, attrs);
+    }
+
+    /**
+     * Records a hash for an image. Safe to call from several threads at once.
+     *
+     * @param image The image
+     * @param attrs The image's attributes from before it was hashed
+     * @param entry The image's hash and size
+     */
+    void record(File image, BasicFileAttributes attrs, Entry entry) {
+        store.record(image, attrs, entry);
+    }
+
+    /**
+     * Flushes recorded hashes to disk, compacting the file if it's mostly out of date records
+     *
+     * @throws IOException If the hashes couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    static final class Entry {
+
+        private final long hash;
+        private final int width;
+        private final int height;
+
+        Entry(long hash, int width, int height) {
+            this.hash = hash;
+            this.width = width;
+            this.height = height;
+        }
+
+        long getHash() {
+            return hash;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package me.tombclarke.imageutils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reads and writes images, working out their format from their first few bytes rather than their file name.
+ * <p>
+ * ImageIO.read and ImageIO.write look up the service providers and create a new reader or writer for every image. Here
+ * each thread keeps one reader and one writer per format, which are reset between images rather than disposed. ImageIO's
+ * disk cache is turned off, as images are either read straight from their files or encoded into memory.
+ *
+ * @author Tom Clarke
+ */
+final class ImageCodecs {
+
+    /**
+     * The formats that can be recognised from their content
+     */
+    enum Format {
+        JPEG("jpeg"),
+        PNG("png"),
+        GIF("gif"),
+        BMP("bmp");
+
+        private final String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return The ImageIO format name
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @param formatName A format name, as given by a reader
+         * @return The format, or null if it isn't one of these
+         */
+        static Format of(String formatName) {
+            for (Format f : values()) {
+                if (f.name.equalsIgnoreCase(formatName)) {
+                    return f;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Enough to tell every format apart
+    private static final int SNIFF_LENGTH = 8;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final ThreadLocal<Map<Format, ImageReader>> READERS = ThreadLocal.withInitial(() -> new EnumMap<>(Format.class));
+    private static final ThreadLocal<Map<Format, ImageWriter>> WRITERS = ThreadLocal.withInitial(() -> new EnumMap<>(Format.class));
+
+    static {
+        ImageIO.setUseCache(false);
+    }
+
+    private ImageCodecs() {
+        // Nothing to do here
+    }
+
+    /**
+     * Works out an image's format from its first few bytes
+     *
+     * @param header The start of the file
+     * @param length How many bytes of the header are filled
+     * @return The format, or null if it isn't recognised
+     */
+    static Format sniff(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+            return Format.JPEG;
+        }
+        if (length >= PNG_SIGNATURE.length) {
+            boolean png = true;
+            for (int i = 0; i < PNG_SIGNATURE.length && png; i++) {
+                png = header[i] == PNG_SIGNATURE[i];
+            }
+            if (png) {
+                return Format.PNG;
+            }
+        }
+        if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8'
+                && (header[4] == '7' || header[4] == '9') && header[5] == 'a') {
+            return Format.GIF;
+        }
+        if (length >= 2 && header[0] == 'B' && header[1] == 'M') {
+            return Format.BMP;
+        }
+        return null;
+    }
+
+    /**
+     * Works out an image's format from the start of a stream, leaving the stream where it was
+     *
+     * @param in The image stream
+     * @return The format, or null if it isn't recognised
+     * @throws IOException If the stream couldn't be read
+     */
+    static Format sniff(ImageInputStream in) throws IOException {
+        byte[] header = new byte[SNIFF_LENGTH];
+        in.mark();
+        try {
+            int length = 0;
+            int read;
+            while (length < header.length && (read = in.read(header, length, header.length - length)) > 0) {
+                length += read;
+            }
+            return sniff(header, length);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Opens an image file for reading, without going through ImageIO's stream provider lookup
+     *
+     * @param file The image file
+     * @return The stream, which should be closed after use
+     * @throws IOException If the file couldn't be opened
+     */
+    static ImageInputStream open(File file) throws IOException {
+        return new FileImageInputStream(file);
+    }
+
+    /**
+     * Opens an image held in memory for reading
+     *
+     * @param data The encoded image
+     * @return The stream, which should be closed after use
+     */
+    static ImageInputStream open(byte[] data) {
+        return new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Decodes a whole image, like ImageIO.read but with this thread's reader for the format
+     *
+     * @param file The image file
+     * @return The image, or null if there's no reader for its format
+     * @throws IOException If the image couldn't be decoded
+     */
+    static BufferedImage read(File file) throws IOException {
+        try (ImageInputStream in = open(file)) {
+            ImageReader reader = getReader(in);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                return reader.read(0);
+            } finally {
+                release(reader);
+            }
+        }
+    }
+
+    /**
+     * Decodes a whole image held in memory, e.g. one embedded in another
+     *
+     * @param data The encoded image
+     * @return The image, or null if there's no reader for its format
+     * @throws IOException If the image couldn't be decoded
+     */
+    static BufferedImage read(byte[] data) throws IOException {
+        try (ImageInputStream in = open(data)) {
+            ImageReader reader = getReader(in);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                return reader.read(0);
+            } finally {
+                release(reader);
+            }
+        }
+    }
+
+    /**
+     * Finds a reader for an image stream, set up to read from it
+     *
+     * @param in The image stream
+     * @return The reader (which should be released after use), or null if there isn't one for this format
+     * @throws IOException If the stream couldn't be read
+     */
+    static ImageReader getReader(ImageInputStream in) throws IOException {
+        return getReader(in, true);
+    }
+
+    /**
+     * Finds a reader for an image stream, set up to read from it. The format is worked out from the stream's content,
+     * and this thread's reader for it is used if it isn't already in use. Anything not recognised is left to ImageIO to
+     * find a reader for.
+     *
+     * @param in              The image stream
+     * @param seekForwardOnly False if the image will be read more than once
+     * @return The reader (which should be released after use), or null if there isn't one for this format
+     * @throws IOException If the stream couldn't be read
+     */
+    static ImageReader getReader(ImageInputStream in, boolean seekForwardOnly) throws IOException {
+        return getReader(in, seekForwardOnly, true);
+    }
+
+    /**
+     * Finds a reader for an image stream, set up to read from it
+     *
+     * @param in              The image stream
+     * @param seekForwardOnly False if the image will be read more than once
+     * @param ignoreMetadata  False if the image's metadata will be read, which some readers otherwise skip
+     * @return The reader (which should be released after use), or null if there isn't one for this format
+     * @throws IOException If the stream couldn't be read
+     */
+    static ImageReader getReader(ImageInputStream in, boolean seekForwardOnly, boolean ignoreMetadata) throws IOException {
+        if (in == null) {
+            return null;
+        }
+
+        ImageReader reader = null;
+        Format format = sniff(in);
+        if (format != null) {
+            Map<Format, ImageReader> readers = READERS.get();
+            reader = readers.get(format);
+            if (reader == null) {
+                Iterator<ImageReader> found = ImageIO.getImageReadersByFormatName(format.getName());
+                if (found.hasNext()) {
+                    reader = found.next();
+                    readers.put(format, reader);
+                }
+            } else if (reader.getInput() != null) {
+                // Already reading something on this thread, so use a one-off reader
+                reader = null;
+            }
+        }
+        if (reader == null) {
+            Iterator<ImageReader> found = ImageIO.getImageReaders(in);
+            if (!found.hasNext()) {
+                return null;
+            }
+            reader = found.next();
+        }
+        reader.setInput(in, seekForwardOnly, ignoreMetadata);
+        return reader;
+    }
+
+    /**
+     * Finishes with a reader from getReader, so it can be used for the next image
+     *
+     * @param reader The reader
+     */
+    static void release(ImageReader reader) {
+        if (READERS.get().containsValue(reader)) {
+            reader.reset();
+        } else {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * @return The format a reader decodes, or null if it isn't one that can be recognised
+     */
+    static Format getFormat(ImageReader reader) throws IOException {
+        return Format.of(reader.getFormatName());
+    }
+
+    /**
+     * Encodes an image as a JPEG in memory
+     *
+     * @param image   The image to encode
+     * @param quality The JPEG quality, from 0 to 1
+     * @return The encoded image
+     * @throws IOException    If the image couldn't be encoded
+     * @throws ImageException If the image can't be stored as a JPEG (e.g. it has transparency)
+     */
+    static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException, ImageException {
+        return encode(image, Format.JPEG, quality);
+    }
+
+    /**
+     * Encodes an image in memory with this thread's writer for the format
+     *
+     * @param image   The image to encode
+     * @param format  The format to encode in
+     * @param quality The compression quality, from 0 to 1, or negative for the writer's default
+     * @return The encoded image
+     * @throws IOException    If the image couldn't be encoded
+     * @throws ImageException If there's no writer for the format, or it can't store this kind of image
+     */
+    static byte[] encode(BufferedImage image, Format format, float quality) throws IOException, ImageException {
+        return encode(image, format, quality, null);
+    }
+
+    /**
+     * Encodes an image in memory with this thread's writer for the format, keeping what still applies of the metadata
+     * it was read with
+     *
+     * @param image    The image to encode
+     * @param format   The format to encode in
+     * @param quality  The compression quality, from 0 to 1, or negative for the writer's default
+     * @param metadata The metadata the image was read with, or null to write none
+     * @return The encoded image
+     * @throws IOException    If the image couldn't be encoded
+     * @throws ImageException If there's no writer for the format, or it can't store this kind of image
+     */
+    static byte[] encode(BufferedImage image, Format format, float quality, IIOMetadata metadata) throws IOException, ImageException {
+        Map<Format, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format.getName());
+            if (!found.hasNext()) {
+                throw new ImageException("No writer found for format " + format.getName() + ".");
+            }
+            writer = found.next();
+            writers.put(format, writer);
+        }
+        if (!writer.getOriginatingProvider().canEncodeImage(image)) {
+            throw new ImageException("This kind of image can't be written as " + format.getName() + ".");
+        }
+
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality >= 0 && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+
+            IIOMetadata carried = metadata != null ? ImageMetadata.carry(metadata, writer, image, param) : null;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, carried), param);
+            }
+            return bytes.toByteArray();
+        } finally {
+            writer.reset();
+        }
+    }
+}
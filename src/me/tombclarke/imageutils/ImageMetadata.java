@@ -0,0 +1,146 @@
+package me.tombclarke.imageutils;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Carries metadata from an image as it was read over to the image being written.
+ * <p>
+ * Rather than handing the original's metadata straight to the writer, which also describes the original's pixels (its
+ * size, colour components and compression tables), the writer's own metadata for the new pixels is started from and
+ * only the descriptive parts are copied into it. For JPEGs that's EXIF and XMP (APP1), IPTC (APP13), comments and the
+ * JFIF density. Other APPn segments are vendor extras such as FlashPix data, multi-picture indexes and padding, which
+ * describe the original encoding and can run to hundreds of kilobytes. An ICC profile in a JPEG is left to the writer,
+ * which embeds one whenever the pixels are still in its colour space; the resizer converts others to sRGB, where the
+ * original profile would now be wrong. For PNGs it's text, time, density and colour chunks, which are all kept, as PNG
+ * pixels are never converted.
+ *
+ * @author Tom Clarke
+ */
+final class ImageMetadata {
+
+    private static final String JPEG_FORMAT = "javax_imageio_jpeg_image_1.0";
+    private static final String PNG_FORMAT = "javax_imageio_png_1.0";
+
+    // APP1 (EXIF and XMP) and APP13 (IPTC), numbered as the reader gives them
+    private static final Set<String> JPEG_SEGMENTS = new HashSet<>(Arrays.asList(
+            String.valueOf(0xE1), String.valueOf(0xED)));
+    private static final Set<String> PNG_CHUNKS = new HashSet<>(Arrays.asList(
+            "cHRM", "gAMA", "iCCP", "sRGB", "pHYs", "tEXt", "iTXt", "zTXt", "tIME", "UnknownChunks"));
+
+    private ImageMetadata() {
+        // Nothing to do here
+    }
+
+    /**
+     * Makes metadata for writing an image, with as much of the original's as still applies
+     *
+     * @param source The original's metadata
+     * @param writer The writer that will write the image
+     * @param image  The image that will be written
+     * @param param  The parameters it will be written with
+     * @return The metadata to write, or null to let the writer decide
+     */
+    static IIOMetadata carry(IIOMetadata source, ImageWriter writer, BufferedImage image, ImageWriteParam param) {
+        IIOMetadata target = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        if (source == null || target == null || target.isReadOnly()) {
+            return null;
+        }
+        String format = target.getNativeMetadataFormatName();
+        if (format == null || !format.equals(source.getNativeMetadataFormatName())) {
+            return null;
+        }
+
+        IIOMetadataNode from = (IIOMetadataNode) source.getAsTree(format);
+        IIOMetadataNode to = (IIOMetadataNode) target.getAsTree(format);
+        switch (format) {
+            case JPEG_FORMAT:
+                carryJpeg(from, to);
+                break;
+            case PNG_FORMAT:
+                carryPng(from, to);
+                break;
+            default:
+                return null;
+        }
+
+        try {
+            target.setFromTree(format, to);
+            return target;
+        } catch (IIOInvalidTreeException e) {
+            // Something the writer won't take, so write without it rather than failing the image
+            return null;
+        }
+    }
+
+    /**
+     * Copies descriptive APPn segments, comments and the JFIF density into a JPEG's marker sequence, ahead of the tables
+     */
+    private static void carryJpeg(IIOMetadataNode from, IIOMetadataNode to) {
+        IIOMetadataNode fromMarkers = child(from, "markerSequence");
+        IIOMetadataNode toMarkers = child(to, "markerSequence");
+        if (fromMarkers == null || toMarkers == null) {
+            return;
+        }
+        Node first = toMarkers.getFirstChild();
+        Node next;
+        for (Node n = fromMarkers.getFirstChild(); n != null; n = next) {
+            next = n.getNextSibling();
+            boolean copy = n.getNodeName().equals("com")
+                    || n.getNodeName().equals("unknown") && JPEG_SEGMENTS.contains(((IIOMetadataNode) n).getAttribute("MarkerTag"));
+            if (copy) {
+                toMarkers.insertBefore(n, first);
+            }
+        }
+
+        IIOMetadataNode fromJfif = child(child(from, "JPEGvariety"), "app0JFIF");
+        IIOMetadataNode toJfif = child(child(to, "JPEGvariety"), "app0JFIF");
+        if (fromJfif != null && toJfif != null) {
+            for (String density : new String[]{"resUnits", "Xdensity", "Ydensity"}) {
+                if (fromJfif.hasAttribute(density)) {
+                    toJfif.setAttribute(density, fromJfif.getAttribute(density));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies descriptive and colour chunks into a PNG's metadata
+     */
+    private static void carryPng(IIOMetadataNode from, IIOMetadataNode to) {
+        Node next;
+        for (Node n = from.getFirstChild(); n != null; n = next) {
+            next = n.getNextSibling();
+            if (PNG_CHUNKS.contains(n.getNodeName())) {
+                IIOMetadataNode existing = child(to, n.getNodeName());
+                if (existing != null) {
+                    to.replaceChild(n, existing);
+                } else {
+                    to.appendChild(n);
+                }
+            }
+        }
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode node, String name) {
+        if (node == null) {
+            return null;
+        }
+        for (Node n = node.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeName().equals(name)) {
+                return (IIOMetadataNode) n;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,535 @@
+package me.tombclarke.imageutils;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A chain of work to do on each image in a folder, for using the tools from other code. For example:
+ * <pre>
+ * try (Stream&lt;ImagePipeline.Result&gt; results = ImagePipeline.from(folder)
+ *         .filter(p -&gt; !p.getFileName().toString().startsWith("."))
+ *         .validate(ScanMode.FAST)
+ *         .resize(1920, 1080)
+ *         .write(outputFolder)
+ *         .executor(pool, 4)
+ *         .stream()) {
+ *     results.filter(r -&gt; !r.isSuccess()).forEach(r -&gt; log(r.getPath(), r.getFailure()));
+ * }
+ * </pre>
+ * Nothing happens until the results are asked for, and images are found, worked on and reported one at a time as the
+ * results are read, so memory use doesn't grow with the number of images. Each method returns a new pipeline, leaving
+ * the one it was called on as it was, so a pipeline can be shared and built on.
+ * <p>
+ * An image that fails any step is reported with the reason and skips the rest of its steps; the other images carry on.
+ * Like the tools, images are decoded once (skipping pixels a resize would throw away anyway), only if a step needs
+ * the pixels, and only once their header has been checked against a pixel limit and a memory budget.
+ *
+ * @author Tom Clarke
+ */
+public final class ImagePipeline {
+
+    /**
+     * One piece of work on an image
+     */
+    private interface Step {
+        void apply(Work work) throws IOException, ImageException;
+    }
+
+    private final Supplier<Stream<Path>> source;
+    private final Path root;
+    private final List<Predicate<Path>> filters = new ArrayList<>();
+    private final List<Step> steps = new ArrayList<>();
+    private Executor executor = null;
+    private int parallelism = 1;
+    private long memoryBudget = -1;
+    private long maxPixels = MemoryBudget.DEFAULT_MAX_PIXELS;
+    private MetadataPolicy metadataPolicy = MetadataPolicy.KEEP;
+
+    private ImagePipeline(Supplier<Stream<Path>> source, Path root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    /**
+     * Starts a pipeline over every image in a folder and its subfolders, found lazily as they're needed
+     *
+     * @param folder The folder to look for images in
+     * @return The pipeline
+     */
+    public static ImagePipeline from(Path folder) {
+        return new ImagePipeline(() -> ImageUtils.streamImages(folder), folder);
+    }
+
+    /**
+     * Starts a pipeline over the given images. Written copies go straight into the output folder, as there's no folder
+     * to keep their paths relative to.
+     *
+     * @param images The images, which are gone through once per run of the pipeline
+     * @return The pipeline
+     */
+    public static ImagePipeline from(Iterable<Path> images) {
+        return new ImagePipeline(() -> StreamSupport.stream(images.spliterator(), false), null);
+    }
+
+    /**
+     * Only works on images that match. Filters only see the path, and are applied before any work is done on an image,
+     * wherever they are in the chain. Images that don't match aren't reported.
+     *
+     * @param filter Whether to work on an image
+     * @return The new pipeline
+     */
+    public ImagePipeline filter(Predicate<Path> filter) {
+        ImagePipeline p = copy();
+        p.filters.add(filter);
+        return p;
+    }
+
+    /**
+     * Fails images that are corrupt, checking as thoroughly as the scan mode asks for
+     *
+     * @param mode How to check the images
+     * @return The new pipeline
+     */
+    public ImagePipeline validate(ScanMode mode) {
+        ImagePipeline p = copy();
+        p.steps.add(work -> {
+            if (mode != ScanMode.FULL) {
+                ImageStructureChecker.Result structure = ImageStructureChecker.check(work.path.toFile());
+                if (structure == ImageStructureChecker.Result.CORRUPT) {
+                    throw new ImageException("Image " + work.path + " is corrupt.");
+                }
+                if (mode == ScanMode.FAST && structure == ImageStructureChecker.Result.VALID) {
+                    return;
+                }
+            }
+            work.decode(0, 0);
+        });
+        return p;
+    }
+
+    /**
+     * Shrinks images to fit within a size with the default filter, keeping their aspect ratio. Images that already fit
+     * are left as they are.
+     *
+     * @param maxWidth  The most the width can be
+     * @param maxHeight The most the height can be
+     * @return The new pipeline
+     */
+    public ImagePipeline resize(int maxWidth, int maxHeight) {
+        return resize(maxWidth, maxHeight, ResizeFilter.BICUBIC);
+    }
+
+    /**
+     * Shrinks images to fit within a size, keeping their aspect ratio. Images that already fit are left as they are.
+     *
+     * @param maxWidth  The most the width can be
+     * @param maxHeight The most the height can be
+     * @param filter    The filter to resize with
+     * @return The new pipeline
+     */
+    public ImagePipeline resize(int maxWidth, int maxHeight, ResizeFilter filter) {
+        if (maxWidth < 1 || maxHeight < 1) {
+            throw new IllegalArgumentException("Images must be resized to at least 1x1.");
+        }
+        ImagePipeline p = copy();
+        p.steps.add(work -> {
+            work.decode(maxWidth, maxHeight);
+            double ratio = Math.min(1, Math.min((double) maxWidth / work.sourceWidth, (double) maxHeight / work.sourceHeight));
+            int width = Math.max(1, (int) (work.sourceWidth * ratio));
+            int height = Math.max(1, (int) (work.sourceHeight * ratio));
+            if (work.image.getWidth() != width || work.image.getHeight() != height) {
+                work.image = Resizer.resize(work.image, width, height, filter);
+            }
+        });
+        return p;
+    }
+
+    /**
+     * Changes images with the given function, e.g. to crop or watermark them
+     *
+     * @param transform Takes a decoded image and returns the image to carry on with
+     * @return The new pipeline
+     */
+    public ImagePipeline transform(UnaryOperator<BufferedImage> transform) {
+        ImagePipeline p = copy();
+        p.steps.add(work -> {
+            work.decode(0, 0);
+            work.image = transform.apply(work.image);
+        });
+        return p;
+    }
+
+    /**
+     * Saves images over their originals, in the format they were read in and with their metadata unless it's being
+     * stripped. Each is written to a temporary file first, so an original is never left half written.
+     *
+     * @return The new pipeline
+     */
+    public ImagePipeline write() {
+        ImagePipeline p = copy();
+        p.steps.add(work -> work.write(work.path));
+        return p;
+    }
+
+    /**
+     * Saves images to another folder, in the format they were read in, keeping their paths relative to the folder the
+     * pipeline started from
+     *
+     * @param outputFolder The folder to save to
+     * @return The new pipeline
+     */
+    public ImagePipeline write(Path outputFolder) {
+        ImagePipeline p = copy();
+        p.steps.add(work -> {
+            Path out = outputFolder.resolve(root != null ? root.relativize(work.path) : work.path.getFileName());
+            Files.createDirectories(out.getParent());
+            work.write(out);
+        });
+        return p;
+    }
+
+    /**
+     * Works on images using the given executor, with as many at once as there are processors
+     *
+     * @param executor Where to run the work
+     * @return The new pipeline
+     */
+    public ImagePipeline executor(Executor executor) {
+        return executor(executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Works on images using the given executor rather than the thread reading the results. Results still come out in
+     * the order the images were found.
+     *
+     * @param executor    Where to run the work
+     * @param parallelism The most images to work on at once, which also bounds how far ahead of the reader they get
+     * @return The new pipeline
+     */
+    public ImagePipeline executor(Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("At least one image must be worked on at once.");
+        }
+        ImagePipeline p = copy();
+        p.executor = executor;
+        p.parallelism = parallelism;
+        return p;
+    }
+
+    /**
+     * @param bytes The most memory images being worked on can take at once, going by their headers (default half the
+     *              heap). An image bigger than this is worked on alone.
+     * @return The new pipeline
+     */
+    public ImagePipeline memoryBudget(long bytes) {
+        ImagePipeline p = copy();
+        p.memoryBudget = bytes;
+        return p;
+    }
+
+    /**
+     * @param maxPixels The most pixels an image can have, going by its header. Bigger images fail without being
+     *                  decoded.
+     * @return The new pipeline
+     */
+    public ImagePipeline maxPixels(long maxPixels) {
+        ImagePipeline p = copy();
+        p.maxPixels = maxPixels;
+        return p;
+    }
+
+    /**
+     * @param metadataPolicy Whether written images keep the original's EXIF, XMP, comments and the like (default keep)
+     * @return The new pipeline
+     */
+    public ImagePipeline metadata(MetadataPolicy metadataPolicy) {
+        ImagePipeline p = copy();
+        p.metadataPolicy = metadataPolicy;
+        return p;
+    }
+
+    /**
+     * Runs the pipeline lazily. Images are only found and worked on as the results are read, and results come out in
+     * the order the images were found. The stream should be closed if it isn't read to the end.
+     *
+     * @return A result for each image
+     */
+    public Stream<Result> stream() {
+        MemoryBudget budget = memoryBudget > 0 ? new MemoryBudget(memoryBudget) : MemoryBudget.forHeap();
+        Stream<Path> paths = source.get();
+        for (Predicate<Path> filter : filters) {
+            paths = paths.filter(filter);
+        }
+        if (executor == null) {
+            return paths.map(path -> process(path, budget));
+        }
+
+        final Stream<Path> toProcess = paths;
+        Iterator<Path> pending = toProcess.iterator();
+        Deque<CompletableFuture<Result>> inFlight = new ArrayDeque<>();
+        Iterator<Result> results = new Iterator<Result>() {
+            @Override
+            public boolean hasNext() {
+                fill();
+                return !inFlight.isEmpty();
+            }
+
+            @Override
+            public Result next() {
+                fill();
+                if (inFlight.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return inFlight.poll().join();
+                } catch (CompletionException e) {
+                    // Per-image problems are caught in process, so this is something like running out of memory
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+
+            /**
+             * Keeps as many images in flight as allowed, so the executor stays busy while the reader catches up
+             */
+            private void fill() {
+                while (inFlight.size() < parallelism && pending.hasNext()) {
+                    Path path = pending.next();
+                    inFlight.add(CompletableFuture.supplyAsync(() -> process(path, budget), executor));
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    for (CompletableFuture<Result> f : inFlight) {
+                        f.cancel(false);
+                    }
+                    toProcess.close();
+                });
+    }
+
+    /**
+     * Runs the pipeline, passing each result to a callback as soon as its image is done
+     *
+     * @param callback Takes each result, on the calling thread
+     * @return The number of images that failed
+     */
+    public int run(Consumer<? super Result> callback) {
+        int failed = 0;
+        try (Stream<Result> results = stream()) {
+            for (Iterator<Result> it = results.iterator(); it.hasNext(); ) {
+                Result result = it.next();
+                if (!result.isSuccess()) {
+                    failed++;
+                }
+                callback.accept(result);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Runs every step on one image
+     */
+    private Result process(Path path, MemoryBudget budget) {
+        Work work = new Work(path, budget, maxPixels, metadataPolicy);
+        try {
+            for (Step step : steps) {
+                step.apply(work);
+            }
+            return new Result(path, work.output, work.image, null);
+        } catch (IOException | ImageException | RuntimeException e) {
+            return new Result(path, null, null, e);
+        } finally {
+            budget.release(work.reserved);
+        }
+    }
+
+    private ImagePipeline copy() {
+        ImagePipeline p = new ImagePipeline(source, root);
+        p.filters.addAll(filters);
+        p.steps.addAll(steps);
+        p.executor = executor;
+        p.parallelism = parallelism;
+        p.memoryBudget = memoryBudget;
+        p.maxPixels = maxPixels;
+        p.metadataPolicy = metadataPolicy;
+        return p;
+    }
+
+    /**
+     * What happened to one image
+     */
+    public static final class Result {
+
+        private final Path path;
+        private final Path output;
+        private final int width;
+        private final int height;
+        private final Exception failure;
+
+        private Result(Path path, Path output, BufferedImage image, Exception failure) {
+            this.path = path;
+            this.output = output;
+            this.width = image != null ? image.getWidth() : -1;
+            this.height = image != null ? image.getHeight() : -1;
+            this.failure = failure;
+        }
+
+        /**
+         * @return The image worked on
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return Where the image was written, or null if it wasn't
+         */
+        public Path getOutput() {
+            return output;
+        }
+
+        /**
+         * @return The width the image ended up, or -1 if it was never decoded
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return The height the image ended up, or -1 if it was never decoded
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * @return Why the image failed, or null if it didn't
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return path + (failure == null ? " done" : " failed: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * One image on its way through the steps
+     */
+    private static final class Work {
+
+        private final Path path;
+        private final MemoryBudget budget;
+        private final long maxPixels;
+        private final MetadataPolicy metadataPolicy;
+        private ImageCodecs.Format format;
+        private IIOMetadata metadata;
+        private BufferedImage image;
+        private int sourceWidth;
+        private int sourceHeight;
+        private long reserved;
+        private Path output;
+
+        Work(Path path, MemoryBudget budget, long maxPixels, MetadataPolicy metadataPolicy) {
+            this.path = path;
+            this.budget = budget;
+            this.maxPixels = maxPixels;
+            this.metadataPolicy = metadataPolicy;
+        }
+
+        /**
+         * Decodes the image, unless an earlier step already has
+         *
+         * @param maxWidth  The most the width will be after this step, or 0 to decode every pixel
+         * @param maxHeight The most the height will be after this step, or 0 to decode every pixel
+         */
+        void decode(int maxWidth, int maxHeight) throws IOException, ImageException {
+            if (image != null) {
+                return;
+            }
+            try (ImageInputStream in = ImageCodecs.open(path.toFile())) {
+                boolean keepMetadata = metadataPolicy == MetadataPolicy.KEEP;
+                ImageReader reader = ImageCodecs.getReader(in, true, !keepMetadata);
+                if (reader == null) {
+                    throw new ImageException("No reader found for image " + path + ".");
+                }
+
+                try {
+                    format = ImageCodecs.getFormat(reader);
+                    MemoryBudget.checkPixels(reader, maxPixels, path.toFile());
+                    metadata = keepMetadata ? reader.getImageMetadata(0) : null;
+                    sourceWidth = reader.getWidth(0);
+                    sourceHeight = reader.getHeight(0);
+
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int subsampling = 1;
+                    long bytes = 0;
+                    if (maxWidth > 0 && maxHeight > 0) {
+                        // Skip pixels the resize will throw away, and leave room for its output and intermediate
+                        subsampling = ImageUtils.getSubsampling(sourceWidth, sourceHeight, maxWidth, maxHeight);
+                        bytes = 4L * maxWidth * (maxHeight + (sourceHeight + subsampling - 1) / subsampling);
+                    }
+                    if (subsampling > 1) {
+                        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    try {
+                        reserved += budget.acquire(MemoryBudget.estimateDecode(reader, subsampling) + bytes);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ImageException("Interrupted while waiting for memory for " + path + ".");
+                    }
+                    image = reader.read(0, param);
+                } finally {
+                    ImageCodecs.release(reader);
+                }
+            }
+        }
+
+        /**
+         * Saves the image, decoding it first if no step has
+         *
+         * @param out Where to save it
+         */
+        void write(Path out) throws IOException, ImageException {
+            decode(0, 0);
+            if (format == null) {
+                throw new ImageException("No writer found for image " + path + ".");
+            }
+            ImageUtils.writeAtomically(out.toFile(), ImageCodecs.encode(image, format, -1, metadata));
+            output = out;
+        }
+    }
+}
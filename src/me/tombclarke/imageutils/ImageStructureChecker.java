@@ -0,0 +1,289 @@
+package me.tombclarke.imageutils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Checks the structure of JPEG and PNG files without decoding any pixels. JPEGs have their segments walked from SOI
+ * through every SOS to EOI, and PNGs have every chunk CRC checked up to IEND.
+ * <p>
+ * Files are streamed through a reused buffer rather than memory-mapped, as a mapped file can't be deleted or moved on
+ * some platforms until the mapping is garbage collected, which is exactly what happens to corrupt files next.
+ *
+ * @author Tom Clarke
+ */
+final class ImageStructureChecker {
+
+    enum Result {
+        VALID,
+        CORRUPT,
+        UNKNOWN_FORMAT
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int PNG_IHDR = 0x49484452;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_IEND = 0x49454E44;
+
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private ImageStructureChecker() {
+        // Nothing to do here
+    }
+
+    /**
+     * Checks the structure of an image file
+     *
+     * @param file The file to check
+     * @return Whether the file is structurally valid, or UNKNOWN_FORMAT if it's neither a JPEG nor a PNG
+     */
+    static Result check(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return check(new Source(in, BUFFERS.get()));
+        } catch (IOException e) {
+            // Can't even read it, so it's as good as corrupt
+            return Result.CORRUPT;
+        }
+    }
+
+    /**
+     * Checks the structure of an image already read into memory
+     *
+     * @param data The image file's contents
+     * @return Whether the image is structurally valid, or UNKNOWN_FORMAT if it's neither a JPEG nor a PNG
+     */
+    static Result check(byte[] data) {
+        try {
+            return check(new Source(new ByteArrayInputStream(data), BUFFERS.get()));
+        } catch (IOException e) {
+            // Can't happen reading from memory, but if it did the image couldn't be checked
+            return Result.CORRUPT;
+        }
+    }
+
+    private static Result check(Source src) throws IOException {
+        int b0 = src.read();
+        int b1 = src.read();
+        if (b0 == 0xFF && b1 == 0xD8) {
+            return checkJpeg(src) ? Result.VALID : Result.CORRUPT;
+        }
+        if (b0 == (PNG_SIGNATURE[0] & 0xFF) && b1 == PNG_SIGNATURE[1]) {
+            for (int i = 2; i < PNG_SIGNATURE.length; i++) {
+                if (src.read() != (PNG_SIGNATURE[i] & 0xFF)) {
+                    return Result.CORRUPT;
+                }
+            }
+            return checkPng(src) ? Result.VALID : Result.CORRUPT;
+        }
+        return Result.UNKNOWN_FORMAT;
+    }
+
+    /**
+     * Walks JPEG segments, following the entropy coded data after each SOS, until EOI
+     *
+     * @param src The file, positioned just after SOI
+     * @return True if EOI was reached after at least one scan
+     */
+    private static boolean checkJpeg(Source src) throws IOException {
+        boolean seenScan = false;
+        int marker = nextMarker(src);
+        while (marker != -1) {
+            if (marker == 0xD9) {
+                // EOI - only an image if there were some pixels in it
+                return seenScan;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Standalone markers, no length
+                marker = nextMarker(src);
+                continue;
+            }
+            if (marker < 0xC0) {
+                // Reserved, or a stuffed zero where a marker should be
+                return false;
+            }
+
+            int hi = src.read();
+            int lo = src.read();
+            int length = (hi << 8) | lo;
+            if (lo == -1 || length < 2 || !src.skip(length - 2)) {
+                return false;
+            }
+
+            if (marker == 0xDA) {
+                seenScan = true;
+                marker = skipEntropyCodedData(src);
+            } else {
+                marker = nextMarker(src);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next marker, which must follow immediately
+     *
+     * @return The marker code, or -1 if the next bytes aren't a marker
+     */
+    private static int nextMarker(Source src) throws IOException {
+        if (src.read() != 0xFF) {
+            return -1;
+        }
+        int marker;
+        do {
+            marker = src.read();
+        } while (marker == 0xFF);
+        return marker;
+    }
+
+    /**
+     * Skips scan data up to the next marker that isn't a stuffed byte or a restart marker
+     *
+     * @return The marker code, or -1 if the file ended first
+     */
+    private static int skipEntropyCodedData(Source src) throws IOException {
+        int b = src.read();
+        while (b != -1) {
+            if (b != 0xFF) {
+                b = src.read();
+                continue;
+            }
+            do {
+                b = src.read();
+            } while (b == 0xFF);
+            if (b == 0x00 || (b >= 0xD0 && b <= 0xD7)) {
+                b = src.read();
+            } else {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks each PNG chunk's CRC until IEND
+     *
+     * @param src The file, positioned just after the signature
+     * @return True if IEND was reached with IHDR first, some IDAT, and no bad CRCs on the way
+     */
+    private static boolean checkPng(Source src) throws IOException {
+        CRC32 crc = new CRC32();
+        boolean first = true;
+        boolean seenData = false;
+        while (true) {
+            long length = src.readInt();
+            long typeValue = src.readInt();
+            if (length == -1 || typeValue == -1 || length > Integer.MAX_VALUE || (first && typeValue != PNG_IHDR)) {
+                return false;
+            }
+            int type = (int) typeValue;
+            first = false;
+
+            crc.reset();
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                crc.update((type >>> shift) & 0xFF);
+            }
+            if (!src.update(crc, length)) {
+                return false;
+            }
+            long expected = src.readInt();
+            if (expected == -1 || expected != crc.getValue()) {
+                return false;
+            }
+
+            if (type == PNG_IDAT) {
+                seenData = true;
+            } else if (type == PNG_IEND) {
+                return seenData;
+            }
+        }
+    }
+
+    /**
+     * A minimal buffered reader, so single bytes can be read without the locking in BufferedInputStream
+     */
+    private static final class Source {
+
+        private final InputStream in;
+        private final byte[] buf;
+        private int pos;
+        private int limit;
+
+        Source(InputStream in, byte[] buf) {
+            this.in = in;
+            this.buf = buf;
+        }
+
+        /**
+         * @return The next byte, or -1 at the end of the file
+         */
+        int read() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        /**
+         * @return The next big-endian unsigned 32 bit value, or -1 at the end of the file
+         */
+        long readInt() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = read();
+                if (b == -1) {
+                    return -1;
+                }
+                value = (value << 8) | b;
+            }
+            return value;
+        }
+
+        /**
+         * @return False if the file ended before all the bytes were skipped
+         */
+        boolean skip(long n) throws IOException {
+            while (n > 0) {
+                if (pos == limit && !fill()) {
+                    return false;
+                }
+                int step = (int) Math.min(n, limit - pos);
+                pos += step;
+                n -= step;
+            }
+            return true;
+        }
+
+        /**
+         * Feeds the next n bytes into a CRC
+         *
+         * @return False if the file ended before all the bytes were read
+         */
+        boolean update(CRC32 crc, long n) throws IOException {
+            while (n > 0) {
+                if (pos == limit && !fill()) {
+                    return false;
+                }
+                int step = (int) Math.min(n, limit - pos);
+                crc.update(buf, pos, step);
+                pos += step;
+                n -= step;
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            int read = in.read(buf, 0, buf.length);
+            if (read <= 0) {
+                return false;
+            }
+            pos = 0;
+            limit = read;
+            return true;
+        }
+    }
+}
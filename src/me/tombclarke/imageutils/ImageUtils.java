@@ -1,8 +1,22 @@
 package me.tombclarke.imageutils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
 
 /**
  * Useful common image functions
@@ -12,6 +26,7 @@ import java.util.List;
 public final class ImageUtils {
 
     private static final List<String> SUPPORTED_IMAGE_TYPES = Arrays.asList(".png", ".jpg", ".jpeg");
+    private static final int SUBSAMPLING_HEADROOM = 2;
 
     private ImageUtils() {
         // Nothing to do here
@@ -24,31 +39,151 @@ public final class ImageUtils {
      * @param allImages A list of images to add found images too
      */
     public static void getListOfImages(File folder, List<File> allImages) {
-        File[] files = folder.listFiles();
-        if (files == null) {
-            return;
+        try (Stream<Path> images = streamImages(folder.toPath())) {
+            images.forEach(p -> allImages.add(p.toFile()));
+        }
+    }
+
+    /**
+     * Lazily finds all images in a folder and its subfolders, following symbolic links (but not in loops).
+     * Images are returned as they're found, in the same order every time.
+     *
+     * @param folder The folder containing the target files
+     * @return A stream of images, which should be closed after use
+     */
+    public static Stream<Path> streamImages(Path folder) {
+        return streamImages(folder, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Lazily finds all images in a folder, as deep as the given depth
+     *
+     * @param folder      The folder containing the target files
+     * @param maxDepth    How many folder levels to look in (1 means only the folder itself)
+     * @param followLinks Whether to follow symbolic links
+     * @return A stream of images, which should be closed after use
+     */
+    public static Stream<Path> streamImages(Path folder, int maxDepth, boolean followLinks) {
+        return new ImageWalker(folder, maxDepth, followLinks, ImageUtils::isSupportedImage).stream();
+    }
+
+    /**
+     * Lazily finds all images in a folder, listing folders on several threads at once. This suits wide
+     * trees on slow storage, but images are returned in no particular order.
+     *
+     * @param folder      The folder containing the target files
+     * @param maxDepth    How many folder levels to look in (1 means only the folder itself)
+     * @param followLinks Whether to follow symbolic links
+     * @param threads     How many folders to list at once
+     * @return A stream of images, which must be closed if it isn't read to the end
+     */
+    public static Stream<Path> streamImagesInParallel(Path folder, int maxDepth, boolean followLinks, int threads) {
+        return new ImageWalker(folder, maxDepth, followLinks, ImageUtils::isSupportedImage).parallelStream(threads);
+    }
+
+    /**
+     * Checks whether a file has the extension of a supported image type
+     *
+     * @param file The file to check
+     * @return True if it looks like an image we want
+     */
+    static boolean isSupportedImage(Path file) {
+        String name = file.getFileName().toString();
+        int beginningOfPostfix = name.lastIndexOf(".");
+        if (beginningOfPostfix == -1) {
+            return false;
         }
-        for (File f : files) {
-            // Ensure we can read the file
-            if (!folder.canRead()) {
-                continue;
+        String postfix = name.substring(beginningOfPostfix).toLowerCase();
+        return SUPPORTED_IMAGE_TYPES.contains(postfix);
+    }
+
+    /**
+     * Replaces a file's contents all at once. The data is written to a temporary file next to it, which is then renamed
+     * over it, so if the process dies part way the file is either as it was or fully written, never half written. Each
+     * write has its own temporary file, so two processes writing the same file can't remove or rename each other's.
+     *
+     * @param file The file to write, which needn't exist yet
+     * @param data The new contents
+     * @throws IOException If the file couldn't be written, in which case it's left as it was
+     */
+    static void writeAtomically(File file, byte[] data) throws IOException {
+        Path target = file.toPath();
+        // Hidden, and not an image extension, so a leftover is never picked up as an image
+        Path tmp = target.resolveSibling("." + target.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            Files.write(tmp, data);
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
             }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Works out how many source pixels can be skipped per decoded pixel when an image will be shrunk to a target size.
+     * The decoded image is kept at least SUBSAMPLING_HEADROOM times the target size, so the final resize still has
+     * real pixels to average rather than the aliasing subsampling alone gives.
+     *
+     * @param width        The width of the source image
+     * @param height       The height of the source image
+     * @param targetWidth  The width the image will be resized to
+     * @param targetHeight The height the image will be resized to
+     * @return The subsampling factor to read with (1 reads every pixel)
+     */
+    static int getSubsampling(int width, int height, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return 1;
+        }
+        int factor = Math.min(width / (SUBSAMPLING_HEADROOM * targetWidth), height / (SUBSAMPLING_HEADROOM * targetHeight));
+        return Math.max(1, factor);
+    }
+
+    /**
+     * Runs a task for every index from 0 to count - 1, spread over the given number of threads. Each index is run
+     * exactly once, and everything the tasks wrote is visible to the caller once this returns.
+     *
+     * @param count   The number of indices to run the task for
+     * @param threads The number of threads to use (1 runs everything on the calling thread)
+     * @param task    The task to run for each index
+     */
+    static void forEachIndex(int count, int threads, IntConsumer task) {
+        if (threads <= 1 || count <= 1) {
+            for (int i = 0; i < count; i++) {
+                task.accept(i);
+            }
+            return;
+        }
 
-            // If it's a folder, go into it and get the pictures
-            if (f.isDirectory()) {
-                getListOfImages(f, allImages);
+        // Each worker claims the next unchecked index, so no per-index task objects are needed
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < count) {
+                task.accept(index);
             }
+        };
 
-            // It's a file, see if it's an image we want
-            String name = f.getName();
-            int beginningOfPostfix = name.lastIndexOf(".");
-            if (beginningOfPostfix == -1) {
-                continue;
+        int workerCount = Math.min(threads, count);
+        ExecutorService pool = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<?>> workers = new ArrayList<>(workerCount);
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(pool.submit(worker));
             }
-            String postfix = name.substring(beginningOfPostfix).toLowerCase();
-            if (SUPPORTED_IMAGE_TYPES.contains(postfix)) {
-                allImages.add(f);
+            for (Future<?> f : workers) {
+                f.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing images.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed while processing images.", e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
     }
 }
@@ -0,0 +1,306 @@
+package me.tombclarke.imageutils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazily walks a directory tree for files matching a filter. Every entry costs a single attribute read, directories
+ * are listed one at a time as the walk reaches them, and directories already on the current path (through symbolic
+ * links) are not entered again.
+ *
+ * @author Tom Clarke
+ */
+final class ImageWalker {
+
+    private static final LinkOption[] FOLLOW = new LinkOption[0];
+    private static final LinkOption[] NO_FOLLOW = {LinkOption.NOFOLLOW_LINKS};
+    private static final int PARALLEL_QUEUE_SIZE = 8192;
+    // Put after the last file found by a parallel walk
+    private static final Object END = new Object();
+
+    private final Path root;
+    private final int maxDepth;
+    private final LinkOption[] linkOptions;
+    private final Predicate<Path> filter;
+
+    /**
+     * @param root        The directory to start from
+     * @param maxDepth    The number of directory levels to descend (1 only looks at the root's entries)
+     * @param followLinks Whether to follow symbolic links
+     * @param filter      Which regular files to return
+     */
+    ImageWalker(Path root, int maxDepth, boolean followLinks, Predicate<Path> filter) {
+        this.root = root;
+        this.maxDepth = maxDepth;
+        this.linkOptions = followLinks ? FOLLOW : NO_FOLLOW;
+        this.filter = filter;
+    }
+
+    /**
+     * Walks the tree depth first on the calling thread, visiting each directory's entries in name order
+     *
+     * @return A lazy stream of matching files
+     */
+    Stream<Path> stream() {
+        Iterator<Path> it = new SequentialIterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Walks the tree with a directory per task on a pool of the given size. Files are returned as soon as they're
+     * found, in no particular order. The stream must be closed if it isn't read to the end, to stop the walk.
+     *
+     * @param threads The number of threads to walk with
+     * @return A lazy stream of matching files
+     */
+    Stream<Path> parallelStream(int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        BlockingQueue<Object> found = new LinkedBlockingQueue<>(PARALLEL_QUEUE_SIZE);
+
+        pool.execute(() -> {
+            try {
+                BasicFileAttributes attrs = attributes(root);
+                if (attrs != null && attrs.isDirectory() && maxDepth > 0) {
+                    new DirectoryTask(root, new Ancestor(directoryKey(root, attrs), null), 1, found).invoke();
+                }
+            } finally {
+                put(found, END);
+            }
+        });
+
+        Iterator<Path> it = new Iterator<Path>() {
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = found.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while finding images.", e);
+                    }
+                }
+                return next != END;
+            }
+
+            @Override
+            public Path next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Path result = (Path) next;
+                next = null;
+                return result;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    pool.shutdownNow();
+                    found.clear();
+                });
+    }
+
+    /**
+     * Reads an entry's attributes, the only file system call made for most entries
+     *
+     * @return The attributes, or null if they couldn't be read (e.g. a broken link)
+     */
+    private BasicFileAttributes attributes(Path p) {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class, linkOptions);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lists a directory, sorted so walks are repeatable
+     *
+     * @return The entries, or an empty list if the directory couldn't be read
+     */
+    private static List<Path> list(Path dir) {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) {
+                entries.add(p);
+            }
+        } catch (IOException e) {
+            // Unreadable directories are skipped
+            return Collections.emptyList();
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /**
+     * @return Something that identifies a directory, even when reached through different links
+     */
+    private static Object directoryKey(Path dir, BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        if (key != null) {
+            return key;
+        }
+        try {
+            return dir.toRealPath();
+        } catch (IOException e) {
+            return dir.toAbsolutePath().normalize();
+        }
+    }
+
+    private boolean isWanted(Path p, BasicFileAttributes attrs) {
+        // Unreadable files aren't checked for here, as that's another call per file and opening them reports it anyway
+        return attrs.isRegularFile() && filter.test(p);
+    }
+
+    /**
+     * A directory on the path currently being walked, for spotting link loops
+     */
+    private static final class Ancestor {
+
+        private final Object key;
+        private final Ancestor parent;
+
+        Ancestor(Object key, Ancestor parent) {
+            this.key = key;
+            this.parent = parent;
+        }
+
+        boolean contains(Object k) {
+            for (Ancestor a = this; a != null; a = a.parent) {
+                if (a.key.equals(k)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class SequentialIterator implements Iterator<Path> {
+
+        private final Deque<Iterator<Path>> entries = new ArrayDeque<>();
+        private final Deque<Ancestor> ancestors = new ArrayDeque<>();
+        private Path next;
+
+        SequentialIterator() {
+            BasicFileAttributes attrs = attributes(root);
+            if (attrs != null && attrs.isDirectory() && maxDepth > 0) {
+                entries.push(list(root).iterator());
+                ancestors.push(new Ancestor(directoryKey(root, attrs), null));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !entries.isEmpty()) {
+                Iterator<Path> current = entries.peek();
+                if (!current.hasNext()) {
+                    entries.pop();
+                    ancestors.pop();
+                    continue;
+                }
+
+                Path p = current.next();
+                BasicFileAttributes attrs = attributes(p);
+                if (attrs == null) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    Object key = directoryKey(p, attrs);
+                    if (entries.size() < maxDepth && !ancestors.peek().contains(key)) {
+                        entries.push(list(p).iterator());
+                        ancestors.push(new Ancestor(key, ancestors.peek()));
+                    }
+                } else if (isWanted(p, attrs)) {
+                    next = p;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Path next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Path result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Ancestor self;
+        private final int depth;
+        private final BlockingQueue<Object> found;
+
+        /**
+         * @param dir   The directory to list
+         * @param self  The directory's key, linked to its ancestors
+         * @param depth The depth of the directory's entries
+         * @param found Where to put matching files
+         */
+        DirectoryTask(Path dir, Ancestor self, int depth, BlockingQueue<Object> found) {
+            this.dir = dir;
+            this.self = self;
+            this.depth = depth;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirs = new ArrayList<>();
+            for (Path p : list(dir)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                BasicFileAttributes attrs = attributes(p);
+                if (attrs == null) {
+                    continue;
+                }
+                if (attrs.isDirectory()) {
+                    Object key = directoryKey(p, attrs);
+                    if (depth < maxDepth && !self.contains(key)) {
+                        subdirs.add(new DirectoryTask(p, new Ancestor(key, self), depth + 1, found));
+                    }
+                } else if (isWanted(p, attrs)) {
+                    put(found, p);
+                }
+            }
+            invokeAll(subdirs);
+        }
+    }
+
+    private static void put(BlockingQueue<Object> queue, Object found) {
+        try {
+            queue.put(found);
+        } catch (InterruptedException e) {
+            // The stream was closed, so nobody wants any more
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,794 @@
+package me.tombclarke.imageutils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Makes JPEGs smaller without changing a single pixel, by rewriting their segments rather than decoding them.
+ * <p>
+ * Segments are copied across one by one. APPn segments and comments are dropped by the metadata policy, along with
+ * vendor extras (FlashPix data, maker padding, multi-picture indexes and the images after the end marker they point
+ * to) and exact duplicates. Whatever the policy, segments needed to show the pixels properly (JFIF, the ICC profile and
+ * Adobe's colour transform) are kept, as the pixels are the original's.
+ * <p>
+ * Optionally, the Huffman tables are rebuilt for the image. Most cameras and encoders use the example tables from the
+ * JPEG standard rather than ones fitted to each image. The entropy-coded data is decoded as far as its Huffman symbols
+ * (no further, so nothing is dequantised or transformed), the symbols are counted, optimal tables are built from the
+ * counts as in Annex K.2 of the standard, and the same symbols are written back with the new codes. This is only done
+ * for baseline and extended sequential JPEGs with one scan, which is nearly all of them; others just have their
+ * segments filtered.
+ *
+ * @author Tom Clarke
+ */
+final class JpegRewriter {
+
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int RST0 = 0xD0;
+    private static final int RST7 = 0xD7;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DRI = 0xDD;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+    private static final int APP13 = 0xED;
+    private static final int APP14 = 0xEE;
+    private static final int APP15 = 0xEF;
+    private static final int COM = 0xFE;
+
+    // Codes up to this long are decoded with one table lookup
+    private static final int LOOKAHEAD = 9;
+
+    private JpegRewriter() {
+        // Nothing to do here
+    }
+
+    /**
+     * Rewrites a JPEG
+     *
+     * @param jpeg           The JPEG
+     * @param policy         Whether to keep descriptive metadata (EXIF, XMP, IPTC and comments)
+     * @param optimiseTables Whether to rebuild the Huffman tables for the image
+     * @return The rewritten JPEG, which decodes to exactly the same pixels
+     * @throws ImageException If the JPEG's structure or entropy-coded data is corrupt
+     */
+    static byte[] rewrite(byte[] jpeg, MetadataPolicy policy, boolean optimiseTables) throws ImageException {
+        List<int[]> segments = parse(jpeg);
+        boolean optimise = optimiseTables && isBaseline(jpeg, segments);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jpeg.length);
+        out.write(0xFF);
+        out.write(SOI);
+        Set<String> singles = new HashSet<>();
+        List<byte[]> kept = new ArrayList<>();
+        HuffmanTable[] dcTables = new HuffmanTable[4];
+        HuffmanTable[] acTables = new HuffmanTable[4];
+        Frame frame = null;
+        int restartInterval = 0;
+
+        for (int[] s : segments) {
+            int marker = s[0];
+            if (marker >= APP0 && marker <= APP15 || marker == COM) {
+                if (keep(jpeg, s, policy, singles, kept)) {
+                    out.write(jpeg, s[1], s[2] - s[1]);
+                }
+                continue;
+            }
+            if (marker == DHT) {
+                readTables(jpeg, s, dcTables, acTables);
+                if (optimise) {
+                    // Replaced by the rebuilt tables
+                    continue;
+                }
+            } else if (isFrame(marker) && frame == null) {
+                frame = new Frame(jpeg, s);
+            } else if (marker == DRI) {
+                if (s[2] - s[1] < 6) {
+                    throw new ImageException("JPEG has a corrupt restart interval.");
+                }
+                restartInterval = readShort(jpeg, s[1] + 4);
+            }
+
+            if (marker == SOS && optimise) {
+                if (frame == null) {
+                    throw new ImageException("JPEG has a scan before its frame header.");
+                }
+                Scan scan = new Scan(jpeg, s, frame, restartInterval);
+                scan.optimise(dcTables, acTables, out);
+            } else {
+                out.write(jpeg, s[1], (marker == SOS ? s[3] : s[2]) - s[1]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Splits a JPEG into its segments, as {marker, start, end} from the marker's first byte, with the end of the
+     * entropy-coded data after the header for scans. Anything after the end marker is left out.
+     */
+    private static List<int[]> parse(byte[] b) throws ImageException {
+        if (b.length < 4 || (b[0] & 0xFF) != 0xFF || (b[1] & 0xFF) != SOI) {
+            throw new ImageException("Not a JPEG.");
+        }
+        List<int[]> segments = new ArrayList<>();
+        int p = 2;
+        while (true) {
+            if (p + 1 >= b.length || (b[p] & 0xFF) != 0xFF) {
+                throw new ImageException("JPEG is corrupt or truncated at byte " + p + ".");
+            }
+            // Skip any fill bytes before the marker
+            while (p + 1 < b.length && (b[p + 1] & 0xFF) == 0xFF) {
+                p++;
+            }
+            int start = p;
+            int marker = b[p + 1] & 0xFF;
+            p += 2;
+            if (marker == EOI) {
+                segments.add(new int[]{EOI, start, p});
+                return segments;
+            }
+            if (marker >= RST0 && marker <= RST7 || marker == 0x01) {
+                // No length, and out of place here, but harmless
+                segments.add(new int[]{marker, start, p});
+                continue;
+            }
+            if (p + 2 > b.length || p + readShort(b, p) > b.length) {
+                throw new ImageException("JPEG is truncated in a segment at byte " + start + ".");
+            }
+            int end = p + readShort(b, p);
+            if (marker != SOS) {
+                segments.add(new int[]{marker, start, end});
+                p = end;
+                continue;
+            }
+
+            // The entropy-coded data runs to the next marker that isn't a stuffed zero or a restart
+            int dataEnd = end;
+            while (true) {
+                if (dataEnd + 1 >= b.length) {
+                    throw new ImageException("JPEG is truncated in its image data.");
+                }
+                if ((b[dataEnd] & 0xFF) == 0xFF) {
+                    int next = b[dataEnd + 1] & 0xFF;
+                    if (next != 0 && next != 0xFF && (next < RST0 || next > RST7)) {
+                        break;
+                    }
+                }
+                dataEnd++;
+            }
+            segments.add(new int[]{SOS, start, end, dataEnd});
+            p = dataEnd;
+        }
+    }
+
+    /**
+     * Decides whether to keep an APPn or COM segment
+     *
+     * @param singles The kinds of segment there should only be one of that have been kept so far
+     * @param kept    The payloads kept so far, so exact duplicates can be dropped
+     */
+    private static boolean keep(byte[] b, int[] s, MetadataPolicy policy, Set<String> singles, List<byte[]> kept) {
+        int marker = s[0];
+        int from = s[1] + 4;
+        String kind = null;
+        boolean essential = false;
+        boolean single = false;
+        if (marker == APP0 && startsWith(b, from, s[2], "JFIF\0")) {
+            kind = "JFIF";
+            essential = true;
+            single = true;
+        } else if (marker == APP1 && startsWith(b, from, s[2], "Exif\0")) {
+            kind = "Exif";
+            single = true;
+        } else if (marker == APP1 && startsWith(b, from, s[2], "http://ns.adobe.com/xap/1.0/\0")) {
+            kind = "XMP";
+            single = true;
+        } else if (marker == APP1 && startsWith(b, from, s[2], "http://ns.adobe.com/xmp/extension/\0")) {
+            kind = "Extended XMP";
+        } else if (marker == APP2 && startsWith(b, from, s[2], "ICC_PROFILE\0")) {
+            kind = "ICC";
+            essential = true;
+        } else if (marker == APP13 && startsWith(b, from, s[2], "Photoshop 3.0\0")) {
+            kind = "IPTC";
+        } else if (marker == APP14 && startsWith(b, from, s[2], "Adobe")) {
+            kind = "Adobe";
+            essential = true;
+            single = true;
+        } else if (marker == COM) {
+            kind = "Comment";
+        }
+
+        if (kind == null || !essential && policy == MetadataPolicy.STRIP) {
+            return false;
+        }
+        if (single && !singles.add(kind)) {
+            return false;
+        }
+        byte[] segment = Arrays.copyOfRange(b, s[1], s[2]);
+        for (byte[] k : kept) {
+            if (Arrays.equals(k, segment)) {
+                return false;
+            }
+        }
+        kept.add(segment);
+        return true;
+    }
+
+    /**
+     * Reads the Huffman tables defined in a DHT segment
+     */
+    private static void readTables(byte[] b, int[] s, HuffmanTable[] dcTables, HuffmanTable[] acTables) throws ImageException {
+        int p = s[1] + 4;
+        while (p < s[2]) {
+            int tc = (b[p] & 0xFF) >> 4;
+            int th = b[p] & 0x0F;
+            if (tc > 1 || th > 3 || p + 17 > s[2]) {
+                throw new ImageException("JPEG has a corrupt Huffman table.");
+            }
+            int[] counts = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                counts[i] = b[p + 1 + i] & 0xFF;
+                total += counts[i];
+            }
+            p += 17;
+            if (total > 256 || p + total > s[2]) {
+                throw new ImageException("JPEG has a corrupt Huffman table.");
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = b[p + i] & 0xFF;
+            }
+            p += total;
+            (tc == 0 ? dcTables : acTables)[th] = new HuffmanTable(counts, values);
+        }
+    }
+
+    /**
+     * Checks that a JPEG is sequential with 8 bit samples and its height up front, and has one scan covering every
+     * coefficient, which is what the tables can be rebuilt for
+     */
+    private static boolean isBaseline(byte[] b, List<int[]> segments) {
+        int[] frame = null;
+        int[] scan = null;
+        for (int[] s : segments) {
+            if (isFrame(s[0]) && frame == null) {
+                frame = s;
+            } else if (s[0] == SOS) {
+                if (scan != null) {
+                    return false;
+                }
+                scan = s;
+            }
+        }
+        if (frame == null || scan == null || frame[0] != SOF0 && frame[0] != SOF1 || frame[2] - frame[1] < 10) {
+            return false;
+        }
+        if ((b[frame[1] + 4] & 0xFF) != 8 || readShort(b, frame[1] + 5) == 0) {
+            return false;
+        }
+        int p = scan[1] + 4;
+        int count = b[p] & 0xFF;
+        if (p + 1 + 2 * count + 3 > scan[2]) {
+            return false;
+        }
+        return (b[p + 1 + 2 * count] & 0xFF) == 0 && (b[p + 2 + 2 * count] & 0xFF) == 63
+                && b[p + 3 + 2 * count] == 0;
+    }
+
+    private static boolean isFrame(int marker) {
+        // Every SOF marker except DHT, JPG and DAC
+        return marker >= SOF0 && marker <= 0xCF && marker != DHT && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean startsWith(byte[] b, int from, int end, String prefix) {
+        byte[] p = prefix.getBytes(StandardCharsets.ISO_8859_1);
+        if (end - from < p.length) {
+            return false;
+        }
+        for (int i = 0; i < p.length; i++) {
+            if (b[from + i] != p[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] b, int p) {
+        return (b[p] & 0xFF) << 8 | (b[p + 1] & 0xFF);
+    }
+
+    /**
+     * The parts of a frame header needed to walk the blocks of a scan
+     */
+    private static final class Frame {
+
+        private final int height;
+        private final int width;
+        private final int[] ids;
+        private final int[] h;
+        private final int[] v;
+        private int maxH = 1;
+        private int maxV = 1;
+
+        Frame(byte[] b, int[] s) throws ImageException {
+            int p = s[1] + 4;
+            if (p + 6 > s[2]) {
+                throw new ImageException("JPEG has a corrupt frame header.");
+            }
+            height = readShort(b, p + 1);
+            width = readShort(b, p + 3);
+            int count = b[p + 5] & 0xFF;
+            if (p + 6 + 3 * count > s[2]) {
+                throw new ImageException("JPEG has a corrupt frame header.");
+            }
+            ids = new int[count];
+            h = new int[count];
+            v = new int[count];
+            for (int c = 0; c < count; c++) {
+                int q = p + 6 + 3 * c;
+                ids[c] = b[q] & 0xFF;
+                h[c] = Math.max(1, (b[q + 1] & 0xFF) >> 4);
+                v[c] = Math.max(1, b[q + 1] & 0x0F);
+                maxH = Math.max(maxH, h[c]);
+                maxV = Math.max(maxV, v[c]);
+            }
+        }
+
+        int indexOf(int id) throws ImageException {
+            for (int c = 0; c < ids.length; c++) {
+                if (ids[c] == id) {
+                    return c;
+                }
+            }
+            throw new ImageException("JPEG scan refers to a component not in its frame.");
+        }
+    }
+
+    /**
+     * A baseline scan, decoded as far as its Huffman symbols and written back with tables built for them
+     */
+    private static final class Scan {
+
+        private final byte[] b;
+        private final int[] segment;
+        private final int restartInterval;
+        private final int[] dcTable;
+        private final int[] acTable;
+        // The scan component each block of an MCU belongs to
+        private final int[] blocks;
+        private final int mcus;
+
+        Scan(byte[] b, int[] segment, Frame frame, int restartInterval) throws ImageException {
+            this.b = b;
+            this.segment = segment;
+            this.restartInterval = restartInterval;
+            int p = segment[1] + 4;
+            int count = b[p] & 0xFF;
+            if (count < 1 || count > 4) {
+                throw new ImageException("JPEG has a corrupt scan header.");
+            }
+
+            dcTable = new int[count];
+            acTable = new int[count];
+            List<Integer> mcuBlocks = new ArrayList<>();
+            int component = -1;
+            for (int j = 0; j < count; j++) {
+                component = frame.indexOf(b[p + 1 + 2 * j] & 0xFF);
+                dcTable[j] = (b[p + 2 + 2 * j] & 0xFF) >> 4;
+                acTable[j] = b[p + 2 + 2 * j] & 0x0F;
+                if (dcTable[j] > 3 || acTable[j] > 3) {
+                    throw new ImageException("JPEG has a corrupt scan header.");
+                }
+                for (int k = 0; k < frame.h[component] * frame.v[component]; k++) {
+                    mcuBlocks.add(j);
+                }
+            }
+
+            if (count == 1) {
+                // Not interleaved, so an MCU is one block of the component, however it's sampled
+                int w = ceilDiv(frame.width * frame.h[component], frame.maxH);
+                int h = ceilDiv(frame.height * frame.v[component], frame.maxV);
+                mcus = ceilDiv(w, 8) * ceilDiv(h, 8);
+                blocks = new int[]{0};
+            } else {
+                mcus = ceilDiv(frame.width, 8 * frame.maxH) * ceilDiv(frame.height, 8 * frame.maxV);
+                blocks = new int[mcuBlocks.size()];
+                for (int k = 0; k < blocks.length; k++) {
+                    blocks[k] = mcuBlocks.get(k);
+                }
+            }
+        }
+
+        /**
+         * Counts the scan's symbols, then writes optimal tables, the scan header and the recoded data
+         */
+        void optimise(HuffmanTable[] dcTables, HuffmanTable[] acTables, ByteArrayOutputStream out) throws ImageException {
+            for (int j = 0; j < dcTable.length; j++) {
+                if (dcTables[dcTable[j]] == null || acTables[acTable[j]] == null) {
+                    throw new ImageException("JPEG scan uses a Huffman table it doesn't define.");
+                }
+            }
+
+            int[][] dcCounts = new int[4][257];
+            int[][] acCounts = new int[4][257];
+            code(dcTables, acTables, dcCounts, acCounts, null, null, null);
+
+            // One DHT segment with a table for each one used
+            ByteArrayOutputStream dht = new ByteArrayOutputStream();
+            Encoding[] dcCodes = new Encoding[4];
+            Encoding[] acCodes = new Encoding[4];
+            for (int t = 0; t < 4; t++) {
+                dcCodes[t] = Encoding.build(dcCounts[t], t, dht);
+            }
+            for (int t = 0; t < 4; t++) {
+                acCodes[t] = Encoding.build(acCounts[t], 0x10 | t, dht);
+            }
+            out.write(0xFF);
+            out.write(DHT);
+            out.write((dht.size() + 2) >> 8);
+            out.write(dht.size() + 2);
+            out.write(dht.toByteArray(), 0, dht.size());
+
+            out.write(b, segment[1], segment[2] - segment[1]);
+            BitWriter writer = new BitWriter(out);
+            code(dcTables, acTables, null, null, dcCodes, acCodes, writer);
+        }
+
+        /**
+         * Walks every block of the scan, either counting its symbols or writing them with new codes
+         */
+        private void code(HuffmanTable[] dcTables, HuffmanTable[] acTables, int[][] dcCounts, int[][] acCounts,
+                          Encoding[] dcCodes, Encoding[] acCodes, BitWriter writer) throws ImageException {
+            BitReader reader = new BitReader(b, segment[2], segment[3]);
+            for (int m = 0; m < mcus; m++) {
+                if (restartInterval > 0 && m > 0 && m % restartInterval == 0) {
+                    reader.restart();
+                    if (writer != null) {
+                        writer.restart(RST0 + (m / restartInterval - 1) % 8);
+                    }
+                }
+                for (int j : blocks) {
+                    HuffmanTable dc = dcTables[dcTable[j]];
+                    HuffmanTable ac = acTables[acTable[j]];
+
+                    int size = reader.decode(dc);
+                    if (size > 11) {
+                        throw new ImageException("JPEG has corrupt image data.");
+                    }
+                    int bits = reader.get(size);
+                    if (writer != null) {
+                        dcCodes[dcTable[j]].write(writer, size, bits, size);
+                    } else {
+                        dcCounts[dcTable[j]][size]++;
+                    }
+
+                    for (int k = 1; k < 64; ) {
+                        int rs = reader.decode(ac);
+                        int run = rs >> 4;
+                        size = rs & 0x0F;
+                        if (size > 10) {
+                            throw new ImageException("JPEG has corrupt image data.");
+                        }
+                        bits = reader.get(size);
+                        if (writer != null) {
+                            acCodes[acTable[j]].write(writer, rs, bits, size);
+                        } else {
+                            acCounts[acTable[j]][rs]++;
+                        }
+                        if (size == 0 && run != 15) {
+                            // End of block
+                            break;
+                        }
+                        k += run + 1;
+                        if (k > 64) {
+                            throw new ImageException("JPEG has corrupt image data.");
+                        }
+                    }
+                }
+            }
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+
+        private static int ceilDiv(int a, int b) {
+            return (a + b - 1) / b;
+        }
+    }
+
+    /**
+     * A Huffman table for decoding
+     */
+    private static final class HuffmanTable {
+
+        // (code length << 8) | symbol for each LOOKAHEAD bit prefix, or 0 if the code is longer
+        private final int[] lookup = new int[1 << LOOKAHEAD];
+        private final int[] maxCode = new int[18];
+        private final int[] valueOffset = new int[17];
+        private final int[] values;
+
+        HuffmanTable(int[] counts, int[] values) {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+                for (int i = 0; i < counts[length - 1]; i++) {
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        for (int fill = 0; fill < 1 << shift; fill++) {
+                            lookup[code << shift | fill] = length << 8 | values[k];
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[length] = counts[length - 1] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Codes for writing symbols, built from how often each is used
+     */
+    private static final class Encoding {
+
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        /**
+         * Builds optimal length-limited codes from symbol counts (Annex K.2), adding the table to a DHT segment
+         *
+         * @param counts How often each symbol is used, with a spare slot for the reserved code
+         * @param id     The table class and number, as written in the DHT segment
+         * @param dht    The DHT segment's content so far
+         * @return The codes, or null if the table isn't used
+         */
+        static Encoding build(int[] counts, int id, ByteArrayOutputStream dht) {
+            long[] freq = new long[257];
+            boolean used = false;
+            for (int i = 0; i < 256; i++) {
+                freq[i] = counts[i];
+                used |= counts[i] > 0;
+            }
+            if (!used) {
+                return null;
+            }
+            // A dummy symbol, so no real code is all ones
+            freq[256] = 1;
+
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            Arrays.fill(others, -1);
+            while (true) {
+                // The two least used, preferring later symbols on ties
+                int c1 = -1;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] > 0 && (c1 < 0 || freq[i] <= freq[c1])) {
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] > 0 && i != c1 && (c2 < 0 || freq[i] <= freq[c2])) {
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                freq[c1] += freq[c2];
+                freq[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] bits = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    bits[codeSize[i]]++;
+                }
+            }
+            // Move codes longer than 16 bits up, keeping the set of codes complete
+            for (int i = 32; i > 16; i--) {
+                while (bits[i] > 0) {
+                    int j = i - 2;
+                    while (bits[j] == 0) {
+                        j--;
+                    }
+                    bits[i] -= 2;
+                    bits[i - 1]++;
+                    bits[j + 1] += 2;
+                    bits[j]--;
+                }
+            }
+            // Drop the dummy symbol, which has the longest code
+            int longest = 16;
+            while (bits[longest] == 0) {
+                longest--;
+            }
+            bits[longest]--;
+
+            List<Integer> values = new ArrayList<>();
+            for (int length = 1; length <= 32; length++) {
+                for (int i = 0; i < 256; i++) {
+                    if (codeSize[i] == length) {
+                        values.add(i);
+                    }
+                }
+            }
+
+            dht.write(id);
+            for (int length = 1; length <= 16; length++) {
+                dht.write(bits[length]);
+            }
+            Encoding encoding = new Encoding();
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length]; i++) {
+                    int symbol = values.get(k++);
+                    dht.write(symbol);
+                    encoding.codes[symbol] = code++;
+                    encoding.sizes[symbol] = length;
+                }
+                code <<= 1;
+            }
+            return encoding;
+        }
+
+        void write(BitWriter writer, int symbol, int bits, int size) {
+            writer.put(codes[symbol], sizes[symbol]);
+            writer.put(bits, size);
+        }
+    }
+
+    /**
+     * Reads the bits of entropy-coded data, undoing byte stuffing and stopping at markers
+     */
+    private static final class BitReader {
+
+        private final byte[] b;
+        private final int end;
+        private int p;
+        private long buffer;
+        private int bits;
+        // How many of the buffered bits are zeros made up past a marker or the end
+        private int padding;
+
+        BitReader(byte[] b, int start, int end) {
+            this.b = b;
+            this.p = start;
+            this.end = end;
+        }
+
+        private void fill() {
+            while (bits <= 56) {
+                int next = 0;
+                if (p < end && ((b[p] & 0xFF) != 0xFF || p + 1 < end && b[p + 1] == 0)) {
+                    next = b[p] & 0xFF;
+                    p += next == 0xFF ? 2 : 1;
+                } else {
+                    padding += 8;
+                }
+                buffer = buffer << 8 | next;
+                bits += 8;
+            }
+        }
+
+        int get(int n) throws ImageException {
+            if (n == 0) {
+                return 0;
+            }
+            fill();
+            int value = (int) (buffer >>> (bits - n)) & ((1 << n) - 1);
+            skip(n);
+            return value;
+        }
+
+        int decode(HuffmanTable table) throws ImageException {
+            fill();
+            int entry = table.lookup[(int) (buffer >>> (bits - LOOKAHEAD)) & ((1 << LOOKAHEAD) - 1)];
+            if (entry != 0) {
+                skip(entry >> 8);
+                return entry & 0xFF;
+            }
+            int code = get(LOOKAHEAD);
+            int length = LOOKAHEAD;
+            while (code > table.maxCode[length]) {
+                code = code << 1 | get(1);
+                length++;
+                if (length > 16) {
+                    throw new ImageException("JPEG has corrupt image data.");
+                }
+            }
+            return table.values[table.valueOffset[length] + code];
+        }
+
+        private void skip(int n) throws ImageException {
+            bits -= n;
+            if (bits < padding) {
+                throw new ImageException("JPEG image data ends early.");
+            }
+        }
+
+        /**
+         * Moves past the padding at the end of a restart interval and the restart marker after it
+         */
+        void restart() throws ImageException {
+            if (bits - padding >= 8 || p + 1 >= end || (b[p] & 0xFF) != 0xFF
+                    || (b[p + 1] & 0xFF) < RST0 || (b[p + 1] & 0xFF) > RST7) {
+                throw new ImageException("JPEG has a missing restart marker.");
+            }
+            p += 2;
+            buffer = 0;
+            bits = 0;
+            padding = 0;
+        }
+    }
+
+    /**
+     * Writes entropy-coded data, stuffing a zero after every 0xFF byte
+     */
+    private static final class BitWriter {
+
+        private final ByteArrayOutputStream out;
+        private long buffer;
+        private int bits;
+
+        BitWriter(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void put(int value, int size) {
+            if (size == 0) {
+                return;
+            }
+            buffer = buffer << size | (value & ((1 << size) - 1));
+            bits += size;
+            while (bits >= 8) {
+                int next = (int) (buffer >>> (bits - 8)) & 0xFF;
+                out.write(next);
+                if (next == 0xFF) {
+                    out.write(0);
+                }
+                bits -= 8;
+            }
+        }
+
+        /**
+         * Pads the last byte with ones
+         */
+        void flush() {
+            if (bits > 0) {
+                put((1 << (8 - bits)) - 1, 8 - bits);
+            }
+        }
+
+        void restart(int marker) {
+            flush();
+            out.write(0xFF);
+            out.write(marker);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package me.tombclarke.imageutils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads rows of an image as 0-255 luminance values into a reused int array. The standard byte and int pixel layouts
+ * (which ImageIO decodes JPEGs and PNGs to) are read straight from the data buffer; anything else goes through getRGB.
+ *
+ * @author Tom Clarke
+ */
+final class Luma {
+
+    private Luma() {
+        // Nothing to do here
+    }
+
+    /**
+     * Reads one row of luminance values
+     *
+     * @param image   The image to read from
+     * @param y       The row to read
+     * @param out     Where to put the values, at least as long as the image is wide
+     * @param scratch Space for the getRGB fallback, at least as long as the image is wide
+     */
+    static void readRow(BufferedImage image, int y, int[] out, int[] scratch) {
+        Raster raster = image.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        int w = image.getWidth();
+        int tx = raster.getSampleModelTranslateX();
+        int ty = raster.getSampleModelTranslateY();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                ComponentSampleModel csm = (ComponentSampleModel) sm;
+                byte[] data = ((DataBufferByte) db).getData();
+                int[] offsets = csm.getBandOffsets();
+                int pixelStride = csm.getPixelStride();
+                int i = db.getOffset() + (y - ty) * csm.getScanlineStride() - tx * pixelStride;
+                if (offsets.length == 1) {
+                    for (int x = 0; x < w; x++, i += pixelStride) {
+                        out[x] = data[i + offsets[0]] & 0xFF;
+                    }
+                } else {
+                    int r = offsets[0];
+                    int g = offsets[1];
+                    int b = offsets[2];
+                    for (int x = 0; x < w; x++, i += pixelStride) {
+                        out[x] = luma(data[i + r] & 0xFF, data[i + g] & 0xFF, data[i + b] & 0xFF);
+                    }
+                }
+                return;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB: {
+                SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+                int[] data = ((DataBufferInt) db).getData();
+                int i = db.getOffset() + (y - ty) * sppsm.getScanlineStride() - tx;
+                for (int x = 0; x < w; x++, i++) {
+                    int p = data[i];
+                    out[x] = luma((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF);
+                }
+                return;
+            }
+            default:
+                image.getRGB(0, y, w, 1, scratch, 0, w);
+                for (int x = 0; x < w; x++) {
+                    int p = scratch[x];
+                    out[x] = luma((p >> 16) & 0xFF, (p >> 8) & 0xFF, p & 0xFF);
+                }
+        }
+    }
+
+    /**
+     * @return The luminance of a colour, 0-255, using integer Rec. 601 weights
+     */
+    static int luma(int r, int g, int b) {
+        return (r * 77 + g * 150 + b * 29) >> 8;
+    }
+}
@@ -0,0 +1,159 @@
+package me.tombclarke.imageutils;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+
+/**
+ * Limits how much memory decoded images can take at once, so the number of images being worked on adapts to their
+ * size rather than a few huge ones running the heap out.
+ * <p>
+ * Workers estimate what an image will need from its header, before decoding anything, and acquire that much before
+ * going ahead, releasing it once they're done with the image. Workers are let in the order they asked, so a big image
+ * isn't starved by a stream of small ones. An image bigger than the whole budget waits until nothing else holds any,
+ * then runs on its own. Images with more pixels than a hard limit shouldn't be decoded at all, as decoding alone could
+ * take minutes or more memory than there is.
+ *
+ * @author Tom Clarke
+ */
+final class MemoryBudget {
+
+    /**
+     * The default limit on pixels in an image, about 180 megapixels (e.g. 16000x11000)
+     */
+    static final long DEFAULT_MAX_PIXELS = 178956970;
+    /**
+     * The default fraction of the maximum heap decoded images can take
+     */
+    static final double DEFAULT_HEAP_FRACTION = 0.5;
+
+    // Assumed when the header doesn't say, the most a standard decoded pixel takes
+    private static final int DEFAULT_BYTES_PER_PIXEL = 4;
+
+    private final long capacity;
+    private final Queue<Object> waiting = new ArrayDeque<>();
+    private long available;
+
+    /**
+     * @param capacity The most bytes that can be held at once
+     */
+    MemoryBudget(long capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.available = this.capacity;
+    }
+
+    /**
+     * @return A budget of the default fraction of the maximum heap
+     */
+    static MemoryBudget forHeap() {
+        return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * Waits until the given number of bytes are free, then takes them
+     *
+     * @param bytes The bytes needed
+     * @return The bytes actually taken (capped at the whole budget), to be passed to release
+     * @throws InterruptedException If interrupted while waiting, in which case nothing is taken
+     */
+    synchronized long acquire(long bytes) throws InterruptedException {
+        long wanted = Math.min(Math.max(0, bytes), capacity);
+        Object turn = new Object();
+        waiting.add(turn);
+        try {
+            while (waiting.peek() != turn || available < wanted) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(turn);
+            notifyAll();
+            throw e;
+        }
+        waiting.remove();
+        available -= wanted;
+        // The next in line may fit too
+        notifyAll();
+        return wanted;
+    }
+
+    /**
+     * Gives back bytes taken by acquire
+     *
+     * @param bytes The bytes acquire returned
+     */
+    synchronized void release(long bytes) {
+        if (bytes > 0) {
+            available += bytes;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return The most bytes that can be held at once
+     */
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The bytes not currently held
+     */
+    synchronized long getAvailable() {
+        return available;
+    }
+
+    /**
+     * Checks an image's size from its header against a pixel limit
+     *
+     * @param reader    A reader set up on the image
+     * @param maxPixels The most pixels an image may have
+     * @param file      The image, for the message
+     * @throws ImageException If the image has too many pixels
+     * @throws IOException    If the header couldn't be read
+     */
+    static void checkPixels(ImageReader reader, long maxPixels, File file) throws IOException, ImageException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if ((long) width * height > maxPixels) {
+            throw new ImageException("Image " + file + " is " + width + "x" + height + ", over the limit of "
+                    + maxPixels + " pixels.");
+        }
+    }
+
+    /**
+     * Estimates how many bytes decoding an image will take, from its header
+     *
+     * @param reader      A reader set up on the image
+     * @param subsampling How many source pixels will be skipped per decoded pixel
+     * @return The estimated size of the decoded image in bytes
+     * @throws IOException If the header couldn't be read
+     */
+    static long estimateDecode(ImageReader reader, int subsampling) throws IOException {
+        long width = (reader.getWidth(0) + subsampling - 1) / subsampling;
+        long height = (reader.getHeight(0) + subsampling - 1) / subsampling;
+        return width * height * getBytesPerPixel(reader);
+    }
+
+    /**
+     * Works out how many bytes a decoded pixel takes, from the type the reader will decode to, so 16 bit and
+     * transparent images are counted properly
+     */
+    private static int getBytesPerPixel(ImageReader reader) throws IOException {
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            type = types.hasNext() ? types.next() : null;
+        }
+        if (type == null) {
+            return DEFAULT_BYTES_PER_PIXEL;
+        }
+        SampleModel sm = type.getSampleModel(1, 1);
+        return Math.max(1, sm.getNumDataElements() * DataBuffer.getDataTypeSize(sm.getDataType()) / 8);
+    }
+}
@@ -0,0 +1,17 @@
+package me.tombclarke.imageutils;
+
+/**
+ * What happens to an image's metadata (EXIF, XMP, IPTC, comments, PNG text and colour chunks) when it's rewritten
+ *
+ * @author Tom Clarke
+ */
+public enum MetadataPolicy {
+    /**
+     * Carry the original's metadata over, so orientation, camera details and colour information survive
+     */
+    KEEP,
+    /**
+     * Write only what the format needs to display the pixels (the original behaviour), e.g. to not publish locations
+     */
+    STRIP
+}
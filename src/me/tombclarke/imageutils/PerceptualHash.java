@@ -0,0 +1,53 @@
+package me.tombclarke.imageutils;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A 64 bit difference hash (dHash) of an image. The image is shrunk to 9x8 grey pixels and each bit says whether a
+ * pixel is darker than the one to its right, so the hash only depends on the broad pattern of light and dark. Resizes,
+ * re-encodes and small edits of the same photo come out within a few bits of each other, and unrelated photos differ
+ * in about half of them.
+ *
+ * @author Tom Clarke
+ */
+final class PerceptualHash {
+
+    /**
+     * The size a decode can be subsampled down to and still hash the same, as the hash averages it down anyway
+     */
+    static final int SAMPLE_SIZE = 64;
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+    private PerceptualHash() {
+        // Nothing to do here
+    }
+
+    /**
+     * Hashes an image
+     *
+     * @param image The image, which can be a subsampled decode
+     * @return The hash
+     */
+    static long of(BufferedImage image) {
+        BufferedImage small = Resizer.resize(image, WIDTH, HEIGHT, ResizeFilter.BOX);
+        int[] row = new int[WIDTH];
+        int[] scratch = new int[WIDTH];
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            Luma.readRow(small, y, row, scratch);
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash = (hash << 1) | (row[x] < row[x + 1] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return The number of bits two hashes differ in, from 0 (probably the same image) to 64
+     */
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
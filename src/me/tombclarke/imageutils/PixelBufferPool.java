@@ -0,0 +1,209 @@
+package me.tombclarke.imageutils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps images and scratch arrays that are done with, so the next image of the same shape can reuse them rather than
+ * allocating its own. A batch of photos from one camera is mostly one or two shapes, so after the first few images
+ * decoding and resizing allocate almost nothing.
+ * <p>
+ * Images are kept by width, height and type, and only for the standard types with no palette, as those are fully
+ * described by their type. Scratch arrays are kept by length. The pool only holds up to its capacity: beyond that, the
+ * shapes used least recently are dropped to make room. Buffers given back must no longer be used by anything else.
+ *
+ * @author Tom Clarke
+ */
+final class PixelBufferPool {
+
+    private final long capacity;
+    // In least recently used order, so the shapes that have gone out of use are dropped first
+    private final Map<Object, ArrayDeque<Object>> free = new LinkedHashMap<>(16, 0.75f, true);
+    private long held = 0;
+    private long reused = 0;
+    private long allocated = 0;
+
+    /**
+     * @param capacity The most bytes of buffers to keep at once
+     */
+    PixelBufferPool(long capacity) {
+        this.capacity = Math.max(0, capacity);
+    }
+
+    /**
+     * @param type A BufferedImage type
+     * @return Whether images of the type can be pooled
+     */
+    static boolean isPooled(int type) {
+        switch (type) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Takes an image from the pool, or makes a new one if there isn't one that shape
+     *
+     * @param width  The image's width
+     * @param height The image's height
+     * @param type   The image's type
+     * @param clear  Whether a reused image should be cleared, for when not every pixel will be written (e.g. decoding,
+     *               which may stop part way)
+     * @return The image
+     */
+    BufferedImage takeImage(int width, int height, int type, boolean clear) {
+        BufferedImage image = isPooled(type) ? (BufferedImage) take(new Shape(width, height, type)) : null;
+        if (image == null) {
+            return new BufferedImage(width, height, type);
+        }
+        if (clear) {
+            DataBuffer buffer = image.getRaster().getDataBuffer();
+            if (buffer instanceof DataBufferByte) {
+                Arrays.fill(((DataBufferByte) buffer).getData(), (byte) 0);
+            } else {
+                Arrays.fill(((DataBufferInt) buffer).getData(), 0);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Gives an image back to the pool, if it's a type that can be pooled
+     *
+     * @param image The image, which mustn't be used again
+     */
+    void give(BufferedImage image) {
+        if (image == null || !isPooled(image.getType()) || image.getRaster().getParent() != null) {
+            // Unknown layouts and subimages can't be handed out as new images
+            return;
+        }
+        put(new Shape(image.getWidth(), image.getHeight(), image.getType()), image, sizeOf(image));
+    }
+
+    /**
+     * Takes a scratch array from the pool, or makes a new one if there isn't one that length. Its contents are
+     * whatever was left in it.
+     *
+     * @param length The array's length
+     * @return The array
+     */
+    byte[] takeBytes(int length) {
+        byte[] bytes = (byte[]) take(length);
+        return bytes != null ? bytes : new byte[length];
+    }
+
+    /**
+     * Gives a scratch array back to the pool
+     *
+     * @param bytes The array, which mustn't be used again
+     */
+    void give(byte[] bytes) {
+        if (bytes != null) {
+            put(bytes.length, bytes, bytes.length);
+        }
+    }
+
+    /**
+     * @return How many buffers were taken from the pool rather than allocated
+     */
+    synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * @return How many buffers had to be allocated
+     */
+    synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * @return The bytes of buffers held for reuse
+     */
+    synchronized long getHeld() {
+        return held;
+    }
+
+    private synchronized Object take(Object key) {
+        ArrayDeque<Object> buffers = free.get(key);
+        if (buffers == null || buffers.isEmpty()) {
+            allocated++;
+            return null;
+        }
+        Object buffer = buffers.pop();
+        held -= sizeOf(buffer);
+        if (buffers.isEmpty()) {
+            free.remove(key);
+        }
+        reused++;
+        return buffer;
+    }
+
+    private synchronized void put(Object key, Object buffer, long bytes) {
+        if (bytes > capacity) {
+            return;
+        }
+        // Drop the least recently used shapes until it fits
+        Iterator<ArrayDeque<Object>> oldest = free.values().iterator();
+        while (held + bytes > capacity && oldest.hasNext()) {
+            for (Object dropped : oldest.next()) {
+                held -= sizeOf(dropped);
+            }
+            oldest.remove();
+        }
+        free.computeIfAbsent(key, k -> new ArrayDeque<>()).push(buffer);
+        held += bytes;
+    }
+
+    private static long sizeOf(Object buffer) {
+        if (buffer instanceof byte[]) {
+            return ((byte[]) buffer).length;
+        }
+        DataBuffer data = ((BufferedImage) buffer).getRaster().getDataBuffer();
+        return (long) data.getSize() * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+    }
+
+    /**
+     * The width, height and type images are pooled by
+     */
+    private static final class Shape {
+
+        private final int width;
+        private final int height;
+        private final int type;
+
+        private Shape(int width, int height, int type) {
+            this.width = width;
+            this.height = height;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            Shape other = (Shape) o;
+            return width == other.width && height == other.height && type == other.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(width, height, type);
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package me.tombclarke.imageutils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Makes PNGs smaller without changing their pixels, by searching for the best way to compress their image data.
+ * <p>
+ * PNG compression has two halves: each scanline is filtered (predicted from its neighbours), then everything is
+ * deflated. Which filter suits an image, and which deflate settings suit the filtered data, varies a lot, and ImageIO
+ * only ever tries one of each. Here the image data is unfiltered once, then every filter strategy (each of the five
+ * filters for every line, and picking per line by the usual smallest sum heuristic) is deflated with every setting, all
+ * at once on an executor, and the smallest wins.
+ * <p>
+ * Before that, 8 bit images with an alpha channel that's all opaque lose it, and 8 bit colour images with at most 256
+ * colours become paletted, packed as tightly as the palette allows. Interlaced images are written non-interlaced.
+ * Ancillary chunks are copied as they are, except that the few describing colour samples (bKGD, sBIT and tRNS) are
+ * rewritten to match a new colour type, and descriptive metadata (text, time and EXIF) is dropped by the metadata
+ * policy. Images with chunks that mustn't be copied when the image data changes, which includes animated PNGs, are
+ * left alone.
+ *
+ * @author Tom Clarke
+ */
+final class PngOptimiser {
+
+    /**
+     * The number of filter strategies tried, each of which holds a filtered copy of the image data while it's deflated
+     */
+    static final int FILTERS = 6;
+
+    private static final int ADAPTIVE = 5;
+    private static final int[][] DEFLATE_SETTINGS = {
+            {Deflater.BEST_COMPRESSION, Deflater.DEFAULT_STRATEGY},
+            {Deflater.BEST_COMPRESSION, Deflater.FILTERED},
+            {Deflater.BEST_COMPRESSION, Deflater.HUFFMAN_ONLY}};
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+
+    private static final Set<String> CRITICAL = new HashSet<>(Arrays.asList("IHDR", "PLTE", "IDAT", "IEND"));
+    // Chunks that must come before a palette
+    private static final Set<String> BEFORE_PALETTE = new HashSet<>(Arrays.asList("cHRM", "gAMA", "iCCP", "sBIT", "sRGB"));
+    // Ancillary chunks whose meaning doesn't depend on how the image data is compressed
+    private static final Set<String> KNOWN = new HashSet<>(Arrays.asList(
+            "bKGD", "cHRM", "gAMA", "hIST", "iCCP", "iTXt", "pHYs", "sBIT", "sPLT", "sRGB", "sTER", "tEXt", "tIME",
+            "tRNS", "zTXt", "eXIf"));
+    private static final Set<String> METADATA = new HashSet<>(Arrays.asList("iTXt", "tEXt", "tIME", "zTXt", "eXIf"));
+
+    // Where each Adam7 pass starts, and how far apart its pixels are
+    private static final int[] PASS_X = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] PASS_Y = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] PASS_DX = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] PASS_DY = {8, 8, 8, 4, 4, 2, 2};
+
+    private PngOptimiser() {
+        // Nothing to do here
+    }
+
+    /**
+     * Rewrites a PNG as small as it can be made without changing its pixels
+     *
+     * @param png      The PNG
+     * @param policy   Whether to keep descriptive metadata (text, time and EXIF chunks)
+     * @param executor Runs the compression trials, as many at once as it allows
+     * @return The rewritten PNG, or the original if it can't safely be rewritten
+     * @throws ImageException If the PNG is corrupt, or interrupted while searching
+     */
+    static byte[] optimise(byte[] png, MetadataPolicy policy, Executor executor) throws ImageException {
+        List<Chunk> chunks = parse(png);
+        Chunk header = chunks.get(0);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for (Chunk c : chunks) {
+            if (c.isCritical() ? !CRITICAL.contains(c.type) : !KNOWN.contains(c.type) && !c.isSafeToCopy()) {
+                // Its meaning may depend on the image data, so it can't be carried over or dropped
+                return png;
+            }
+            if (c.type.equals("IDAT")) {
+                compressed.write(c.data, 0, c.data.length);
+            }
+        }
+
+        Image image = new Image(header.data);
+        Chunk palette = find(chunks, "PLTE");
+        if (image.colourType == PALETTE && palette == null) {
+            throw new ImageException("PNG is paletted but has no palette.");
+        }
+        byte[] pixels = image.unfilter(inflate(compressed.toByteArray(), image.getFilteredSize()));
+
+        // Chunks describing colour samples are rewritten if the colour type changes
+        Map<String, Chunk> rewritten = new LinkedHashMap<>();
+        pixels = reduce(image, pixels, chunks, rewritten);
+
+        byte[] data = search(image, pixels, executor);
+
+        // Colour chunks go before the palette, then the palette, then the rest before the image data
+        List<Chunk> before = new ArrayList<>();
+        List<Chunk> after = new ArrayList<>();
+        boolean seenData = false;
+        for (Chunk c : chunks.subList(1, chunks.size())) {
+            if (c.type.equals("IDAT")) {
+                seenData = true;
+            } else if (!c.type.equals("PLTE") && !(policy == MetadataPolicy.STRIP && METADATA.contains(c.type))) {
+                (seenData ? after : before).add(c);
+            }
+        }
+        if (rewritten.get("tRNS") != null && find(chunks, "tRNS") == null) {
+            before.add(rewritten.get("tRNS"));
+        }
+        if (!rewritten.containsKey("PLTE")) {
+            rewritten.put("PLTE", palette);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(png.length);
+        out.write(SIGNATURE, 0, SIGNATURE.length);
+        writeChunk(out, new Chunk("IHDR", image.getHeader()), rewritten);
+        for (Chunk c : before) {
+            if (BEFORE_PALETTE.contains(c.type)) {
+                writeChunk(out, c, rewritten);
+            }
+        }
+        if (rewritten.get("PLTE") != null) {
+            writeChunk(out, rewritten.get("PLTE"), rewritten);
+        }
+        for (Chunk c : before) {
+            if (!BEFORE_PALETTE.contains(c.type)) {
+                writeChunk(out, c, rewritten);
+            }
+        }
+        writeChunk(out, new Chunk("IDAT", data), rewritten);
+        for (Chunk c : after) {
+            writeChunk(out, c, rewritten);
+        }
+        writeChunk(out, new Chunk("IEND", new byte[0]), rewritten);
+        return out.toByteArray();
+    }
+
+    /**
+     * Splits a PNG into its chunks, checking their lengths and CRCs
+     */
+    private static List<Chunk> parse(byte[] b) throws ImageException {
+        if (b.length < SIGNATURE.length || !Arrays.equals(Arrays.copyOf(b, SIGNATURE.length), SIGNATURE)) {
+            throw new ImageException("Not a PNG.");
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        int p = SIGNATURE.length;
+        while (true) {
+            if (p + 12 > b.length) {
+                throw new ImageException("PNG is truncated at byte " + p + ".");
+            }
+            long length = readInt(b, p);
+            if (length > b.length - p - 12) {
+                throw new ImageException("PNG is truncated in a chunk at byte " + p + ".");
+            }
+            String type = new String(b, p + 4, 4, StandardCharsets.ISO_8859_1);
+            CRC32 crc = new CRC32();
+            crc.update(b, p + 4, 4 + (int) length);
+            if (crc.getValue() != readInt(b, p + 8 + (int) length)) {
+                throw new ImageException("PNG chunk " + type + " at byte " + p + " is corrupt.");
+            }
+            Chunk chunk = new Chunk(type, Arrays.copyOfRange(b, p + 8, p + 8 + (int) length));
+            if (chunks.isEmpty() && !type.equals("IHDR")) {
+                throw new ImageException("PNG doesn't start with a header.");
+            }
+            p += 12 + (int) length;
+            if (type.equals("IEND")) {
+                return chunks;
+            }
+            chunks.add(chunk);
+        }
+    }
+
+    private static Chunk find(List<Chunk> chunks, String type) {
+        for (Chunk c : chunks) {
+            if (c.type.equals(type)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inflates the image data, which must be at least the expected size
+     */
+    private static byte[] inflate(byte[] compressed, long size) throws ImageException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new ImageException("PNG is too big to optimise.");
+        }
+        byte[] filtered = new byte[(int) size];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < filtered.length) {
+                int read = inflater.inflate(filtered, n, filtered.length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ImageException("PNG image data ends early.");
+                }
+                n += read;
+            }
+            return filtered;
+        } catch (DataFormatException e) {
+            throw new ImageException("PNG image data is corrupt: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Drops an opaque alpha channel, or turns an 8 bit colour image with at most 256 colours into a paletted one,
+     * rewriting the chunks that describe colour samples to suit
+     *
+     * @param image     The image, whose colour type and bit depth are changed
+     * @param pixels    The unfiltered image data
+     * @param chunks    The image's chunks
+     * @param rewritten Where to put rewritten chunks, or null values for chunks to drop
+     * @return The image data for the new colour type
+     */
+    private static byte[] reduce(Image image, byte[] pixels, List<Chunk> chunks, Map<String, Chunk> rewritten) {
+        if (image.bitDepth != 8 || image.colourType == GREY || image.colourType == PALETTE) {
+            return pixels;
+        }
+        int channels = image.getChannels();
+        int count = image.width * image.height;
+
+        if (image.colourType == GREY_ALPHA) {
+            for (int i = 1; i < pixels.length; i += 2) {
+                if (pixels[i] != (byte) 0xFF) {
+                    return pixels;
+                }
+            }
+            byte[] grey = new byte[count];
+            for (int i = 0; i < count; i++) {
+                grey[i] = pixels[2 * i];
+            }
+            Chunk significant = find(chunks, "sBIT");
+            if (significant != null && significant.data.length == 2) {
+                rewritten.put("sBIT", new Chunk("sBIT", Arrays.copyOf(significant.data, 1)));
+            }
+            image.colourType = GREY;
+            return grey;
+        }
+
+        // The transparent colour of an RGB image, as its tRNS chunk gives it
+        int transparent = -1;
+        Chunk transparency = find(chunks, "tRNS");
+        if (image.colourType == RGB && transparency != null && transparency.data.length == 6) {
+            transparent = (transparency.data[1] & 0xFF) << 16 | (transparency.data[3] & 0xFF) << 8 | transparency.data[5] & 0xFF;
+        }
+
+        // Gather the colours as ARGB, in the order they're first seen, stopping if there are too many for a palette
+        Map<Integer, Integer> colours = new LinkedHashMap<>();
+        boolean opaque = true;
+        for (int i = 0; i < count; i++) {
+            int o = i * channels;
+            int rgb = (pixels[o] & 0xFF) << 16 | (pixels[o + 1] & 0xFF) << 8 | pixels[o + 2] & 0xFF;
+            int alpha = channels == 4 ? pixels[o + 3] & 0xFF : rgb == transparent ? 0 : 0xFF;
+            opaque &= alpha == 0xFF;
+            if (colours != null && !colours.containsKey(alpha << 24 | rgb)) {
+                colours.put(alpha << 24 | rgb, colours.size());
+                if (colours.size() > 256) {
+                    colours = null;
+                }
+            }
+            if (colours == null && !opaque) {
+                return pixels;
+            }
+        }
+
+        if (colours == null) {
+            if (image.colourType == RGB) {
+                return pixels;
+            }
+            byte[] rgb = new byte[count * 3];
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(pixels, i * 4, rgb, i * 3, 3);
+            }
+            Chunk significant = find(chunks, "sBIT");
+            if (significant != null && significant.data.length == 4) {
+                rewritten.put("sBIT", new Chunk("sBIT", Arrays.copyOf(significant.data, 3)));
+            }
+            image.colourType = RGB;
+            return rgb;
+        }
+
+        // Translucent entries first, so the transparency chunk can stop at the last of them
+        List<Integer> entries = new ArrayList<>(colours.keySet());
+        entries.sort((a, b) -> Boolean.compare(a >>> 24 == 0xFF, b >>> 24 == 0xFF));
+        Chunk background = find(chunks, "bKGD");
+        int backgroundIndex = -1;
+        if (background != null && background.data.length == 6) {
+            int rgb = (background.data[1] & 0xFF) << 16 | (background.data[3] & 0xFF) << 8 | background.data[5] & 0xFF;
+            backgroundIndex = entries.indexOf(0xFF000000 | rgb);
+            if (backgroundIndex < 0 && entries.size() < 256) {
+                // An extra entry no pixel uses
+                entries.add(0xFF000000 | rgb);
+                backgroundIndex = entries.size() - 1;
+            }
+        }
+        Map<Integer, Integer> indices = new LinkedHashMap<>();
+        byte[] plte = new byte[entries.size() * 3];
+        byte[] trns = new byte[entries.size()];
+        int translucent = 0;
+        for (int e = 0; e < entries.size(); e++) {
+            int argb = entries.get(e);
+            indices.put(argb, e);
+            plte[e * 3] = (byte) (argb >> 16);
+            plte[e * 3 + 1] = (byte) (argb >> 8);
+            plte[e * 3 + 2] = (byte) argb;
+            trns[e] = (byte) (argb >>> 24);
+            if (argb >>> 24 != 0xFF) {
+                translucent = e + 1;
+            }
+        }
+
+        int bitDepth = entries.size() <= 2 ? 1 : entries.size() <= 4 ? 2 : entries.size() <= 16 ? 4 : 8;
+        int rowBytes = (image.width * bitDepth + 7) / 8;
+        byte[] packed = new byte[rowBytes * image.height];
+        for (int y = 0; y < image.height; y++) {
+            for (int x = 0; x < image.width; x++) {
+                int o = (y * image.width + x) * channels;
+                int rgb = (pixels[o] & 0xFF) << 16 | (pixels[o + 1] & 0xFF) << 8 | pixels[o + 2] & 0xFF;
+                int alpha = channels == 4 ? pixels[o + 3] & 0xFF : rgb == transparent ? 0 : 0xFF;
+                setBits(packed, y * rowBytes, x, bitDepth, indices.get(alpha << 24 | rgb));
+            }
+        }
+
+        rewritten.put("PLTE", new Chunk("PLTE", plte));
+        rewritten.put("tRNS", translucent > 0 ? new Chunk("tRNS", Arrays.copyOf(trns, translucent)) : null);
+        if (background != null) {
+            rewritten.put("bKGD", backgroundIndex >= 0 ? new Chunk("bKGD", new byte[]{(byte) backgroundIndex}) : null);
+        }
+        Chunk significant = find(chunks, "sBIT");
+        if (significant != null && significant.data.length >= 3) {
+            rewritten.put("sBIT", new Chunk("sBIT", Arrays.copyOf(significant.data, 3)));
+        }
+        // A histogram belongs to the suggested palette being replaced
+        if (find(chunks, "hIST") != null) {
+            rewritten.put("hIST", null);
+        }
+        image.colourType = PALETTE;
+        image.bitDepth = bitDepth;
+        return packed;
+    }
+
+    /**
+     * Filters and deflates the image data every way at once, returning the smallest
+     */
+    private static byte[] search(Image image, byte[] pixels, Executor executor) throws ImageException {
+        int rowBytes = image.getRowBytes();
+        int bpp = image.getFilterDistance();
+        List<CompletableFuture<byte[]>> trials = new ArrayList<>();
+        for (int f = 0; f < FILTERS; f++) {
+            final int filter = f;
+            CompletableFuture<byte[]> filtered = CompletableFuture.supplyAsync(
+                    () -> filter(pixels, rowBytes, image.height, bpp, filter), executor);
+            for (int[] settings : DEFLATE_SETTINGS) {
+                trials.add(filtered.thenApplyAsync(data -> deflate(data, settings[0], settings[1]), executor));
+            }
+        }
+
+        byte[] best = null;
+        try {
+            for (CompletableFuture<byte[]> trial : trials) {
+                byte[] data = trial.get();
+                if (best == null || data.length < best.length) {
+                    best = data;
+                }
+            }
+        } catch (InterruptedException e) {
+            for (CompletableFuture<byte[]> trial : trials) {
+                trial.cancel(false);
+            }
+            Thread.currentThread().interrupt();
+            throw new ImageException("Interrupted while compressing PNG.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new ImageException("Could not compress PNG: " + e.getCause());
+        }
+        return best;
+    }
+
+    /**
+     * Filters unfiltered image data with one filter for every line, or the one for each line with the smallest sum
+     */
+    private static byte[] filter(byte[] pixels, int rowBytes, int height, int bpp, int filter) {
+        byte[] out = new byte[(rowBytes + 1) * height];
+        byte[] trial = filter == ADAPTIVE ? new byte[rowBytes] : null;
+        for (int y = 0; y < height; y++) {
+            int row = y * rowBytes;
+            int prior = y > 0 ? row - rowBytes : -1;
+            int o = y * (rowBytes + 1);
+            if (filter != ADAPTIVE) {
+                out[o] = (byte) filter;
+                filterRow(filter, pixels, row, prior, rowBytes, bpp, out, o + 1);
+                continue;
+            }
+            long bestSum = Long.MAX_VALUE;
+            for (int f = 0; f < ADAPTIVE; f++) {
+                filterRow(f, pixels, row, prior, rowBytes, bpp, trial, 0);
+                long sum = 0;
+                for (byte v : trial) {
+                    sum += Math.abs(v);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    out[o] = (byte) f;
+                    System.arraycopy(trial, 0, out, o + 1, rowBytes);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static void filterRow(int filter, byte[] pixels, int row, int prior, int rowBytes, int bpp, byte[] out, int o) {
+        for (int i = 0; i < rowBytes; i++) {
+            int a = i >= bpp ? pixels[row + i - bpp] & 0xFF : 0;
+            int b = prior >= 0 ? pixels[prior + i] & 0xFF : 0;
+            int c = i >= bpp && prior >= 0 ? pixels[prior + i - bpp] & 0xFF : 0;
+            out[o + i] = (byte) ((pixels[row + i] & 0xFF) - predict(filter, a, b, c));
+        }
+    }
+
+    /**
+     * Predicts a byte from the ones to its left (a), above (b) and above left (c)
+     */
+    private static int predict(int filter, int a, int b, int c) {
+        switch (filter) {
+            case 1:
+                return a;
+            case 2:
+                return b;
+            case 3:
+                return (a + b) >> 1;
+            case 4:
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+            default:
+                return 0;
+        }
+    }
+
+    private static byte[] deflate(byte[] data, int level, int strategy) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setStrategy(strategy);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes a chunk, or the chunk rewritten in its place, if it hasn't been dropped
+     */
+    private static void writeChunk(ByteArrayOutputStream out, Chunk chunk, Map<String, Chunk> rewritten) {
+        if (rewritten.containsKey(chunk.type)) {
+            chunk = rewritten.get(chunk.type);
+            if (chunk == null) {
+                return;
+            }
+        }
+        byte[] name = chunk.type.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] data = chunk.data;
+        writeInt(out, data.length);
+        out.write(name, 0, name.length);
+        out.write(data, 0, data.length);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        writeInt(out, crc.getValue());
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        out.write((int) (value >> 24));
+        out.write((int) (value >> 16));
+        out.write((int) (value >> 8));
+        out.write((int) value);
+    }
+
+    private static long readInt(byte[] b, int p) {
+        return (b[p] & 0xFFL) << 24 | (b[p + 1] & 0xFFL) << 16 | (b[p + 2] & 0xFFL) << 8 | b[p + 3] & 0xFFL;
+    }
+
+    private static int getBits(byte[] b, int row, int x, int bitDepth) {
+        int bit = x * bitDepth;
+        return (b[row + bit / 8] & 0xFF) >> (8 - bitDepth - bit % 8) & (1 << bitDepth) - 1;
+    }
+
+    private static void setBits(byte[] b, int row, int x, int bitDepth, int value) {
+        int bit = x * bitDepth;
+        b[row + bit / 8] |= value << (8 - bitDepth - bit % 8);
+    }
+
+    /**
+     * A PNG chunk
+     */
+    private static final class Chunk {
+
+        private final String type;
+        private final byte[] data;
+
+        Chunk(String type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+
+        boolean isCritical() {
+            return Character.isUpperCase(type.charAt(0));
+        }
+
+        boolean isSafeToCopy() {
+            return Character.isLowerCase(type.charAt(3));
+        }
+    }
+
+    /**
+     * The layout of a PNG's image data, as its header gives it
+     */
+    private static final class Image {
+
+        private final int width;
+        private final int height;
+        private final boolean interlaced;
+        private int colourType;
+        private int bitDepth;
+
+        Image(byte[] header) throws ImageException {
+            if (header.length != 13) {
+                throw new ImageException("PNG has a corrupt header.");
+            }
+            width = (int) readInt(header, 0);
+            height = (int) readInt(header, 4);
+            bitDepth = header[8];
+            colourType = header[9];
+            interlaced = header[12] == 1;
+            boolean valid = width > 0 && height > 0 && header[10] == 0 && header[11] == 0 && header[12] <= 1;
+            switch (colourType) {
+                case GREY:
+                    valid &= bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+                    break;
+                case PALETTE:
+                    valid &= bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+                    break;
+                case RGB:
+                case GREY_ALPHA:
+                case RGB_ALPHA:
+                    valid &= bitDepth == 8 || bitDepth == 16;
+                    break;
+                default:
+                    valid = false;
+            }
+            if (!valid) {
+                throw new ImageException("PNG has a corrupt header.");
+            }
+        }
+
+        int getChannels() {
+            switch (colourType) {
+                case RGB:
+                    return 3;
+                case GREY_ALPHA:
+                    return 2;
+                case RGB_ALPHA:
+                    return 4;
+                default:
+                    return 1;
+            }
+        }
+
+        int getRowBytes() {
+            return getRowBytes(width);
+        }
+
+        private int getRowBytes(int pixels) {
+            return (int) (((long) pixels * getChannels() * bitDepth + 7) / 8);
+        }
+
+        /**
+         * @return How many bytes back the filters look for the byte to the left
+         */
+        int getFilterDistance() {
+            return Math.max(1, getChannels() * bitDepth / 8);
+        }
+
+        /**
+         * @return The size of the filtered image data, with a filter type byte for each line
+         */
+        long getFilteredSize() {
+            if (!interlaced) {
+                return (getRowBytes() + 1L) * height;
+            }
+            long size = 0;
+            for (int pass = 0; pass < 7; pass++) {
+                int w = (width - PASS_X[pass] + PASS_DX[pass] - 1) / PASS_DX[pass];
+                int h = (height - PASS_Y[pass] + PASS_DY[pass] - 1) / PASS_DY[pass];
+                if (w > 0 && h > 0) {
+                    size += (getRowBytes(w) + 1L) * h;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Undoes the filters, putting interlaced pixels where they belong
+         *
+         * @param filtered The filtered image data
+         * @return The pixels, line by line
+         */
+        byte[] unfilter(byte[] filtered) throws ImageException {
+            int rowBytes = getRowBytes();
+            byte[] pixels = new byte[rowBytes * height];
+            if (!interlaced) {
+                unfilter(filtered, 0, pixels, rowBytes, height);
+                return pixels;
+            }
+
+            int pixelBytes = getChannels() * bitDepth / 8;
+            int p = 0;
+            for (int pass = 0; pass < 7; pass++) {
+                int w = (width - PASS_X[pass] + PASS_DX[pass] - 1) / PASS_DX[pass];
+                int h = (height - PASS_Y[pass] + PASS_DY[pass] - 1) / PASS_DY[pass];
+                if (w <= 0 || h <= 0) {
+                    continue;
+                }
+                int passRowBytes = getRowBytes(w);
+                byte[] passPixels = new byte[passRowBytes * h];
+                unfilter(filtered, p, passPixels, passRowBytes, h);
+                p += (passRowBytes + 1) * h;
+                for (int y = 0; y < h; y++) {
+                    int row = (PASS_Y[pass] + y * PASS_DY[pass]) * rowBytes;
+                    for (int x = 0; x < w; x++) {
+                        int to = PASS_X[pass] + x * PASS_DX[pass];
+                        if (bitDepth >= 8) {
+                            System.arraycopy(passPixels, y * passRowBytes + x * pixelBytes, pixels, row + to * pixelBytes, pixelBytes);
+                        } else {
+                            setBits(pixels, row, to, bitDepth, getBits(passPixels, y * passRowBytes, x, bitDepth));
+                        }
+                    }
+                }
+            }
+            return pixels;
+        }
+
+        private void unfilter(byte[] filtered, int from, byte[] pixels, int rowBytes, int rows) throws ImageException {
+            int bpp = getFilterDistance();
+            for (int y = 0; y < rows; y++) {
+                int filter = filtered[from + y * (rowBytes + 1)];
+                if (filter < 0 || filter > 4) {
+                    throw new ImageException("PNG image data has an unknown filter " + filter + ".");
+                }
+                int in = from + y * (rowBytes + 1) + 1;
+                int row = y * rowBytes;
+                int prior = y > 0 ? row - rowBytes : -1;
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= bpp ? pixels[row + i - bpp] & 0xFF : 0;
+                    int b = prior >= 0 ? pixels[prior + i] & 0xFF : 0;
+                    int c = i >= bpp && prior >= 0 ? pixels[prior + i - bpp] & 0xFF : 0;
+                    pixels[row + i] = (byte) (filtered[in + i] + predict(filter, a, b, c));
+                }
+            }
+        }
+
+        /**
+         * @return The header for the image as it'll be written, which is never interlaced
+         */
+        byte[] getHeader() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(13);
+            writeInt(out, width);
+            writeInt(out, height);
+            out.write(bitDepth);
+            out.write(colourType);
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package me.tombclarke.imageutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An append-only, on-disk record of something worked out about each image, e.g. a scan verdict or a hash, so unchanged
+ * images don't have to be worked on again. The caches are built on this.
+ * <p>
+ * Each record is the image's path, size and last modified time followed by a value of a fixed length, and a value is
+ * only handed back if the image's size and last modified time are unchanged. Anything after the last complete record
+ * (from a run that was killed mid-write) is cut off on opening, and a file of an older or newer version is started
+ * again. A file with a different magic number isn't a store of this kind, so it's refused rather than overwritten.
+ * The file is rewritten with only the latest record per image once it holds more than twice as many records as images,
+ * dropping images that no longer exist.
+ *
+ * @param <V> The type of value kept for each image
+ * @author Tom Clarke
+ */
+final class RecordStore<V> implements Closeable {
+
+    /**
+     * Reads and writes the value part of each record
+     */
+    interface Codec<V> {
+
+        /**
+         * @return The number of bytes every value takes
+         */
+        int length();
+
+        /**
+         * @return The value read, or null if it isn't valid, which ends the file there
+         */
+        V read(DataInputStream in) throws IOException;
+
+        void write(DataOutputStream out, V value) throws IOException;
+    }
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_RECORDS_TO_COMPACT = 1024;
+
+    private final File file;
+    private final int magic;
+    private final int version;
+    private final Codec<V> codec;
+    private final Map<String, Record<V>> records;
+    private final DataOutputStream out;
+    private long recordCount;
+    private IOException writeFailure;
+
+    private RecordStore(File file, int magic, int version, Codec<V> codec, Map<String, Record<V>> records,
+                        long recordCount) throws IOException {
+        this.file = file;
+        this.magic = magic;
+        this.version = version;
+        this.codec = codec;
+        this.records = records;
+        this.recordCount = recordCount;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+        if (file.length() == 0) {
+            out.writeInt(magic);
+            out.writeInt(version);
+        }
+    }
+
+    /**
+     * Loads the records from a file, creating it if needed
+     *
+     * @param file    The file
+     * @param magic   The number the file starts with, so one kind of store isn't read as another
+     * @param version The version of the record format
+     * @param codec   Reads and writes the values
+     * @return The loaded store, ready to record more
+     * @throws IOException If the file couldn't be read or written, or isn't a store of this kind
+     */
+    static <V> RecordStore<V> open(File file, int magic, int version, Codec<V> codec) throws IOException {
+        Map<String, Record<V>> records = new ConcurrentHashMap<>();
+        long recordCount = 0;
+        long validLength = 0;
+
+        if (file.exists() && file.length() > 0) {
+            boolean ours = false;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+                ours = in.readInt() == magic;
+                if (ours && in.readInt() == version) {
+                    validLength = HEADER_SIZE;
+                    while (true) {
+                        String path = in.readUTF();
+                        long size = in.readLong();
+                        long lastModified = in.readLong();
+                        V value = codec.read(in);
+                        if (value == null) {
+                            break;
+                        }
+                        records.put(path, new Record<>(size, lastModified, value));
+                        recordCount++;
+                        // writeUTF stores a 2 byte length, then the modified UTF-8 bytes
+                        validLength += 2 + utfLength(path) + 8 + 8 + codec.length();
+                    }
+                }
+            } catch (EOFException e) {
+                // Reached the end, or a partly written final record
+            }
+            if (!ours) {
+                // Probably the wrong file given, which mustn't be wiped
+                throw new IOException(file + " is not a file of this kind, leaving it alone.");
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+
+        return new RecordStore<>(file, magic, version, codec, records, recordCount);
+    }
+
+    /**
+     * Finds the value recorded for an image
+     *
+     * @param image The image
+     * @param attrs The image's current attributes
+     * @return The value, or null if there's none recorded since the image last changed
+     */
+    V lookup(File image, BasicFileAttributes attrs) {
+        Record<V> record = records.get(image.getAbsolutePath());
+        if (record == null || record.size != attrs.size() || record.lastModified != attrs.lastModifiedTime().toMillis()) {
+            return null;
+        }
+        return record.value;
+    }
+
+    /**
+     * Records a value for an image. Safe to call from several threads at once.
+     *
+     * @param image The image
+     * @param attrs The image's attributes from before the value was worked out
+     * @param value The value
+     */
+    void record(File image, BasicFileAttributes attrs, V value) {
+        String path = image.getAbsolutePath();
+        Record<V> record = new Record<>(attrs.size(), attrs.lastModifiedTime().toMillis(), value);
+        records.put(path, record);
+        synchronized (out) {
+            if (writeFailure != null) {
+                return;
+            }
+            try {
+                write(out, path, record);
+                recordCount++;
+            } catch (IOException e) {
+                // Keep working, the failure is reported on close
+                writeFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Flushes records to disk, compacting the file if it's mostly out of date records
+     *
+     * @throws IOException If the records couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (out) {
+            out.close();
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+            if (recordCount >= MIN_RECORDS_TO_COMPACT && recordCount > 2L * records.size()) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file with only the latest record for each image that still exists, then swaps it in atomically
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            compacted.writeInt(magic);
+            compacted.writeInt(version);
+            for (Map.Entry<String, Record<V>> e : records.entrySet()) {
+                if (new File(e.getKey()).exists()) {
+                    write(compacted, e.getKey(), e.getValue());
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void write(DataOutputStream out, String path, Record<V> record) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(record.size);
+        out.writeLong(record.lastModified);
+        codec.write(out, record.value);
+    }
+
+    /**
+     * @return The number of bytes writeUTF uses for a string, excluding its length prefix
+     */
+    static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    private static final class Record<V> {
+
+        private final long size;
+        private final long lastModified;
+        private final V value;
+
+        Record(long size, long lastModified, V value) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package me.tombclarke.imageutils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A named size to produce a copy of each image at, such as a thumbnail. Images are shrunk to fit within the box,
+ * keeping their aspect ratio, and are never enlarged.
+ *
+ * @author Tom Clarke
+ */
+public final class Rendition {
+
+    private final String name;
+    private final int maxWidth;
+    private final int maxHeight;
+
+    /**
+     * @param name      The rendition's name, used in the output folder pattern
+     * @param maxWidth  The most the width can be
+     * @param maxHeight The most the height can be
+     */
+    public Rendition(String name, int maxWidth, int maxHeight) throws ImageException {
+        if (name.isEmpty()) {
+            throw new ImageException("A rendition needs a name.");
+        }
+        if (maxWidth < 1 || maxHeight < 1) {
+            throw new ImageException("Rendition " + name + " must be at least 1x1.");
+        }
+        this.name = name;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    /**
+     * Reads a list of renditions
+     *
+     * @param list Renditions of the form name=WIDTHxHEIGHT, separated by commas, e.g. thumb=160x160,card=640x480
+     * @return The renditions, in the order given
+     * @throws ImageException If the list couldn't be read, or has a name twice
+     */
+    public static List<Rendition> parseList(String list) throws ImageException {
+        List<Rendition> renditions = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String part : list.split(",")) {
+            String[] nameAndSize = part.trim().split("=");
+            String[] size = nameAndSize.length == 2 ? nameAndSize[1].split("x") : new String[0];
+            if (size.length != 2) {
+                throw new ImageException("Could not read rendition '" + part + "', expected name=WIDTHxHEIGHT.");
+            }
+            try {
+                renditions.add(new Rendition(nameAndSize[0], Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+            } catch (NumberFormatException e) {
+                throw new ImageException("Could not read rendition '" + part + "', expected name=WIDTHxHEIGHT.");
+            }
+            if (!names.add(nameAndSize[0])) {
+                throw new ImageException("Rendition " + nameAndSize[0] + " is given more than once.");
+            }
+        }
+        return renditions;
+    }
+
+    /**
+     * Works out the size an image should be for this rendition
+     *
+     * @param width  The image's width
+     * @param height The image's height
+     * @return The width and height to resize to
+     */
+    int[] fit(int width, int height) {
+        double ratio = Math.min(1, Math.min((double) maxWidth / width, (double) maxHeight / height));
+        return new int[]{Math.max(1, (int) (width * ratio)), Math.max(1, (int) (height * ratio))};
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + maxWidth + "x" + maxHeight;
+    }
+}
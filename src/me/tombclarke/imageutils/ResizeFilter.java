@@ -0,0 +1,84 @@
+package me.tombclarke.imageutils;
+
+/**
+ * The filters images can be resized with, from fastest to sharpest
+ *
+ * @author Tom Clarke
+ */
+public enum ResizeFilter {
+    /**
+     * Averages the source pixels each output pixel covers
+     */
+    BOX(0.5) {
+        @Override
+        double weight(double x) {
+            return x > -0.5 && x <= 0.5 ? 1 : 0;
+        }
+    },
+    /**
+     * A triangle filter, smooth but slightly soft
+     */
+    BILINEAR(1) {
+        @Override
+        double weight(double x) {
+            x = Math.abs(x);
+            return x < 1 ? 1 - x : 0;
+        }
+    },
+    /**
+     * Keys' cubic filter (a = -0.5), a good balance of sharpness and speed
+     */
+    BICUBIC(2) {
+        @Override
+        double weight(double x) {
+            final double a = -0.5;
+            x = Math.abs(x);
+            if (x < 1) {
+                return ((a + 2) * x - (a + 3)) * x * x + 1;
+            }
+            if (x < 2) {
+                return ((a * x - 5 * a) * x + 8 * a) * x - 4 * a;
+            }
+            return 0;
+        }
+    },
+    /**
+     * A windowed sinc filter, the sharpest, at the cost of three times as many taps as bilinear
+     */
+    LANCZOS3(3) {
+        @Override
+        double weight(double x) {
+            if (x <= -3 || x >= 3) {
+                return 0;
+            }
+            return sinc(x) * sinc(x / 3);
+        }
+    };
+
+    private final double support;
+
+    ResizeFilter(double support) {
+        this.support = support;
+    }
+
+    /**
+     * @return How far either side of a pixel the filter reaches, in pixels, when not shrinking
+     */
+    double getSupport() {
+        return support;
+    }
+
+    /**
+     * @param x The distance from the pixel's centre, in pixels
+     * @return The filter's (unnormalised) weight at that distance
+     */
+    abstract double weight(double x);
+
+    private static double sinc(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        x *= Math.PI;
+        return Math.sin(x) / x;
+    }
+}
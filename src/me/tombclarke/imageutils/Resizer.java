@@ -0,0 +1,479 @@
+package me.tombclarke.imageutils;
+
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resizes images by convolving their raster data directly, rather than through Java2D.
+ * <p>
+ * The resize is done in two passes: each row is filtered horizontally into an 8 bit buffer the output width, then each
+ * output row is filtered vertically from that. The filter weights for each output column and row are worked out once,
+ * as 14 bit fixed point numbers that sum to exactly one, and when shrinking the filter is stretched to cover every
+ * source pixel, so detail is averaged rather than skipped. Both passes are split into bands of rows run on a fork/join
+ * pool.
+ * <p>
+ * The byte and int RGB, ARGB and grey layouts ImageIO decodes to are read and written in place, keeping the same image
+ * type. Anything else (e.g. indexed or 16 bit images) is converted first, to the smallest of those layouts that holds it:
+ * grey, 3 byte BGR, or int ARGB if it has alpha. The output and intermediate can come from a buffer pool. Alpha is filtered like any
+ * other channel, so images that aren't premultiplied may get slightly dark fringes where opaque meets transparent.
+ *
+ * @author Tom Clarke
+ */
+final class Resizer {
+
+    private static final int SHIFT = 14;
+    private static final int ONE = 1 << SHIFT;
+    private static final int ROUND = 1 << (SHIFT - 1);
+    // Bands smaller than this aren't worth handing to another thread
+    private static final int MIN_BAND_PIXELS = 16 * 1024;
+
+    private Resizer() {
+        // Nothing to do here
+    }
+
+    /**
+     * Resizes an image on the common fork/join pool
+     *
+     * @param image  The image to resize
+     * @param width  The width to resize to
+     * @param height The height to resize to
+     * @param filter The filter to resize with
+     * @return The resized image, of the same type as the original where possible
+     */
+    static BufferedImage resize(BufferedImage image, int width, int height, ResizeFilter filter) {
+        return resize(image, width, height, filter, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Resizes an image
+     *
+     * @param image  The image to resize
+     * @param width  The width to resize to
+     * @param height The height to resize to
+     * @param filter The filter to resize with
+     * @param pool   The pool to split the work over
+     * @return The resized image, of the same type as the original where possible
+     */
+    static BufferedImage resize(BufferedImage image, int width, int height, ResizeFilter filter, ForkJoinPool pool) {
+        return resize(image, width, height, filter, pool, null);
+    }
+
+    /**
+     * Resizes an image, taking the resized image and the intermediate from a buffer pool. The intermediate goes back
+     * to the pool afterwards, and the resized image can be given back once it's done with.
+     *
+     * @param image   The image to resize
+     * @param width   The width to resize to
+     * @param height  The height to resize to
+     * @param filter  The filter to resize with
+     * @param pool    The pool to split the work over
+     * @param buffers The pool to take buffers from, or null to allocate them
+     * @return The resized image, of the same type as the original where possible
+     */
+    static BufferedImage resize(BufferedImage image, int width, int height, ResizeFilter filter, ForkJoinPool pool,
+                                PixelBufferPool buffers) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Cannot resize to " + width + "x" + height + ".");
+        }
+
+        Layout src = Layout.of(image);
+        if (src == null) {
+            image = toStandard(image);
+            src = Layout.of(image);
+        }
+
+        BufferedImage resized = buffers != null ? buffers.takeImage(width, height, image.getType(), false)
+                : new BufferedImage(width, height, image.getType());
+        Layout dst = Layout.of(resized);
+        if (src.bytes != null && !Arrays.equals(src.bandOffsets, dst.bandOffsets)) {
+            // Same type but a different band order, which a copy of the raw bytes would mix up
+            if (buffers != null) {
+                buffers.give(resized);
+            }
+            return resize(toStandard(image), width, height, filter, pool, buffers);
+        }
+
+        int srcWidth = image.getWidth();
+        int srcHeight = image.getHeight();
+        int channels = src.channels;
+        Weights columns = new Weights(srcWidth, width, filter);
+        Weights rows = new Weights(srcHeight, height, filter);
+
+        // Horizontal pass, every source row to the new width
+        // Every byte is written, so a reused one needs no clearing
+        int betweenLength = width * channels * srcHeight;
+        byte[] between = buffers != null ? buffers.takeBytes(betweenLength) : new byte[betweenLength];
+        final Layout in = src;
+        run(pool, srcHeight, width * channels, (from, to) -> horizontal(in, columns, channels, between, from, to));
+
+        // Vertical pass, the new rows from the horizontal pass's rows
+        run(pool, height, width * channels, (from, to) -> vertical(between, width * channels, rows, dst, from, to));
+        if (buffers != null) {
+            buffers.give(between);
+        }
+        return resized;
+    }
+
+    /**
+     * Filters source rows horizontally. Each layout gets its own loop, so every tap reads a whole pixel at once.
+     *
+     * @param src      The source image's pixels
+     * @param columns  The weights for each output column
+     * @param channels The number of channels per pixel
+     * @param out      Where to put the filtered rows, one after another
+     * @param from     The first row to filter
+     * @param to       One past the last row to filter
+     */
+    private static void horizontal(Layout src, Weights columns, int channels, byte[] out, int from, int to) {
+        int outWidth = columns.start.length;
+        int taps = columns.taps;
+        int[] start = columns.start;
+        int[] count = columns.count;
+        int[] weights = columns.weights;
+        for (int y = from; y < to; y++) {
+            int o = y * outWidth * channels;
+            int row = src.rowStart(y);
+            if (src.ints != null) {
+                int[] data = src.ints;
+                for (int x = 0; x < outWidth; x++) {
+                    int a0 = ROUND, a1 = ROUND, a2 = ROUND, a3 = ROUND;
+                    int i = row + start[x];
+                    int w = x * taps;
+                    int n = count[x];
+                    for (int k = 0; k < n; k++) {
+                        int weight = weights[w + k];
+                        int p = data[i + k];
+                        a0 += weight * (p & 0xFF);
+                        a1 += weight * ((p >>> 8) & 0xFF);
+                        a2 += weight * ((p >>> 16) & 0xFF);
+                        a3 += weight * (p >>> 24);
+                    }
+                    out[o++] = clamp(a0 >> SHIFT);
+                    out[o++] = clamp(a1 >> SHIFT);
+                    out[o++] = clamp(a2 >> SHIFT);
+                    if (channels == 4) {
+                        out[o++] = clamp(a3 >> SHIFT);
+                    }
+                }
+            } else if (channels == 1) {
+                byte[] data = src.bytes;
+                for (int x = 0; x < outWidth; x++) {
+                    int a0 = ROUND;
+                    int i = row + start[x];
+                    int w = x * taps;
+                    int n = count[x];
+                    for (int k = 0; k < n; k++) {
+                        a0 += weights[w + k] * (data[i + k] & 0xFF);
+                    }
+                    out[o++] = clamp(a0 >> SHIFT);
+                }
+            } else if (channels == 3) {
+                byte[] data = src.bytes;
+                for (int x = 0; x < outWidth; x++) {
+                    int a0 = ROUND, a1 = ROUND, a2 = ROUND;
+                    int i = row + start[x] * 3;
+                    int w = x * taps;
+                    int n = count[x];
+                    for (int k = 0; k < n; k++) {
+                        int weight = weights[w + k];
+                        int j = i + k * 3;
+                        a0 += weight * (data[j] & 0xFF);
+                        a1 += weight * (data[j + 1] & 0xFF);
+                        a2 += weight * (data[j + 2] & 0xFF);
+                    }
+                    out[o++] = clamp(a0 >> SHIFT);
+                    out[o++] = clamp(a1 >> SHIFT);
+                    out[o++] = clamp(a2 >> SHIFT);
+                }
+            } else {
+                byte[] data = src.bytes;
+                for (int x = 0; x < outWidth; x++) {
+                    int a0 = ROUND, a1 = ROUND, a2 = ROUND, a3 = ROUND;
+                    int i = row + start[x] * 4;
+                    int w = x * taps;
+                    int n = count[x];
+                    for (int k = 0; k < n; k++) {
+                        int weight = weights[w + k];
+                        int j = i + k * 4;
+                        a0 += weight * (data[j] & 0xFF);
+                        a1 += weight * (data[j + 1] & 0xFF);
+                        a2 += weight * (data[j + 2] & 0xFF);
+                        a3 += weight * (data[j + 3] & 0xFF);
+                    }
+                    out[o++] = clamp(a0 >> SHIFT);
+                    out[o++] = clamp(a1 >> SHIFT);
+                    out[o++] = clamp(a2 >> SHIFT);
+                    out[o++] = clamp(a3 >> SHIFT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Filters the horizontal pass's rows vertically into the resized image
+     *
+     * @param in     The rows from the horizontal pass
+     * @param stride The length of each row, in bytes
+     * @param rows   The weights for each output row
+     * @param dst    The resized image's pixels
+     * @param from   The first output row to fill in
+     * @param to     One past the last output row to fill in
+     */
+    private static void vertical(byte[] in, int stride, Weights rows, Layout dst, int from, int to) {
+        int[] acc = new int[stride];
+        int taps = rows.taps;
+        int[] weights = rows.weights;
+        for (int y = from; y < to; y++) {
+            Arrays.fill(acc, ROUND);
+            int first = rows.start[y];
+            int n = rows.count[y];
+            for (int k = 0; k < n; k++) {
+                int weight = weights[y * taps + k];
+                int i = (first + k) * stride;
+                for (int x = 0; x < stride; x++) {
+                    acc[x] += weight * (in[i + x] & 0xFF);
+                }
+            }
+
+            int o = dst.rowStart(y);
+            if (dst.bytes != null) {
+                for (int x = 0; x < stride; x++) {
+                    dst.bytes[o + x] = clamp(acc[x] >> SHIFT);
+                }
+            } else {
+                int channels = dst.channels;
+                // Int RGB leaves the top byte of each pixel unused, so start with it empty
+                for (int x = 0; x < stride; x += channels, o++) {
+                    int pixel = 0;
+                    for (int c = 0; c < channels; c++) {
+                        pixel |= (clamp(acc[x + c] >> SHIFT) & 0xFF) << (c * 8);
+                    }
+                    dst.ints[o] = pixel;
+                }
+            }
+        }
+    }
+
+    private static byte clamp(int v) {
+        return (byte) (v < 0 ? 0 : v > 255 ? 255 : v);
+    }
+
+    /**
+     * Redraws an image in the smallest layout the passes can read that holds it, rather than always 4 bytes a pixel
+     */
+    private static BufferedImage toStandard(BufferedImage image) {
+        int type;
+        if (image.getColorModel().hasAlpha()) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        } else if (image.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else {
+            type = BufferedImage.TYPE_3BYTE_BGR;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    /**
+     * Some rows of work, to be run on one thread
+     */
+    private interface Band {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs rows of work in bands, split over the pool
+     *
+     * @param pool      The pool to run on
+     * @param rows      The number of rows
+     * @param rowLength The work per row, to judge how small a band can be
+     * @param band      The work to do
+     */
+    private static void run(ForkJoinPool pool, int rows, int rowLength, Band band) {
+        int minRows = Math.max(1, MIN_BAND_PIXELS / Math.max(1, rowLength));
+        if (rows <= minRows || pool.getParallelism() <= 1) {
+            band.run(0, rows);
+            return;
+        }
+        pool.invoke(new BandTask(band, 0, rows, minRows));
+    }
+
+    private static final class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Band band;
+        private final int from;
+        private final int to;
+        private final int minRows;
+
+        BandTask(Band band, int from, int to, int minRows) {
+            this.band = band;
+            this.from = from;
+            this.to = to;
+            this.minRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= minRows) {
+                band.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BandTask(band, from, mid, minRows), new BandTask(band, mid, to, minRows));
+        }
+    }
+
+    /**
+     * The filter weights along one axis: which source pixels each output pixel is made from, and how much of each
+     */
+    static final class Weights {
+
+        /**
+         * The first source pixel for each output pixel
+         */
+        final int[] start;
+        /**
+         * The number of source pixels for each output pixel
+         */
+        final int[] count;
+        /**
+         * The most source pixels any output pixel uses, so each output pixel's weights start at index * taps
+         */
+        final int taps;
+        /**
+         * The fixed point weights, summing to exactly one for each output pixel
+         */
+        final int[] weights;
+
+        Weights(int srcSize, int dstSize, ResizeFilter filter) {
+            double scale = (double) srcSize / dstSize;
+            // Stretch the filter when shrinking, so it covers every source pixel
+            double filterScale = Math.max(1, scale);
+            double support = filter.getSupport() * filterScale;
+
+            taps = (int) Math.ceil(support) * 2 + 1;
+            start = new int[dstSize];
+            count = new int[dstSize];
+            weights = new int[dstSize * taps];
+
+            double[] w = new double[taps];
+            for (int i = 0; i < dstSize; i++) {
+                double centre = (i + 0.5) * scale;
+                int min = Math.max(0, (int) Math.floor(centre - support + 0.5));
+                int max = Math.min(srcSize, (int) Math.floor(centre + support + 0.5));
+                int n = Math.max(1, max - min);
+                min = Math.min(min, srcSize - n);
+
+                double sum = 0;
+                for (int k = 0; k < n; k++) {
+                    w[k] = filter.weight((min + k - centre + 0.5) / filterScale);
+                    sum += w[k];
+                }
+                if (sum == 0) {
+                    // Nothing in reach, so take the nearest pixel
+                    Arrays.fill(w, 0, n, 0);
+                    w[Math.min(n - 1, Math.max(0, (int) centre - min))] = 1;
+                    sum = 1;
+                }
+
+                // Round to fixed point, giving any rounding error to the largest weight
+                int total = 0;
+                int largest = 0;
+                for (int k = 0; k < n; k++) {
+                    int fixed = (int) Math.round(w[k] / sum * ONE);
+                    weights[i * taps + k] = fixed;
+                    total += fixed;
+                    if (fixed > weights[i * taps + largest]) {
+                        largest = k;
+                    }
+                }
+                weights[i * taps + largest] += ONE - total;
+                start[i] = min;
+                count[i] = n;
+            }
+        }
+    }
+
+    /**
+     * Where an image's pixels are in its data buffer
+     */
+    private static final class Layout {
+
+        private final byte[] bytes;
+        private final int[] ints;
+        private final int[] bandOffsets;
+        private final int channels;
+        private final int scanlineStride;
+        private final int offset;
+
+        private Layout(byte[] bytes, int[] ints, int[] bandOffsets, int channels, int scanlineStride, int offset) {
+            this.bytes = bytes;
+            this.ints = ints;
+            this.bandOffsets = bandOffsets;
+            this.channels = channels;
+            this.scanlineStride = scanlineStride;
+            this.offset = offset;
+        }
+
+        /**
+         * @return The array index of a row's first sample
+         */
+        int rowStart(int y) {
+            return offset + y * scanlineStride;
+        }
+
+        /**
+         * @return The image's layout, or null if it isn't one that can be read directly
+         */
+        static Layout of(BufferedImage image) {
+            Raster raster = image.getRaster();
+            int tx = raster.getSampleModelTranslateX();
+            int ty = raster.getSampleModelTranslateY();
+            switch (image.getType()) {
+                case BufferedImage.TYPE_BYTE_GRAY:
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                case BufferedImage.TYPE_4BYTE_ABGR_PRE: {
+                    ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+                    int[] offsets = sm.getBandOffsets();
+                    // Channels are copied as they lie, so they must be packed together at the start of each pixel
+                    int lowest = Integer.MAX_VALUE;
+                    for (int o : offsets) {
+                        lowest = Math.min(lowest, o);
+                    }
+                    if (sm.getPixelStride() != offsets.length || lowest != 0) {
+                        return null;
+                    }
+                    DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+                    return new Layout(db.getData(), null, offsets, offsets.length, sm.getScanlineStride(),
+                            db.getOffset() - ty * sm.getScanlineStride() - tx * sm.getPixelStride());
+                }
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB:
+                case BufferedImage.TYPE_INT_ARGB_PRE: {
+                    SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                    DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+                    int channels = image.getType() == BufferedImage.TYPE_INT_RGB ? 3 : 4;
+                    return new Layout(null, db.getData(), null, channels, sm.getScanlineStride(),
+                            db.getOffset() - ty * sm.getScanlineStride() - tx);
+                }
+                default:
+                    return null;
+            }
+        }
+    }
+}
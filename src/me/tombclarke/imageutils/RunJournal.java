@@ -0,0 +1,159 @@
+package me.tombclarke.imageutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only, on-disk log of the images a run has finished, so a run that was killed can carry on where it
+ * stopped rather than starting again.
+ * <p>
+ * Each image is logged with its size and last modified time once it's done, and only counts as done while those still
+ * match, so an image that has been replaced since is done again. Every record is flushed as soon as it's written, so
+ * at most the images in flight are lost if the process dies. The journal also holds a description of the task, so a
+ * journal left by a different task (e.g. another resize size) isn't mistaken for progress on this one.
+ *
+ * @author Tom Clarke
+ */
+final class RunJournal implements Closeable {
+
+    static final String DEFAULT_NAME = ".imageutils-journal";
+
+    private static final int MAGIC = 0x49554A4E; // "IUJN"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final Map<String, long[]> done;
+    private final DataOutputStream out;
+    private IOException writeFailure;
+
+    private RunJournal(File file, Map<String, long[]> done, String task) throws IOException {
+        this.file = file;
+        this.done = done;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (file.length() == 0) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(task);
+            out.flush();
+        }
+    }
+
+    /**
+     * Opens a journal for a run, creating it if needed
+     *
+     * @param file   The journal file
+     * @param task   A description of the work being done, which must match for a journal to be carried on from
+     * @param resume Whether to carry on from the journal; if not, or it's from a different task, it's started again
+     * @return The journal, ready to record finished images
+     * @throws IOException If the file couldn't be read or written
+     */
+    static RunJournal open(File file, String task, boolean resume) throws IOException {
+        Map<String, long[]> done = new HashMap<>();
+        long validLength = 0;
+
+        if (resume && file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(task)) {
+                    // writeUTF stores a 2 byte length, then the modified UTF-8 bytes
+                    validLength = 8 + 2 + RecordStore.utfLength(task);
+                    while (true) {
+                        String path = in.readUTF();
+                        long size = in.readLong();
+                        long lastModified = in.readLong();
+                        done.put(path, new long[]{size, lastModified});
+                        validLength += 2 + RecordStore.utfLength(path) + 8 + 8;
+                    }
+                }
+            } catch (EOFException e) {
+                // Reached the end, or a partly written final record
+            }
+        }
+
+        // Cut off a partly written record, or start again if there's nothing to carry on from
+        if (file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        return new RunJournal(file, done, task);
+    }
+
+    /**
+     * @param image The image
+     * @return True if the image was finished by an earlier run, and hasn't changed since
+     */
+    boolean isDone(File image) {
+        long[] entry = done.get(image.getAbsolutePath());
+        return entry != null && entry[0] == image.length() && entry[1] == image.lastModified();
+    }
+
+    /**
+     * @return The number of images finished by earlier runs
+     */
+    int getDoneCount() {
+        return done.size();
+    }
+
+    /**
+     * Records that an image is finished, as it is now. Safe to call from several threads at once.
+     *
+     * @param image The image
+     */
+    void record(File image) {
+        synchronized (out) {
+            if (writeFailure != null) {
+                return;
+            }
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(image.toPath(), BasicFileAttributes.class);
+                out.writeUTF(image.getAbsolutePath());
+                out.writeLong(attrs.size());
+                out.writeLong(attrs.lastModifiedTime().toMillis());
+                out.flush();
+            } catch (IOException e) {
+                // Keep going, the failure is reported on close
+                writeFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Closes the journal, keeping it so an unfinished run can be carried on
+     *
+     * @throws IOException If finished images couldn't be recorded
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (out) {
+            out.close();
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+        }
+    }
+
+    /**
+     * Closes and removes the journal, once the run has nothing left to do
+     *
+     * @throws IOException If the journal couldn't be removed
+     */
+    void delete() throws IOException {
+        synchronized (out) {
+            out.close();
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
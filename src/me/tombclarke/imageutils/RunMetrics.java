@@ -0,0 +1,349 @@
+package me.tombclarke.imageutils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and times the work done by a batch run: files, bytes, per-stage latencies, how many images are being worked on
+ * at once and how much heap that took. Everything can be updated from any number of threads without locking.
+ * <p>
+ * While registered, the metrics can be watched over JMX, and at the end of a run they can be written out as JSON, so a
+ * slow run can be put down to the disk (read and write), the codecs (decode and encode) or the garbage collector.
+ *
+ * @author Tom Clarke
+ */
+public final class RunMetrics implements RunMetricsMBean {
+
+    /**
+     * The steps an image can go through, each timed separately
+     */
+    public enum Stage {
+        DISCOVER, READ, DECODE, ANALYSE, RESIZE, ENCODE, WRITE
+    }
+
+    private static final String DOMAIN = "me.tombclarke.imageutils";
+    private static final AtomicInteger RUNS = new AtomicInteger();
+
+    private final String tool;
+    private final long startNanos = System.nanoTime();
+    private final long startGcCount;
+    private final long startGcTime;
+    private final Map<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+
+    private final LongAdder filesProcessed = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong heapHighWater = new AtomicLong();
+    private volatile long filesFound;
+    private volatile long endNanos = -1;
+    private ObjectName registeredName;
+
+    /**
+     * @param tool The name of the tool doing the run, used to name the JMX bean and in the summary
+     */
+    public RunMetrics(String tool) {
+        this.tool = tool;
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+        startGcCount = gcCount();
+        startGcTime = gcTime();
+        sampleHeap();
+    }
+
+    /**
+     * Records how long a stage took for one image (or, for discovery, the whole walk)
+     *
+     * @param stage      The stage
+     * @param startNanos The System.nanoTime() from when the stage started
+     */
+    void record(Stage stage, long startNanos) {
+        stages.get(stage).record(System.nanoTime() - startNanos);
+        sampleHeap();
+    }
+
+    /**
+     * Marks an image as being worked on
+     */
+    void fileStarted() {
+        int now = inFlight.incrementAndGet();
+        int peak;
+        while (now > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, now)) {
+            // Lost a race with another thread, try again
+        }
+    }
+
+    /**
+     * Marks an image as done with
+     *
+     * @param failed Whether it failed along the way
+     */
+    void fileFinished(boolean failed) {
+        inFlight.decrementAndGet();
+        filesProcessed.increment();
+        if (failed) {
+            filesFailed.increment();
+        }
+    }
+
+    void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void setFilesFound(long filesFound) {
+        this.filesFound = filesFound;
+    }
+
+    /**
+     * Stops the clock, so the elapsed time and rates stay as they were at the end of the run
+     */
+    public void finish() {
+        if (endNanos < 0) {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under
+     * me.tombclarke.imageutils:type=RunMetrics,name=&lt;tool&gt;-&lt;run number&gt;. Failing to register only prints a
+     * message, as the run can carry on without it.
+     */
+    public synchronized void register() {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=RunMetrics,name=" + tool + "-" + RUNS.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            System.out.println("Could not register metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if they were registered
+     */
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        registeredName = null;
+    }
+
+    /**
+     * @return The name the metrics are registered over JMX with, or null if they aren't
+     */
+    public synchronized ObjectName getObjectName() {
+        return registeredName;
+    }
+
+    /**
+     * Writes the summary JSON to a file
+     *
+     * @param file The file to write
+     * @throws IOException If the file couldn't be written
+     */
+    public void writeJson(File file) throws IOException {
+        Files.write(file.toPath(), getSummaryJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String getTool() {
+        return tool;
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        long end = endNanos < 0 ? System.nanoTime() : endNanos;
+        return (end - startNanos) / 1e9;
+    }
+
+    @Override
+    public long getFilesFound() {
+        return filesFound;
+    }
+
+    /**
+     * @return The number of images finished with, counting an image once for every pass over it
+     */
+    @Override
+    public long getFilesProcessed() {
+        return filesProcessed.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return filesFailed.sum();
+    }
+
+    @Override
+    public double getFilesPerSecond() {
+        double seconds = getElapsedSeconds();
+        return seconds > 0 ? getFilesProcessed() / seconds : 0;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * @return The most heap seen in use, sampled at the end of each stage (so it may miss short spikes)
+     */
+    @Override
+    public long getHeapHighWaterBytes() {
+        return heapHighWater.get();
+    }
+
+    @Override
+    public long getGcCount() {
+        return gcCount() - startGcCount;
+    }
+
+    @Override
+    public long getGcTimeMillis() {
+        return gcTime() - startGcTime;
+    }
+
+    /**
+     * @param stage The stage
+     * @return The number of times the stage has run
+     */
+    public long getStageCount(Stage stage) {
+        return stages.get(stage).getCount();
+    }
+
+    @Override
+    public String[] getStageSummaries() {
+        List<String> summaries = new ArrayList<>();
+        for (Map.Entry<Stage, LatencyHistogram> e : stages.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            if (h.getCount() > 0) {
+                summaries.add(String.format(Locale.ROOT, "%s: %d, mean %.2f ms, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                        e.getKey().name().toLowerCase(Locale.ROOT), h.getCount(), millis(h.getMeanNanos()),
+                        millis(h.getPercentileNanos(50)), millis(h.getPercentileNanos(95)),
+                        millis(h.getPercentileNanos(99)), millis(h.getMaxNanos())));
+            }
+        }
+        return summaries.toArray(new String[0]);
+    }
+
+    @Override
+    public String getSummaryJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"tool\": \"").append(tool).append("\",\n");
+        field(json, "elapsedSeconds", getElapsedSeconds());
+        field(json, "filesFound", getFilesFound());
+        field(json, "filesProcessed", getFilesProcessed());
+        field(json, "filesFailed", getFilesFailed());
+        field(json, "filesPerSecond", getFilesPerSecond());
+        field(json, "bytesRead", getBytesRead());
+        field(json, "bytesWritten", getBytesWritten());
+        field(json, "peakInFlight", getPeakInFlight());
+        field(json, "heapHighWaterBytes", getHeapHighWaterBytes());
+        field(json, "gcCount", getGcCount());
+        field(json, "gcTimeMillis", getGcTimeMillis());
+        json.append("  \"stages\": {");
+        String separator = "\n";
+        for (Map.Entry<Stage, LatencyHistogram> e : stages.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            json.append(separator).append("    \"").append(e.getKey().name().toLowerCase(Locale.ROOT)).append("\": {");
+            json.append(String.format(Locale.ROOT,
+                    "\"count\": %d, \"totalMillis\": %.3f, \"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p95Millis\": %.3f, \"p99Millis\": %.3f, \"maxMillis\": %.3f}",
+                    h.getCount(), millis(h.getTotalNanos()), millis(h.getMeanNanos()), millis(h.getPercentileNanos(50)),
+                    millis(h.getPercentileNanos(95)), millis(h.getPercentileNanos(99)), millis(h.getMaxNanos())));
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d images in %.1f s (%.1f/s), %d failed, %d MB read, %d MB written, %d GCs taking %d ms",
+                tool, getFilesProcessed(), getElapsedSeconds(), getFilesPerSecond(), getFilesFailed(),
+                getBytesRead() >> 20, getBytesWritten() >> 20, getGcCount(), getGcTimeMillis());
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long high;
+        while (used > (high = heapHighWater.get()) && !heapHighWater.compareAndSet(high, used)) {
+            // Lost a race with another thread, try again
+        }
+    }
+
+    private static void field(StringBuilder json, String name, long value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static void field(StringBuilder json, String name, double value) {
+        json.append("  \"").append(name).append("\": ").append(String.format(Locale.ROOT, "%.3f", value)).append(",\n");
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
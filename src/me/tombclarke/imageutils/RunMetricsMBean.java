@@ -0,0 +1,45 @@
+package me.tombclarke.imageutils;
+
+/**
+ * The live view of a batch run's metrics, as shown over JMX (e.g. in JConsole or VisualVM)
+ *
+ * @author Tom Clarke
+ */
+public interface RunMetricsMBean {
+
+    String getTool();
+
+    double getElapsedSeconds();
+
+    long getFilesFound();
+
+    long getFilesProcessed();
+
+    long getFilesFailed();
+
+    double getFilesPerSecond();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    int getInFlight();
+
+    int getPeakInFlight();
+
+    long getHeapHighWaterBytes();
+
+    long getGcCount();
+
+    long getGcTimeMillis();
+
+    /**
+     * @return A line per stage that has run, with its count and latencies
+     */
+    String[] getStageSummaries();
+
+    /**
+     * @return Everything above as JSON
+     */
+    String getSummaryJson();
+}
@@ -0,0 +1,111 @@
+package me.tombclarke.imageutils;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * An append-only, on-disk record of previous scan verdicts, so unchanged files don't have to be checked again.
+ * <p>
+ * A verdict is only reused if the file's size and last modified time are unchanged and it was found with the same
+ * scan mode. The file format, recovery and compaction are the RecordStore's.
+ *
+ * @author Tom Clarke
+ */
+final class ScanCache implements Closeable {
+
+    static final String DEFAULT_NAME = ".imageutils-scan-cache";
+
+    private static final int MAGIC = 0x49555343; // "IUSC"
+    private static final int VERSION = 1;
+
+    private static final RecordStore.Codec<Verdict> CODEC = new RecordStore.Codec<Verdict>() {
+        @Override
+        public int length() {
+            return 1 + 1;
+        }
+
+        @Override
+        public Verdict read(DataInputStream in) throws IOException {
+            int mode = in.readUnsignedByte();
+            boolean corrupt = in.readBoolean();
+            return mode < ScanMode.values().length ? new Verdict(ScanMode.values()[mode], corrupt) : null;
+        }
+
+        @Override
+        public void write(DataOutputStream out, Verdict verdict) throws IOException {
+            out.writeByte(verdict.mode.ordinal());
+            out.writeBoolean(verdict.corrupt);
+        }
+    };
+
+    private final RecordStore<Verdict> store;
+
+    private ScanCache(RecordStore<Verdict> store) {
+        this.store = store;
+    }
+
+    /**
+     * Loads the cache from a file, creating it if needed. Anything after the last complete record (from a run that
+     * was killed mid-write) is cut off, and a file from a different version is started again.
+     *
+     * @param file The cache file
+     * @return The loaded cache, ready to record new verdicts
+     * @throws IOException If the file couldn't be read or written
+     */
+    static ScanCache open(File file) throws IOException {
+        return new ScanCache(RecordStore.open(file, MAGIC, VERSION, CODEC));
+    }
+
+    /**
+     * Finds a previous verdict for an image
+     *
+     * @param image The image
+     * @param attrs The image's current attributes
+     * @param mode  The scan mode the verdict is needed for
+     * @return Whether the image was corrupt, or null if there's no up to date verdict
+     */
+    Boolean lookup(File image, BasicFileAttributes attrs, ScanMode mode) {
+        Verdict verdict = store.lookup(image, attrs);
+        if (verdict == null || verdict.mode != mode) {
+            return null;
+        }
+        return verdict.corrupt;
+    }
+
+    /**
+     * Records a verdict for an image. Safe to call from several threads at once.
+     *
+     * @param image   The image
+     * @param attrs   The image's attributes from before it was checked
+     * @param mode    The scan mode used
+     * @param corrupt Whether the image was corrupt
+     */
+    void record(File image, BasicFileAttributes attrs, ScanMode mode, boolean corrupt) {
+        store.record(image, attrs, new Verdict(mode, corrupt));
+    }
+
+    /**
+     * Flushes recorded verdicts to disk, compacting the file if it's mostly out of date records
+     *
+     * @throws IOException If the verdicts couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    private static final class Verdict {
+
+        private final ScanMode mode;
+        private final boolean corrupt;
+
+        Verdict(ScanMode mode, boolean corrupt) {
+            this.mode = mode;
+            this.corrupt = corrupt;
+        }
+    }
+}
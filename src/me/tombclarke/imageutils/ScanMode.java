@@ -0,0 +1,21 @@
+package me.tombclarke.imageutils;
+
+/**
+ * How thoroughly images are checked for corruption
+ *
+ * @author Tom Clarke
+ */
+public enum ScanMode {
+    /**
+     * Fully decode every image (the original behaviour)
+     */
+    FULL,
+    /**
+     * Only check the file structure (JPEG segments, PNG chunks and CRCs), without decoding any pixels
+     */
+    FAST,
+    /**
+     * Check the file structure, then fully decode images that pass it
+     */
+    DEEP
+}
@@ -0,0 +1,499 @@
+package me.tombclarke.imageutils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A queue of work kept in a shared folder, so any number of processes, on this machine or others that mount the same
+ * folder, can split a big run between them with no server.
+ * <p>
+ * A coordinator splits the images into shards, each a text file of paths. Workers claim a shard by creating a lease
+ * file for it, work through it, write its results and move on. Lease files are numbered, and creating one fails if it
+ * already exists, so when two workers go for the same shard exactly one gets it. A worker keeps its leases fresh by
+ * touching them; a lease that hasn't been touched for the lease time belongs to a worker that died, and the shard is
+ * claimed again with the next number up, which removes the old lease so its holder (if it was only stalled) can tell
+ * it's lost it. Work that changes images in place (e.g. recompressing them) must not be done twice, so the work is told
+ * how to check for a lost lease and should check before each image, and a worker that lost its lease abandons the
+ * shard without writing results. Results are written atomically, and a shard is done once its results exist. Leases
+ * are judged by their modified time against the local clock, so the machines'
+ * clocks need to agree to well within the lease time.
+ * <p>
+ * The queue folder holds a file describing the queue (the task and number of shards) and shards, leases and results
+ * folders.
+ *
+ * @author Tom Clarke
+ */
+final class ShardQueue implements Closeable {
+
+    static final int DEFAULT_SHARD_SIZE = 500;
+    static final long DEFAULT_LEASE_MILLIS = 60000;
+
+    private static final String DESCRIPTION = "queue";
+    private static final String SHARDS = "shards";
+    private static final String LEASES = "leases";
+    private static final String RESULTS = "results";
+
+    private final Path folder;
+    private final int shardCount;
+    private final String worker;
+    private long leaseMillis = DEFAULT_LEASE_MILLIS;
+    private ScheduledExecutorService renewer;
+
+    private ShardQueue(Path folder, int shardCount) {
+        this.folder = folder;
+        this.shardCount = shardCount;
+        worker = getWorkerName();
+    }
+
+    /**
+     * Splits images into a new queue. If the folder already has an unfinished queue for the same task, that's carried on
+     * with instead, so a coordinator that was stopped can be started again without losing the work done. A finished
+     * queue is cleared out.
+     *
+     * @param folder    The queue folder, which is created if needed
+     * @param task      A description of the work, which workers must be doing too
+     * @param images    The images to split up
+     * @param shardSize How many images to put in each shard
+     * @return The queue
+     * @throws IOException    If the queue couldn't be written
+     * @throws ImageException If the folder holds an unfinished queue for a different task
+     */
+    static ShardQueue create(File folder, String task, List<File> images, int shardSize) throws IOException, ImageException {
+        if (shardSize < 1) {
+            throw new ImageException("Shards must hold at least one image.");
+        }
+        Path root = folder.toPath();
+        Path description = root.resolve(DESCRIPTION);
+        if (Files.exists(description)) {
+            ShardQueue existing = open(folder, null);
+            if (!existing.isFinished()) {
+                if (!readTask(description).equals(task)) {
+                    throw new ImageException("Queue " + folder + " is still working on a different task.");
+                }
+                return existing;
+            }
+            // Described last when written, so removed first, so it's never there without all its shards
+            Files.delete(description);
+            for (String sub : new String[]{SHARDS, LEASES, RESULTS}) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(root.resolve(sub))) {
+                    for (Path p : files) {
+                        Files.delete(p);
+                    }
+                }
+            }
+        }
+
+        for (String sub : new String[]{SHARDS, LEASES, RESULTS}) {
+            Files.createDirectories(root.resolve(sub));
+        }
+        int shardCount = (images.size() + shardSize - 1) / shardSize;
+        for (int s = 0; s < shardCount; s++) {
+            StringBuilder shard = new StringBuilder();
+            for (File image : images.subList(s * shardSize, Math.min(images.size(), (s + 1) * shardSize))) {
+                shard.append(image.getAbsolutePath()).append('\n');
+            }
+            ImageUtils.writeAtomically(root.resolve(SHARDS).resolve(getName(s)).toFile(), shard.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        ImageUtils.writeAtomically(description.toFile(), (task + "\n" + shardCount + "\n").getBytes(StandardCharsets.UTF_8));
+        return new ShardQueue(root, shardCount);
+    }
+
+    /**
+     * Opens a queue a coordinator has made
+     *
+     * @param folder The queue folder
+     * @param task   The work this process will do, which must be the queue's, or null to not check
+     * @return The queue
+     * @throws IOException    If the queue couldn't be read
+     * @throws ImageException If there's no queue there, or it's for a different task
+     */
+    static ShardQueue open(File folder, String task) throws IOException, ImageException {
+        Path description = folder.toPath().resolve(DESCRIPTION);
+        if (!Files.exists(description)) {
+            throw new ImageException("No queue in " + folder + ", start the coordinator first.");
+        }
+        List<String> lines = Files.readAllLines(description, StandardCharsets.UTF_8);
+        if (lines.size() < 2) {
+            throw new ImageException("Queue " + folder + " is corrupt.");
+        }
+        if (task != null && !lines.get(0).equals(task)) {
+            throw new ImageException("Queue " + folder + " is for a different task: " + lines.get(0));
+        }
+        return new ShardQueue(folder.toPath(), Integer.parseInt(lines.get(1)));
+    }
+
+    private static String readTask(Path description) throws IOException {
+        return Files.readAllLines(description, StandardCharsets.UTF_8).get(0);
+    }
+
+    /**
+     * Works through shards until every shard is done, waiting for shards other workers hold in case they die
+     *
+     * @param work Works on each shard's images
+     * @return The number of shards this worker did
+     * @throws IOException    If the queue couldn't be read or written
+     * @throws ImageException If the work failed as a whole, or interrupted while waiting
+     */
+    int work(Work work) throws IOException, ImageException {
+        int done = 0;
+        while (true) {
+            try (Shard shard = claim()) {
+                if (shard != null) {
+                    Map<String, List<File>> results = work.process(shard.getImages(), shard::isLost);
+                    if (shard.isLost()) {
+                        System.out.println("Abandoning shard " + shard.getIndex() + " to the worker that took it over.");
+                    } else {
+                        shard.complete(results);
+                        done++;
+                    }
+                    continue;
+                }
+            }
+            if (isFinished()) {
+                return done;
+            }
+            sleep(getPollMillis());
+        }
+    }
+
+    /**
+     * Waits for workers to finish every shard
+     *
+     * @param progress Told how many shards are done whenever that changes
+     * @throws IOException    If the queue couldn't be read
+     * @throws ImageException If interrupted while waiting
+     */
+    void awaitFinished(ProgressListener progress) throws IOException, ImageException {
+        int reported = -1;
+        while (true) {
+            int done = getFinishedCount();
+            if (done != reported) {
+                progress.update(done, shardCount);
+                reported = done;
+            }
+            if (done == shardCount) {
+                return;
+            }
+            sleep(getPollMillis());
+        }
+    }
+
+    /**
+     * Claims the first shard that's neither done nor leased by a live worker
+     *
+     * @return The shard, which keeps its lease fresh until closed, or null if there's none to claim now
+     * @throws IOException If the queue couldn't be read or written
+     */
+    Shard claim() throws IOException {
+        for (int s = 0; s < shardCount; s++) {
+            if (Files.exists(getResult(s))) {
+                continue;
+            }
+            Path current = getCurrentLease(s);
+            int generation = 0;
+            if (current != null) {
+                try {
+                    long age = System.currentTimeMillis() - Files.getLastModifiedTime(current).toMillis();
+                    if (age < leaseMillis) {
+                        continue;
+                    }
+                } catch (NoSuchFileException e) {
+                    // Taken over or finished while looking, so look again later
+                    continue;
+                }
+                generation = getGeneration(current);
+            }
+
+            Path lease = folder.resolve(LEASES).resolve(getName(s) + "." + (generation + 1));
+            try {
+                Files.write(lease, worker.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                // Another worker got there first
+                continue;
+            }
+            if (current != null) {
+                System.out.println("Taking over shard " + s + " from " + readLease(current) + ", whose lease ran out.");
+                Files.deleteIfExists(current);
+            }
+            if (Files.exists(getResult(s))) {
+                // Finished just before the lease was taken
+                Files.deleteIfExists(lease);
+                continue;
+            }
+            return new Shard(s, lease, readShard(s));
+        }
+        return null;
+    }
+
+    /**
+     * @return True if every shard has its results
+     */
+    boolean isFinished() {
+        return getFinishedCount() == shardCount;
+    }
+
+    private int getFinishedCount() {
+        int done = 0;
+        for (int s = 0; s < shardCount; s++) {
+            if (Files.exists(getResult(s))) {
+                done++;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Gathers every shard's results, in the order the images were split up
+     *
+     * @return The images given each kind of result, e.g. "failed"
+     * @throws IOException If the results couldn't be read
+     */
+    Map<String, List<File>> getResults() throws IOException {
+        Map<String, List<File>> results = new LinkedHashMap<>();
+        for (int s = 0; s < shardCount; s++) {
+            Path result = getResult(s);
+            if (!Files.exists(result)) {
+                continue;
+            }
+            for (String line : Files.readAllLines(result, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    results.computeIfAbsent(line.substring(0, tab), k -> new ArrayList<>()).add(new File(line.substring(tab + 1)));
+                }
+            }
+        }
+        return results;
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * @param leaseMillis How long a lease lasts without being renewed before its shard can be taken over
+     */
+    void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Stops renewing leases
+     */
+    @Override
+    public synchronized void close() {
+        if (renewer != null) {
+            renewer.shutdownNow();
+            renewer = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getRenewer() {
+        if (renewer == null) {
+            renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "shard-lease-renewer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return renewer;
+    }
+
+    private long getPollMillis() {
+        return Math.max(10, Math.min(1000, leaseMillis / 4));
+    }
+
+    private List<File> readShard(int shard) throws IOException {
+        List<File> images = new ArrayList<>();
+        for (String line : Files.readAllLines(folder.resolve(SHARDS).resolve(getName(shard)), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                images.add(new File(line));
+            }
+        }
+        return images;
+    }
+
+    private Path getResult(int shard) {
+        return folder.resolve(RESULTS).resolve(getName(shard));
+    }
+
+    /**
+     * Finds a shard's newest lease, which is the one that counts
+     */
+    private Path getCurrentLease(int shard) throws IOException {
+        Path newest = null;
+        try (DirectoryStream<Path> leases = Files.newDirectoryStream(folder.resolve(LEASES), getName(shard) + ".*")) {
+            for (Path p : leases) {
+                if (newest == null || getGeneration(p) > getGeneration(newest)) {
+                    newest = p;
+                }
+            }
+        }
+        return newest;
+    }
+
+    private static int getGeneration(Path lease) {
+        String name = lease.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String readLease(Path lease) {
+        try {
+            return new String(Files.readAllBytes(lease), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "another worker";
+        }
+    }
+
+    private static String getName(int shard) {
+        return String.format("%06d", shard);
+    }
+
+    /**
+     * @return Which machine and process this is, to show in leases
+     */
+    private static String getWorkerName() {
+        String process = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            String host = InetAddress.getLocalHost().getHostName();
+            return process.contains("@") ? process : process + "@" + host;
+        } catch (IOException e) {
+            return process;
+        }
+    }
+
+    private static void sleep(long millis) throws ImageException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImageException("Interrupted while waiting for shards.");
+        }
+    }
+
+    /**
+     * The work a worker does on a shard
+     */
+    interface Work {
+        /**
+         * @param images The shard's images
+         * @param lost   Says whether another worker has taken the shard over, in which case no more images should be
+         *               worked on, as the other worker is working on them too
+         * @return The images given each kind of result, e.g. "failed", which are ignored if the shard was lost
+         */
+        Map<String, List<File>> process(List<File> images, BooleanSupplier lost) throws IOException, ImageException;
+    }
+
+    /**
+     * Told how far through the queue the workers are
+     */
+    interface ProgressListener {
+        void update(int shardsDone, int shardCount);
+    }
+
+    /**
+     * A claimed shard, whose lease is kept fresh until it's closed
+     */
+    final class Shard implements Closeable {
+
+        private final int index;
+        private final Path lease;
+        private final List<File> images;
+        private final ScheduledFuture<?> renewal;
+        private volatile boolean closed = false;
+        private volatile boolean lost = false;
+
+        Shard(int index, Path lease, List<File> images) {
+            this.index = index;
+            this.lease = lease;
+            this.images = images;
+            long period = Math.max(1, leaseMillis / 3);
+            renewal = getRenewer().scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        List<File> getImages() {
+            return images;
+        }
+
+        /**
+         * @return True if another worker has taken the shard over, as this worker's lease ran out
+         */
+        boolean isLost() {
+            // The renewer only notices every so often, but the lease is gone as soon as it's taken over
+            return lost || !Files.exists(lease);
+        }
+
+        private void renew() {
+            try {
+                Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (NoSuchFileException e) {
+                if (closed) {
+                    return;
+                }
+                System.out.println("Lost the lease on shard " + index + ", another worker has taken it over.");
+                lost = true;
+                renewal.cancel(false);
+            } catch (IOException e) {
+                // Tried again next time, and the lease only runs out if that keeps failing
+                System.out.println("Could not renew the lease on shard " + index + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Writes the shard's results, marking it done
+         *
+         * @param results The images given each kind of result
+         * @throws IOException If the results couldn't be written
+         */
+        void complete(Map<String, List<File>> results) throws IOException {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, List<File>> e : results.entrySet()) {
+                for (File f : e.getValue()) {
+                    out.append(e.getKey()).append('\t').append(f.getAbsolutePath()).append('\n');
+                }
+            }
+            ImageUtils.writeAtomically(getResult(index).toFile(), out.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Stops renewing the lease and gives it up, so if the shard isn't done another worker can take it straight away
+         */
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            renewal.cancel(false);
+            Files.deleteIfExists(lease);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package me.tombclarke.imageutils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the adaptive scheduler and its AIMD limit
+ *
+ * @author Tom Clarke
+ */
+public class AdaptiveSchedulerTest {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long now = 0;
+
+    @Test
+    public void testLimitGrowsWhileWorkWaits() {
+        AdaptiveScheduler.Limit limit = new AdaptiveScheduler.Limit(4, now);
+        assertEquals(1, limit.get());
+        for (int i = 2; i <= 4; i++) {
+            window(limit, 20, MILLI, 5, false);
+            assertEquals(i, limit.get());
+        }
+        // Never past the most allowed
+        window(limit, 20, MILLI, 5, false);
+        assertEquals(4, limit.get());
+
+        // Nothing waiting, so no reason to grow or shrink
+        limit = new AdaptiveScheduler.Limit(4, now);
+        window(limit, 20, MILLI, 0, false);
+        assertEquals(1, limit.get());
+    }
+
+    @Test
+    public void testLimitShrinksWhenSaturated() {
+        AdaptiveScheduler.Limit limit = new AdaptiveScheduler.Limit(64, now);
+        for (int i = 0; i < 15; i++) {
+            window(limit, 20 * (i + 1), MILLI, 5, false);
+        }
+        assertEquals(16, limit.get());
+
+        // Each task now takes far longer for no more done, so the storage is queueing
+        window(limit, 300, 10 * MILLI, 5, false);
+        assertEquals(12, limit.get());
+
+        // The next stage falling behind cuts it too, however the storage is doing
+        window(limit, 300, 10 * MILLI, 5, true);
+        assertEquals(9, limit.get());
+
+        // But never below one
+        for (int i = 0; i < 20; i++) {
+            window(limit, 300, 10 * MILLI, 5, true);
+        }
+        assertEquals(1, limit.get());
+    }
+
+    @Test
+    public void testRunsIoAndCpuWork() {
+        try (AdaptiveScheduler scheduler = new AdaptiveScheduler(8, 2)) {
+            List<CompletableFuture<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final int value = i;
+                results.add(scheduler.io(() -> value).thenCompose(read -> scheduler.cpu(() -> read * 2)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i * 2, (int) results.get(i).join());
+            }
+            assertTrue(scheduler.getIoLimit() >= 1 && scheduler.getIoLimit() <= 8);
+        }
+    }
+
+    /**
+     * Feeds the limit a window's worth of finished tasks
+     */
+    private void window(AdaptiveScheduler.Limit limit, int tasks, long latency, int waiting, boolean backlog) {
+        long start = now;
+        for (int i = 1; i <= tasks; i++) {
+            now = start + AdaptiveScheduler.Limit.WINDOW_NANOS * i / tasks;
+            limit.finished(latency, waiting, backlog, now);
+        }
+    }
+}
@@ -2,12 +2,13 @@ package me.tombclarke.imageutils;
 
 import org.junit.After;
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -59,18 +60,126 @@ public class BatchBatchBadImageRemoverTest {
         assertTrue(!imgNames.contains("good (3).JPG"));
     }
 
-    @Ignore
+    @Test
+    public void testFindCorruptImagesInParallel() throws IOException, ImageException {
+        imgRemover.findCorruptImages();
+        BatchBadImageRemover parallelRemover = new BatchBadImageRemover(testFolder, 4);
+        parallelRemover.findCorruptImages();
+
+        // Same images, in the same order, as a single threaded run
+        assertEquals(imgRemover.getCorruptImages(), parallelRemover.getCorruptImages());
+        assertEquals(imgRemover.getAllImages(), parallelRemover.getAllImages());
+    }
+
+    @Test(expected = ImageException.class)
+    public void testNeedsAThread() throws IOException, ImageException {
+        new BatchBadImageRemover(testFolder, 0);
+    }
+
+    @Test
+    public void testFindCorruptImagesAdaptively() throws IOException, ImageException {
+        for (ScanMode mode : ScanMode.values()) {
+            BatchBadImageRemover serialRemover = new BatchBadImageRemover(testFolder);
+            serialRemover.setScanMode(mode);
+            serialRemover.findCorruptImages();
+            BatchBadImageRemover adaptiveRemover = BatchBadImageRemover.adaptive(testFolder);
+            adaptiveRemover.setScanMode(mode);
+            adaptiveRemover.findCorruptImages();
+
+            // Reading ahead on one pool and checking on another finds the same images, in the same order
+            assertEquals(serialRemover.getCorruptImages(), adaptiveRemover.getCorruptImages());
+            assertEquals(serialRemover.getAllImages(), adaptiveRemover.getAllImages());
+        }
+    }
+
+    @Test
+    public void testFindCorruptImagesFast() {
+        imgRemover.setScanMode(ScanMode.FAST);
+        imgRemover.findCorruptImages();
+
+        // Structural checks also catch the half corrupt images, as their scan data is broken
+        List<String> imgNames = new ArrayList<>();
+        for (File i : imgRemover.getCorruptImages()) {
+            imgNames.add(i.getName());
+        }
+        assertEquals(6, imgNames.size());
+        assertTrue(imgNames.contains("bad (1).JPG"));
+        assertTrue(imgNames.contains("ugly (1).JPG"));
+        assertEquals(3, imgRemover.getAllImages().size());
+    }
+
+    @Test
+    public void testFindCorruptImagesCached() throws IOException, ImageException {
+        File cacheFile = File.createTempFile("scan", ".cache");
+        cacheFile.delete();
+        try {
+            imgRemover.setCacheFile(cacheFile);
+            imgRemover.findCorruptImages();
+            int corruptCount = imgRemover.getCorruptImages().size();
+
+            // Break a good image without changing its size or modified time, so only a cache hit still calls it good
+            File good = new File(testFolder, "good (3).JPG");
+            long lastModified = good.lastModified();
+            byte[] garbage = new byte[(int) good.length()];
+            Files.write(good.toPath(), garbage);
+            good.setLastModified(lastModified);
+
+            BatchBadImageRemover cachedRemover = new BatchBadImageRemover(testFolder);
+            cachedRemover.setCacheFile(cacheFile);
+            cachedRemover.findCorruptImages();
+            assertEquals(imgRemover.getCorruptImages(), cachedRemover.getCorruptImages());
+
+            BatchBadImageRemover rescanRemover = new BatchBadImageRemover(testFolder);
+            rescanRemover.setCacheFile(cacheFile);
+            rescanRemover.setRescan(true);
+            rescanRemover.findCorruptImages();
+            assertEquals(corruptCount + 1, rescanRemover.getCorruptImages().size());
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    @Test
+    public void testOtherFilesAreNotUsedAsCaches() throws IOException, ImageException {
+        // Pointed at an image by mistake, the cache is refused and the image is left as it was
+        File image = new File(testFolder, "good (1).JPG");
+        byte[] original = Files.readAllBytes(image.toPath());
+        imgRemover.setCacheFile(image);
+        imgRemover.findCorruptImages();
+
+        assertTrue(Arrays.equals(original, Files.readAllBytes(image.toPath())));
+        BatchBadImageRemover uncachedRemover = new BatchBadImageRemover(testFolder);
+        uncachedRemover.findCorruptImages();
+        assertEquals(uncachedRemover.getCorruptImages(), imgRemover.getCorruptImages());
+    }
+
+    @Test
+    public void testHugeImagesAreSkipped() {
+        imgRemover.setMaxPixels(1000);
+        imgRemover.findCorruptImages();
+        imgRemover.findLikelyCorruptImages();
+
+        // Nothing is known to be wrong with them, so the good images stay
+        for (String name : new String[]{"good (1).JPG", "good (2).JPG", "good (3).JPG"}) {
+            assertTrue(imgRemover.getAllImages().contains(new File(testFolder, name)));
+        }
+    }
+
     @Test
     public void testFindLikelyCorruptImages() {
+        imgRemover.findCorruptImages();
         imgRemover.findLikelyCorruptImages();
         assert (imgRemover.getAllImages().size() < 7);
-        assert (imgRemover.getCorruptImages().size() > 2);
+        assert (imgRemover.getHalfCorruptImages().size() > 1);
 
         // Check they're the correct images
         List<String> imgNames = new ArrayList<>();
         for (File i : imgRemover.getCorruptImages()) {
             imgNames.add(i.getName());
         }
+        for (File i : imgRemover.getHalfCorruptImages()) {
+            imgNames.add(i.getName());
+        }
 
         assertTrue(imgNames.contains("ugly (1).JPG"));
         assertTrue(imgNames.contains("ugly (2).JPG"));
@@ -80,6 +189,20 @@ public class BatchBatchBadImageRemoverTest {
         assertTrue(!imgNames.contains("good (3).JPG"));
     }
 
+    @Test
+    public void testFindLikelyCorruptImagesScreened() throws IOException, ImageException {
+        imgRemover.findCorruptImages();
+        imgRemover.findLikelyCorruptImages();
+
+        BatchBadImageRemover screeningRemover = new BatchBadImageRemover(testFolder);
+        screeningRemover.setScreening(true);
+        screeningRemover.findCorruptImages();
+        screeningRemover.findLikelyCorruptImages();
+
+        // Screening only saves work, it shouldn't change the answer
+        assertEquals(imgRemover.getHalfCorruptImages(), screeningRemover.getHalfCorruptImages());
+    }
+
     @Test
     public void testDeleteBadImages() {
         int goodImageCount = filterForGoodPictures();
@@ -110,6 +233,41 @@ public class BatchBatchBadImageRemoverTest {
         }
     }
 
+    @Test
+    public void testWatchRemovesNewBadImages() throws Exception {
+        Thread watching = new Thread(() -> {
+            try {
+                imgRemover.watch(100, false, null);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        watching.start();
+        File incoming = new File(testFolder, "incoming");
+        try {
+            // Give the watcher time to register
+            Thread.sleep(500);
+            incoming.mkdir();
+            File newBad = new File(incoming, "new bad.jpg");
+            File newGood = new File(incoming, "new good.jpg");
+            Files.copy(new File(testFolder, "bad (1).JPG").toPath(), newBad.toPath());
+            Files.copy(new File(testFolder, "good (1).JPG").toPath(), newGood.toPath());
+
+            for (int i = 0; i < 100 && newBad.exists(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(!newBad.exists());
+            assertTrue(newGood.exists());
+            // Images that were already there are left for a normal run
+            assertTrue(new File(testFolder, "bad (2).JPG").exists());
+            assertEquals(2, imgRemover.getMetrics().getStageCount(RunMetrics.Stage.DECODE));
+        } finally {
+            watching.interrupt();
+            watching.join();
+            ImageUtilsTest.clean(incoming);
+        }
+    }
+
     /**
      * Selects corrupt images (only obvious ones) and returns a count of the remaining good ones
      *
@@ -0,0 +1,120 @@
+package me.tombclarke.imageutils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the duplicate finder, with a re-encoded and a resized copy of one of the test images
+ *
+ * @author Tom Clarke
+ */
+public class BatchDuplicateFinderTest {
+
+    private File testFolder = null;
+    private File original;
+    private File reencoded;
+    private File resized;
+
+    @Before
+    public void init() throws IOException, ImageException {
+        testFolder = ImageUtilsTest.setupTestDir(this);
+        original = new File(testFolder, "good (1).JPG");
+        BufferedImage image = ImageIO.read(original);
+        reencoded = new File(testFolder, "copy.jpg");
+        Files.write(reencoded.toPath(), ImageCodecs.encodeJpeg(image, 0.3f));
+        resized = new File(testFolder, "small.jpg");
+        ImageIO.write(Resizer.resize(image, 400, image.getHeight() * 400 / image.getWidth(), ResizeFilter.BILINEAR), "jpg", resized);
+    }
+
+    @After
+    public void clean() {
+        ImageUtilsTest.clean(testFolder);
+    }
+
+    @Test
+    public void testFindDuplicates() throws IOException, ImageException {
+        BatchDuplicateFinder finder = new BatchDuplicateFinder(testFolder, 2);
+        finder.findDuplicates();
+
+        // The full size original is kept
+        assertEquals(1, finder.getDuplicateGroups().size());
+        List<File> group = finder.getDuplicateGroups().get(0);
+        assertEquals(original, group.get(0));
+        assertEquals(new HashSet<>(Arrays.asList(reencoded, resized)), new HashSet<>(finder.getDuplicateImages()));
+        assertTrue(finder.getAllImages().contains(original));
+        assertEquals(5, finder.getAllImages().size());
+        assertEquals(4, finder.getUnreadableImages().size());
+    }
+
+    @Test
+    public void testFindDuplicatesCached() throws IOException, ImageException {
+        File cache = new File(testFolder, HashCache.DEFAULT_NAME);
+        BatchDuplicateFinder first = new BatchDuplicateFinder(testFolder);
+        first.setCacheFile(cache);
+        first.findDuplicates();
+
+        BatchDuplicateFinder second = new BatchDuplicateFinder(testFolder);
+        second.setCacheFile(cache);
+        second.findDuplicates();
+
+        assertEquals(first.getDuplicateGroups(), second.getDuplicateGroups());
+        assertEquals(first.getAllImages(), second.getAllImages());
+        // Only the unreadable images are tried again, and they fail before a decode is timed
+        assertEquals(7, first.getMetrics().getStageCount(RunMetrics.Stage.DECODE));
+        assertEquals(0, second.getMetrics().getStageCount(RunMetrics.Stage.DECODE));
+    }
+
+    @Test
+    public void testMoveDuplicates() throws IOException, ImageException {
+        BatchDuplicateFinder finder = new BatchDuplicateFinder(testFolder);
+        finder.findDuplicates();
+        File moveFolder = Files.createTempDirectory("duplicates").toFile();
+        try {
+            finder.moveDuplicates(moveFolder.getPath());
+            assertTrue(new File(moveFolder, "copy.jpg").exists());
+            assertTrue(new File(moveFolder, "small.jpg").exists());
+            assertTrue(original.exists());
+            assertTrue(!reencoded.exists());
+        } finally {
+            ImageUtilsTest.clean(moveFolder);
+        }
+    }
+
+    @Test
+    public void testBkTreeMatchesBruteForce() {
+        Random random = new Random(7);
+        long[] hashes = new long[2000];
+        BkTree<Integer> tree = new BkTree<>();
+        for (int i = 0; i < hashes.length; i++) {
+            // Clusters of near copies, like real duplicates
+            hashes[i] = i % 4 == 0 ? random.nextLong() : hashes[i - 1] ^ (1L << random.nextInt(64));
+            tree.add(hashes[i], i);
+        }
+        assertEquals(hashes.length, tree.size());
+
+        for (int q = 0; q < 50; q++) {
+            long query = hashes[random.nextInt(hashes.length)] ^ (1L << random.nextInt(64));
+            HashSet<Integer> expected = new HashSet<>();
+            for (int i = 0; i < hashes.length; i++) {
+                if (PerceptualHash.distance(query, hashes[i]) <= 6) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, new HashSet<>(tree.search(query, 6)));
+        }
+    }
+}
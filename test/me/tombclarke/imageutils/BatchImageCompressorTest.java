@@ -4,10 +4,30 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class BatchImageCompressorTest {
 
@@ -59,4 +79,417 @@ public class BatchImageCompressorTest {
         }
     }
 
+    @Test
+    public void testCompressImagesCarriesOnAfterFailure() throws IOException, ImageException {
+        // An image that can't be decoded, among the good ones
+        File broken = new File(testFolder, "broken.jpg");
+        Files.write(broken.toPath(), new byte[]{(byte) 0xFF, (byte) 0xD8, 0x00});
+
+        int width = 800;
+        int height = 480;
+        BatchImageCompressor parallelCompressor = new BatchImageCompressor(testFolder, 2, 2, 2);
+        parallelCompressor.compressImages(width, height, false);
+
+        assertEquals(Collections.singletonList(broken), parallelCompressor.getFailedImages());
+        for (File i : testFolder.listFiles()) {
+            if (!i.equals(broken)) {
+                BufferedImage compressedImage = ImageIO.read(i);
+                assertEquals(width, compressedImage.getWidth());
+                assertEquals(height, compressedImage.getHeight());
+            }
+        }
+
+        RunMetrics metrics = parallelCompressor.getMetrics();
+        assertEquals(3, metrics.getFilesProcessed());
+        assertEquals(1, metrics.getFilesFailed());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(3, metrics.getStageCount(RunMetrics.Stage.DECODE));
+        assertEquals(2, metrics.getStageCount(RunMetrics.Stage.WRITE));
+    }
+
+    @Test
+    public void testCompressImagesAdaptively() throws IOException, ImageException {
+        int width = 800;
+        int height = 480;
+        BatchImageCompressor adaptiveCompressor = BatchImageCompressor.adaptive(testFolder);
+        adaptiveCompressor.compressImages(width, height, false);
+
+        assertTrue(adaptiveCompressor.getFailedImages().isEmpty());
+        for (File i : testFolder.listFiles()) {
+            BufferedImage compressedImage = ImageIO.read(i);
+            assertEquals(width, compressedImage.getWidth());
+            assertEquals(height, compressedImage.getHeight());
+        }
+        assertEquals(0, adaptiveCompressor.getMetrics().getInFlight());
+
+        // Stages that read the file's bytes themselves get the fetched ones
+        BatchImageCompressor optimiser = BatchImageCompressor.adaptive(testFolder);
+        optimiser.optimiseImages(false);
+        assertTrue(optimiser.getFailedImages().isEmpty());
+        for (File i : testFolder.listFiles()) {
+            assertEquals(width, ImageIO.read(i).getWidth());
+        }
+    }
+
+    @Test
+    public void testCompressImagesKeepsRealFormat() throws IOException, ImageException {
+        // A PNG with the wrong extension stays a PNG
+        File misnamed = new File(testFolder, "really a png.jpg");
+        ImageIO.write(ImageIO.read(new File(testFolder, "good (1).JPG")), "png", misnamed);
+        BatchImageCompressor misnamedCompressor = new BatchImageCompressor(testFolder);
+        misnamedCompressor.compressImages(400, 240, false);
+
+        assertEquals(Collections.emptyList(), misnamedCompressor.getFailedImages());
+        try (ImageInputStream in = ImageCodecs.open(misnamed)) {
+            assertEquals(ImageCodecs.Format.PNG, ImageCodecs.sniff(in));
+        }
+        assertEquals(400, ImageIO.read(misnamed).getWidth());
+    }
+
+    @Test
+    public void testCompressImagesKeepsMetadata() throws IOException, ImageException {
+        File image = new File(testFolder, "good (1).JPG");
+        compressor.compressImages(800, 600, true);
+        // The EXIF segment, with the camera's preview in it, comes through the resize
+        assertNotNull(ExifThumbnail.find(image));
+
+        BatchImageCompressor stripping = new BatchImageCompressor(testFolder);
+        stripping.setMetadataPolicy(MetadataPolicy.STRIP);
+        stripping.compressImages(400, 300, true);
+        assertNull(ExifThumbnail.find(image));
+        assertEquals(400, ImageIO.read(image).getWidth());
+    }
+
+    @Test
+    public void testCompressImagesFromPreview() throws IOException, ImageException {
+        // Cut off the image data, so only the headers and embedded preview are left
+        File image = new File(testFolder, "good (1).JPG");
+        BufferedImage preview = ImageCodecs.read(ExifThumbnail.find(image));
+        byte[] data = Files.readAllBytes(image.toPath());
+        byte[] cut = Arrays.copyOf(data, getStartOfScan(data) + 2);
+        cut[cut.length - 2] = (byte) 0xFF;
+        cut[cut.length - 1] = (byte) 0xD9;
+        Files.write(image.toPath(), cut);
+
+        compressor.setPreviewMode(true);
+        compressor.compressImages(160, 120, true);
+
+        assertEquals(Collections.emptyList(), compressor.getFailedImages());
+        BufferedImage resized = ImageIO.read(image);
+        assertEquals(preview.getWidth(), resized.getWidth());
+        assertEquals(preview.getHeight(), resized.getHeight());
+        // The preview's picture, where decoding what's left of the image would give noise
+        long difference = 0;
+        for (int y = 0; y < resized.getHeight(); y++) {
+            for (int x = 0; x < resized.getWidth(); x++) {
+                difference += Math.abs((resized.getRGB(x, y) >> 8 & 0xFF) - (preview.getRGB(x, y) >> 8 & 0xFF));
+            }
+        }
+        assertTrue(difference / (resized.getWidth() * resized.getHeight()) < 8);
+        // The other image has no preview, so is decoded as usual
+        assertEquals(120, ImageIO.read(new File(testFolder, "good (2).JPG")).getHeight());
+    }
+
+    /**
+     * @return Where a JPEG's image data starts, just after the start of scan header
+     */
+    private static int getStartOfScan(byte[] jpeg) {
+        int p = 2;
+        while ((jpeg[p + 1] & 0xFF) != 0xDA) {
+            p += 2 + ((jpeg[p + 2] & 0xFF) << 8 | (jpeg[p + 3] & 0xFF));
+        }
+        return p + 2 + ((jpeg[p + 2] & 0xFF) << 8 | (jpeg[p + 3] & 0xFF));
+    }
+
+    @Test
+    public void testCompressImagesResumes() throws IOException, ImageException {
+        File journal = File.createTempFile("run", ".journal");
+        try {
+            // A run that doesn't finish, as one image can't be read
+            File broken = new File(testFolder, "broken.jpg");
+            Files.write(broken.toPath(), new byte[]{(byte) 0xFF, (byte) 0xD8, 0x00});
+            BatchImageCompressor firstRun = new BatchImageCompressor(testFolder);
+            firstRun.setJournalFile(journal);
+            firstRun.compressImages(800, 480, false);
+            assertEquals(Collections.singletonList(broken), firstRun.getFailedImages());
+            assertTrue(journal.exists());
+
+            // Resuming a different task starts again
+            BatchImageCompressor otherTask = new BatchImageCompressor(testFolder);
+            otherTask.setJournalFile(journal);
+            otherTask.setResume(true);
+            otherTask.compressImages(400, 240, false);
+            assertEquals(3, otherTask.getMetrics().getStageCount(RunMetrics.Stage.DECODE));
+
+            // Once fixed, resuming only does the image that's left
+            Files.copy(new File(testFolder, "good (1).JPG").toPath(), broken.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            BatchImageCompressor resumed = new BatchImageCompressor(testFolder);
+            resumed.setJournalFile(journal);
+            resumed.setResume(true);
+            resumed.compressImages(400, 240, false);
+            assertEquals(1, resumed.getMetrics().getStageCount(RunMetrics.Stage.DECODE));
+            assertEquals(Collections.emptyList(), resumed.getFailedImages());
+            for (File i : testFolder.listFiles()) {
+                // Written in place, with no temporary files left over
+                assertEquals(400, ImageIO.read(i).getWidth());
+            }
+            // Everything's done, so there's nothing to resume
+            assertTrue(!journal.exists());
+        } finally {
+            journal.delete();
+        }
+    }
+
+    @Test
+    public void testCompressImagesRejectsHugeImages() throws ImageException {
+        Map<File, Long> originalSizes = getSizes();
+        compressor.setMaxPixels(1000);
+        compressor.compressImages(800, 480, false);
+
+        // Turned away from their headers, so never decoded or written
+        assertEquals(2, compressor.getFailedImages().size());
+        assertEquals(originalSizes, getSizes());
+        assertEquals(0, compressor.getMetrics().getStageCount(RunMetrics.Stage.RESIZE));
+    }
+
+    @Test
+    public void testRecompressImages() throws IOException, ImageException {
+        Map<File, Long> originalSizes = getSizes();
+        assertEquals(2, compressor.recompressImages(0.5f, 0.05));
+
+        for (File i : testFolder.listFiles()) {
+            BufferedImage compressedImage = ImageIO.read(i);
+            assertTrue(compressedImage != null);
+            assertTrue(i.length() < originalSizes.get(i) * 0.95);
+        }
+    }
+
+    @Test
+    public void testRecompressImagesKeepsOriginals() throws IOException, ImageException {
+        // Full quality can't save 90%, so nothing should change
+        Map<File, Long> originalSizes = getSizes();
+        assertEquals(0, compressor.recompressImages(1f, 0.9));
+        assertEquals(originalSizes, getSizes());
+    }
+
+    @Test
+    public void testRecompressImagesToSize() throws IOException, ImageException {
+        long targetSize = 300 * 1024;
+        assertEquals(2, compressor.recompressImagesToSize(targetSize, 0.05));
+        for (File i : testFolder.listFiles()) {
+            assertTrue(i.length() <= targetSize);
+        }
+    }
+
+    @Test
+    public void testOptimiseImages() throws IOException, ImageException {
+        Map<File, Long> originalSizes = getSizes();
+        Map<File, int[]> originalPixels = new HashMap<>();
+        for (File i : testFolder.listFiles()) {
+            originalPixels.put(i, getPixels(ImageIO.read(i)));
+        }
+
+        assertEquals(2, compressor.optimiseImages(true));
+
+        for (File i : testFolder.listFiles()) {
+            assertTrue(i.length() < originalSizes.get(i));
+            assertTrue(Arrays.equals(originalPixels.get(i), getPixels(ImageIO.read(i))));
+        }
+        // Metadata is kept by default
+        assertNotNull(ExifThumbnail.find(new File(testFolder, "good (1).JPG")));
+    }
+
+    @Test
+    public void testOptimiseImagesWithRestartsAndProgressiveScans() throws IOException, ImageException {
+        // An odd size, so the last MCUs of each row and column are partly padding
+        BufferedImage source = new BufferedImage(333, 251, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, (x * 7 + y) % 256 << 16 | (x ^ y) % 256 << 8 | (x * y) % 256);
+            }
+        }
+        File restarts = new File(testFolder, "restarts.jpg");
+        File progressive = new File(testFolder, "progressive.jpg");
+        writeJpeg(source, restarts, false, 7);
+        writeJpeg(source, progressive, true, 0);
+        Map<File, int[]> originalPixels = new HashMap<>();
+        for (File i : testFolder.listFiles()) {
+            originalPixels.put(i, getPixels(ImageIO.read(i)));
+        }
+
+        compressor = new BatchImageCompressor(testFolder);
+        compressor.setMetadataPolicy(MetadataPolicy.STRIP);
+        compressor.optimiseImages(true);
+
+        assertEquals(Collections.emptyList(), compressor.getFailedImages());
+        for (File i : testFolder.listFiles()) {
+            assertTrue(Arrays.equals(originalPixels.get(i), getPixels(ImageIO.read(i))));
+        }
+        assertNull(ExifThumbnail.find(new File(testFolder, "good (1).JPG")));
+    }
+
+    @Test
+    public void testOptimiseImagesShrinksPngs() throws IOException, ImageException {
+        // Opaque but with an alpha channel and too many colours for a palette, so it should lose the alpha channel
+        BufferedImage opaque = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        // A few translucent colours, so it should become paletted
+        BufferedImage few = new BufferedImage(301, 199, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 200; y++) {
+            for (int x = 0; x < 301; x++) {
+                if (x < 300) {
+                    opaque.setRGB(x, y, 0xFF000000 | x << 16 | y << 8 | (x + y) & 0xFF);
+                }
+                if (y < 199) {
+                    few.setRGB(x, y, (x / 40 % 2 == 0 ? 0x80000000 : 0xFF000000) | (y / 25) * 0x1F0000);
+                }
+            }
+        }
+        File opaqueFile = new File(testFolder, "opaque.png");
+        File fewFile = new File(testFolder, "few.png");
+        ImageIO.write(opaque, "png", opaqueFile);
+        writePng(few, fewFile);
+        Map<File, Long> originalSizes = getSizes();
+        Map<File, int[]> originalPixels = new HashMap<>();
+        for (File i : testFolder.listFiles()) {
+            originalPixels.put(i, getPixels(ImageIO.read(i)));
+        }
+
+        compressor = new BatchImageCompressor(testFolder);
+        compressor.setSearchThreads(2);
+        assertEquals(4, compressor.optimiseImages(true));
+
+        assertEquals(Collections.emptyList(), compressor.getFailedImages());
+        for (File i : testFolder.listFiles()) {
+            assertTrue(i.length() < originalSizes.get(i));
+            assertTrue(Arrays.equals(originalPixels.get(i), getPixels(ImageIO.read(i))));
+        }
+        // The colour type, from the header
+        assertEquals(2, Files.readAllBytes(opaqueFile.toPath())[25]);
+        assertEquals(3, Files.readAllBytes(fewFile.toPath())[25]);
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Writes an interlaced PNG
+     */
+    private static void writePng(BufferedImage image, File file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Writes a JPEG with a restart marker every so many MCUs, or as several progressive scans
+     */
+    private static void writeJpeg(BufferedImage image, File file, boolean progressive, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        if (restartInterval > 0) {
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(format);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            IIOMetadataNode markers = (IIOMetadataNode) tree.getElementsByTagName("markerSequence").item(0);
+            markers.insertBefore(dri, markers.getFirstChild());
+            metadata.setFromTree(format, tree);
+        }
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    @Test
+    public void testCreateRenditions() throws IOException, ImageException {
+        Map<File, Long> originalSizes = getSizes();
+        File output = Files.createTempDirectory("renditions").toFile();
+        try {
+            List<Rendition> renditions = Rendition.parseList("thumb=100x100,full=4000x4000,card=400x300");
+            compressor.createRenditions(renditions, output.getPath() + "/{name}");
+
+            assertEquals(Collections.emptyList(), compressor.getFailedImages());
+            assertEquals(originalSizes, getSizes());
+            for (File i : testFolder.listFiles()) {
+                BufferedImage original = ImageIO.read(i);
+                for (Rendition r : renditions) {
+                    BufferedImage rendition = ImageIO.read(new File(output, r.getName() + "/" + i.getName()));
+                    assertTrue(rendition.getWidth() <= r.getMaxWidth() && rendition.getHeight() <= r.getMaxHeight());
+                    assertTrue(rendition.getWidth() <= original.getWidth());
+                    // Aspect ratio kept to within rounding
+                    assertEquals((double) original.getWidth() / original.getHeight(),
+                            (double) rendition.getWidth() / rendition.getHeight(), 0.02);
+                }
+                // Bigger than the image, so kept at full size
+                assertEquals(original.getWidth(), ImageIO.read(new File(output, "full/" + i.getName())).getWidth());
+            }
+            // Decoded once per image, the largest rendition isn't a resize
+            assertEquals(2, compressor.getMetrics().getStageCount(RunMetrics.Stage.DECODE));
+            assertEquals(4, compressor.getMetrics().getStageCount(RunMetrics.Stage.RESIZE));
+        } finally {
+            for (File dir : output.listFiles()) {
+                ImageUtilsTest.clean(dir);
+            }
+            ImageUtilsTest.clean(output);
+        }
+    }
+
+    @Test(expected = ImageException.class)
+    public void testCreateRenditionsNeedsDistinctFolders() throws ImageException {
+        compressor.createRenditions(Rendition.parseList("thumb=100x100,card=400x300"), "out");
+    }
+
+    @Test
+    public void testWatchResizesNewImages() throws Exception {
+        Thread watching = new Thread(() -> {
+            try {
+                compressor.watch(100, Collections.emptyList(), c -> c.compressImages(400, 240, false));
+            } catch (IOException | ImageException e) {
+                e.printStackTrace();
+            }
+        });
+        watching.start();
+        try {
+            // Give the watcher time to register
+            Thread.sleep(500);
+            File arrived = new File(testFolder, "arrived.jpg");
+            Files.copy(new File(testFolder, "good (1).JPG").toPath(), arrived.toPath());
+
+            for (int i = 0; i < 100 && compressor.getMetrics().getStageCount(RunMetrics.Stage.WRITE) == 0; i++) {
+                Thread.sleep(100);
+            }
+            // Its own write isn't picked up as another new image
+            Thread.sleep(1000);
+
+            assertEquals(400, ImageIO.read(arrived).getWidth());
+            assertTrue(ImageIO.read(new File(testFolder, "good (2).JPG")).getWidth() > 400);
+            assertEquals(1, compressor.getMetrics().getStageCount(RunMetrics.Stage.WRITE));
+        } finally {
+            watching.interrupt();
+            watching.join();
+        }
+    }
+
+    private Map<File, Long> getSizes() {
+        Map<File, Long> sizes = new HashMap<>();
+        for (File i : testFolder.listFiles()) {
+            sizes.put(i, i.length());
+        }
+        return sizes;
+    }
+
 }
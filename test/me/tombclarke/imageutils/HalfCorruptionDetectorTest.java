@@ -0,0 +1,133 @@
+package me.tombclarke.imageutils;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the half corruption scoring on generated images
+ *
+ * @author Tom Clarke
+ */
+public class HalfCorruptionDetectorTest {
+
+    @Test
+    public void testSmoothImage() {
+        assertTrue(HalfCorruptionDetector.score(gradient(), false) < HalfCorruptionDetector.DEFAULT_THRESHOLD);
+    }
+
+    @Test
+    public void testGreyTail() {
+        BufferedImage image = gradient();
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(128, 128, 128));
+        g.fillRect(0, 200, 400, 100);
+        g.dispose();
+        double score = HalfCorruptionDetector.score(image, true);
+        assertTrue(score > 0.3 && score < 0.4);
+    }
+
+    @Test
+    public void testFlatBottomNeedsEvidence() {
+        // A product shot on white, and a plain swatch, with nothing else to say they were cut short
+        BufferedImage image = gradient();
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 150, 400, 150);
+        g.dispose();
+        assertTrue(HalfCorruptionDetector.score(image, false) < HalfCorruptionDetector.DEFAULT_THRESHOLD);
+
+        BufferedImage swatch = new BufferedImage(400, 300, BufferedImage.TYPE_3BYTE_BGR);
+        g = swatch.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 400, 300);
+        g.dispose();
+        assertEquals(0, HalfCorruptionDetector.score(swatch, false), 0);
+        // But a JPEG cut off straight after its header is all one colour
+        assertEquals(1, HalfCorruptionDetector.score(swatch, true), 0);
+    }
+
+    @Test
+    public void testMissingEoi() throws IOException {
+        File jpeg = File.createTempFile("truncated", ".jpg");
+        try {
+            ImageIO.write(gradient(), "jpg", jpeg);
+            assertFalse(HalfCorruptionDetector.isMissingEoi(jpeg));
+            byte[] data = Files.readAllBytes(jpeg.toPath());
+            Files.write(jpeg.toPath(), Arrays.copyOf(data, data.length / 2));
+            assertTrue(HalfCorruptionDetector.isMissingEoi(jpeg));
+        } finally {
+            jpeg.delete();
+        }
+    }
+
+    @Test
+    public void testLetterboxing() {
+        BufferedImage image = gradient();
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, 400, 40);
+        g.fillRect(0, 260, 400, 40);
+        g.dispose();
+        assertTrue(HalfCorruptionDetector.score(image, true) < HalfCorruptionDetector.DEFAULT_THRESHOLD);
+    }
+
+    @Test
+    public void testNoise() {
+        BufferedImage image = gradient();
+        Random random = new Random(1);
+        for (int y = 150; y < 300; y++) {
+            for (int x = 0; x < 400; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        assertTrue(HalfCorruptionDetector.score(image, false) > 0.4);
+    }
+
+    @Test
+    public void testTexturedPhoto() throws IOException {
+        // A real photo with every 4th pixel kept, which packs its detail together like a heavily textured photo
+        File photo = new File(getClass().getClassLoader().getResource("test_images/original").getFile(), "good (3).JPG");
+        BufferedImage textured;
+        try (ImageInputStream in = ImageIO.createImageInputStream(photo)) {
+            ImageReader reader = ImageIO.getImageReaders(in).next();
+            reader.setInput(in);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(4, 4, 0, 0);
+            textured = reader.read(0, param);
+            reader.dispose();
+        }
+        // Some of its bands look like noise, but not at the bottom, so an intact file isn't flagged
+        assertTrue(HalfCorruptionDetector.score(textured, true) >= HalfCorruptionDetector.DEFAULT_THRESHOLD);
+        assertTrue(HalfCorruptionDetector.score(textured, false) < HalfCorruptionDetector.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @return A smooth, photo-like image with no flat rows
+     */
+    private static BufferedImage gradient() {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 400; x++) {
+                int v = (int) (128 + 60 * Math.sin(x / 30.0) * Math.cos(y / 45.0));
+                image.setRGB(x, y, (v << 16) | ((v / 2) << 8) | (255 - v));
+            }
+        }
+        return image;
+    }
+}
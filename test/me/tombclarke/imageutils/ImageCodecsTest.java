@@ -0,0 +1,81 @@
+package me.tombclarke.imageutils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests format detection and reader reuse
+ *
+ * @author Tom Clarke
+ */
+public class ImageCodecsTest {
+
+    private File testFolder = null;
+
+    @Before
+    public void init() throws IOException {
+        testFolder = ImageUtilsTest.setupTestDir(this);
+    }
+
+    @After
+    public void clean() {
+        ImageUtilsTest.clean(testFolder);
+    }
+
+    @Test
+    public void testSniffIgnoresFileName() throws IOException {
+        File misnamed = new File(testFolder, "really a png.jpg");
+        ImageIO.write(new BufferedImage(32, 24, BufferedImage.TYPE_INT_RGB), "png", misnamed);
+        File nonsense = new File(testFolder, "nonsense.png");
+        Files.write(nonsense.toPath(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+        try (ImageInputStream in = ImageCodecs.open(misnamed)) {
+            assertEquals(ImageCodecs.Format.PNG, ImageCodecs.sniff(in));
+            // Sniffing leaves the stream at the start
+            assertEquals(0, in.getStreamPosition());
+        }
+        try (ImageInputStream in = ImageCodecs.open(new File(testFolder, "good (1).JPG"))) {
+            assertEquals(ImageCodecs.Format.JPEG, ImageCodecs.sniff(in));
+        }
+        try (ImageInputStream in = ImageCodecs.open(nonsense)) {
+            assertNull(ImageCodecs.sniff(in));
+        }
+        assertEquals(32, ImageCodecs.read(misnamed).getWidth());
+        assertNull(ImageCodecs.read(nonsense));
+    }
+
+    @Test
+    public void testReadersAreReused() throws IOException {
+        File good = new File(testFolder, "good (1).JPG");
+        try (ImageInputStream first = ImageCodecs.open(good); ImageInputStream second = ImageCodecs.open(good)) {
+            ImageReader reader = ImageCodecs.getReader(first);
+            // Still in use, so a nested read gets its own
+            ImageReader nested = ImageCodecs.getReader(second);
+            assertNotSame(reader, nested);
+            ImageCodecs.release(nested);
+            ImageCodecs.release(reader);
+        }
+        try (ImageInputStream in = ImageCodecs.open(good)) {
+            ImageReader reader = ImageCodecs.getReader(in);
+            try (ImageInputStream again = ImageCodecs.open(good)) {
+                ImageCodecs.release(reader);
+                assertSame(reader, ImageCodecs.getReader(again));
+                ImageCodecs.release(reader);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package me.tombclarke.imageutils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the programmatic pipeline
+ *
+ * @author Tom Clarke
+ */
+public class ImagePipelineTest {
+
+    private File testFolder = null;
+    private File outputFolder = null;
+
+    @Before
+    public void init() throws IOException {
+        testFolder = ImageUtilsTest.setupTestDir(this);
+        outputFolder = new File(testFolder.getParentFile(), "pipeline-out");
+
+        // Clear out all but 2 files
+        for (File i : testFolder.listFiles()) {
+            if (!(i.getName().contains("good (1)") || i.getName().contains("good (2)"))) {
+                i.delete();
+            }
+        }
+    }
+
+    @After
+    public void clean() {
+        ImageUtilsTest.clean(testFolder);
+        ImageUtilsTest.clean(outputFolder);
+    }
+
+    @Test
+    public void testResizeToOutputFolder() throws IOException {
+        List<ImagePipeline.Result> results = new ArrayList<>();
+        int failed = ImagePipeline.from(testFolder.toPath())
+                .validate(ScanMode.DEEP)
+                .resize(400, 300)
+                .write(outputFolder.toPath())
+                .run(results::add);
+
+        assertEquals(0, failed);
+        assertEquals(2, results.size());
+        for (ImagePipeline.Result r : results) {
+            assertTrue(r.isSuccess());
+            assertTrue(r.getWidth() <= 400 && r.getHeight() <= 300);
+            BufferedImage image = ImageIO.read(r.getOutput().toFile());
+            assertEquals(r.getWidth(), image.getWidth());
+            assertEquals(r.getHeight(), image.getHeight());
+            // The originals are left alone
+            assertTrue(ImageIO.read(r.getPath().toFile()).getWidth() > 400);
+        }
+    }
+
+    @Test
+    public void testFailuresAreReportedInOrderOnExecutor() throws IOException {
+        File broken = new File(testFolder, "broken.jpg");
+        Files.write(broken.toPath(), new byte[]{(byte) 0xFF, (byte) 0xD8, 0x00});
+        List<Path> images = new ArrayList<>();
+        images.add(testFolder.toPath().resolve("good (1).JPG"));
+        images.add(broken.toPath());
+        images.add(testFolder.toPath().resolve("good (2).JPG"));
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try (Stream<ImagePipeline.Result> results = ImagePipeline.from(images)
+                .validate(ScanMode.FULL)
+                .executor(pool, 2)
+                .stream()) {
+            List<ImagePipeline.Result> list = results.collect(Collectors.toList());
+            assertEquals(images, list.stream().map(ImagePipeline.Result::getPath).collect(Collectors.toList()));
+            assertTrue(list.get(0).isSuccess());
+            assertFalse(list.get(1).isSuccess());
+            assertNotNull(list.get(1).getFailure());
+            assertTrue(list.get(2).isSuccess());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testNothingRunsUntilAsked() throws IOException {
+        long before = new File(testFolder, "good (1).JPG").lastModified();
+        ImagePipeline pipeline = ImagePipeline.from(testFolder.toPath())
+                .filter(p -> p.getFileName().toString().contains("good (1)"))
+                .resize(100, 100)
+                .write();
+        assertEquals(before, new File(testFolder, "good (1).JPG").lastModified());
+
+        List<ImagePipeline.Result> results = new ArrayList<>();
+        pipeline.run(results::add);
+        assertEquals(1, results.size());
+        assertNull(results.get(0).getFailure());
+        assertTrue(ImageIO.read(new File(testFolder, "good (1).JPG")).getWidth() <= 100);
+        assertTrue(ImageIO.read(new File(testFolder, "good (2).JPG")).getWidth() > 100);
+    }
+}
@@ -0,0 +1,77 @@
+package me.tombclarke.imageutils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the structural image checks
+ *
+ * @author Tom Clarke
+ */
+public class ImageStructureCheckerTest {
+
+    private File testFolder = null;
+
+    @Before
+    public void init() throws IOException {
+        testFolder = ImageUtilsTest.setupTestDir(this);
+    }
+
+    @After
+    public void clean() {
+        ImageUtilsTest.clean(testFolder);
+    }
+
+    @Test
+    public void testJpegs() {
+        for (File f : testFolder.listFiles()) {
+            ImageStructureChecker.Result expected = f.getName().startsWith("good")
+                    ? ImageStructureChecker.Result.VALID
+                    : ImageStructureChecker.Result.CORRUPT;
+            assertEquals(expected, ImageStructureChecker.check(f));
+        }
+    }
+
+    @Test
+    public void testTruncatedJpeg() throws IOException {
+        File f = new File(testFolder, "good (3).JPG");
+        byte[] data = Files.readAllBytes(f.toPath());
+        Files.write(f.toPath(), Arrays.copyOf(data, data.length / 2));
+        assertEquals(ImageStructureChecker.Result.CORRUPT, ImageStructureChecker.check(f));
+    }
+
+    @Test
+    public void testPngs() throws IOException {
+        File f = new File(testFolder, "test.png");
+        ImageIO.write(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB), "png", f);
+        assertEquals(ImageStructureChecker.Result.VALID, ImageStructureChecker.check(f));
+
+        // Flip a bit in the pixel data, which should break the IDAT CRC
+        byte[] data = Files.readAllBytes(f.toPath());
+        data[data.length - 20] ^= 1;
+        Files.write(f.toPath(), data);
+        assertEquals(ImageStructureChecker.Result.CORRUPT, ImageStructureChecker.check(f));
+
+        // Missing IEND
+        data[data.length - 20] ^= 1;
+        Files.write(f.toPath(), Arrays.copyOf(data, data.length - 12));
+        assertEquals(ImageStructureChecker.Result.CORRUPT, ImageStructureChecker.check(f));
+    }
+
+    @Test
+    public void testUnknownFormat() throws IOException {
+        File f = new File(testFolder, "test.jpg");
+        ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "bmp", f);
+        assertEquals(ImageStructureChecker.Result.UNKNOWN_FORMAT, ImageStructureChecker.check(f));
+    }
+}
@@ -5,8 +5,12 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 
@@ -62,4 +66,40 @@ public class ImageUtilsTest {
         assertEquals(9, images.size());
     }
 
+    @Test
+    public void testStreamImages() throws IOException {
+        File testFolder = setupTestDir(this);
+        File nested = new File(testFolder, "nested");
+        try {
+            // A nested folder, plus a link back up to make a loop
+            nested.mkdir();
+            Files.copy(new File(testFolder, "good (1).JPG").toPath(), new File(nested, "copy.jpg").toPath());
+            Files.createSymbolicLink(new File(nested, "loop").toPath(), testFolder.toPath());
+
+            List<Path> images;
+            try (Stream<Path> s = ImageUtils.streamImages(testFolder.toPath())) {
+                images = s.collect(Collectors.toList());
+            }
+            assertEquals(10, images.size());
+
+            try (Stream<Path> s = ImageUtils.streamImages(testFolder.toPath(), 1, true)) {
+                assertEquals(9, s.count());
+            }
+
+            try (Stream<Path> s = ImageUtils.streamImagesInParallel(testFolder.toPath(), Integer.MAX_VALUE, true, 4)) {
+                assertEquals(new HashSet<>(images), s.collect(Collectors.toSet()));
+            }
+        } finally {
+            clean(nested);
+            clean(testFolder);
+        }
+    }
+
+    @Test
+    public void testGetSubsampling() {
+        // Keeps at least twice the target size
+        assertEquals(3, ImageUtils.getSubsampling(6000, 4000, 800, 600));
+        assertEquals(1, ImageUtils.getSubsampling(1000, 1000, 800, 600));
+        assertEquals(1, ImageUtils.getSubsampling(800, 600, 1600, 1200));
+    }
 }
@@ -0,0 +1,51 @@
+package me.tombclarke.imageutils;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the memory budget
+ *
+ * @author Tom Clarke
+ */
+public class MemoryBudgetTest {
+
+    @Test
+    public void testOversizeRunsAlone() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100);
+        // Bigger than the whole budget, so it takes all of it
+        assertEquals(100, budget.acquire(1000));
+        assertEquals(0, budget.getAvailable());
+        budget.release(100);
+        assertEquals(100, budget.getAvailable());
+    }
+
+    @Test
+    public void testWaitsForRelease() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(100);
+        long held = budget.acquire(60);
+
+        AtomicLong acquired = new AtomicLong(-1);
+        Thread waiter = new Thread(() -> {
+            try {
+                acquired.set(budget.acquire(60));
+            } catch (InterruptedException e) {
+                // Test fails below
+            }
+        });
+        waiter.start();
+        waiter.join(200);
+        // Doesn't fit until the first is given back
+        assertTrue(waiter.isAlive());
+        assertEquals(-1, acquired.get());
+
+        budget.release(held);
+        waiter.join(5000);
+        assertEquals(60, acquired.get());
+        assertEquals(40, budget.getAvailable());
+    }
+}
@@ -0,0 +1,59 @@
+package me.tombclarke.imageutils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests reusing image buffers
+ *
+ * @author Tom Clarke
+ */
+public class PixelBufferPoolTest {
+
+    @Test
+    public void testReusesSameShape() {
+        PixelBufferPool buffers = new PixelBufferPool(1024 * 1024);
+        BufferedImage image = buffers.takeImage(40, 30, BufferedImage.TYPE_3BYTE_BGR, false);
+        image.setRGB(5, 5, 0xFFFFFFFF);
+        buffers.give(image);
+        assertEquals(40 * 30 * 3, buffers.getHeld());
+
+        // A different shape or type gets its own
+        assertNotSame(image, buffers.takeImage(30, 40, BufferedImage.TYPE_3BYTE_BGR, false));
+        assertNotSame(image, buffers.takeImage(40, 30, BufferedImage.TYPE_INT_RGB, false));
+
+        // The same shape gets it back, cleared if asked
+        BufferedImage reused = buffers.takeImage(40, 30, BufferedImage.TYPE_3BYTE_BGR, true);
+        assertSame(image, reused);
+        assertEquals(0xFF000000, reused.getRGB(5, 5));
+        assertEquals(0, buffers.getHeld());
+        assertEquals(1, buffers.getReused());
+        assertEquals(3, buffers.getAllocated());
+    }
+
+    @Test
+    public void testDropsLeastRecentlyUsed() {
+        // Room for one 100x100 grey image and one half that size
+        PixelBufferPool buffers = new PixelBufferPool(15000);
+        BufferedImage first = new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_GRAY);
+        BufferedImage second = new BufferedImage(100, 50, BufferedImage.TYPE_BYTE_GRAY);
+        BufferedImage third = new BufferedImage(50, 100, BufferedImage.TYPE_BYTE_GRAY);
+        buffers.give(first);
+        buffers.give(second);
+        buffers.give(third);
+        assertEquals(10000, buffers.getHeld());
+        assertNotSame(first, buffers.takeImage(100, 100, BufferedImage.TYPE_BYTE_GRAY, false));
+        assertSame(second, buffers.takeImage(100, 50, BufferedImage.TYPE_BYTE_GRAY, false));
+
+        // Too big to keep at all, and layouts that need more than their type to describe them aren't kept
+        buffers.give(new BufferedImage(200, 200, BufferedImage.TYPE_BYTE_GRAY));
+        buffers.give(new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_INDEXED));
+        buffers.give(first.getSubimage(0, 0, 10, 10));
+        assertEquals(5000, buffers.getHeld());
+    }
+}
@@ -0,0 +1,125 @@
+package me.tombclarke.imageutils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests resizing with each filter and pixel layout
+ *
+ * @author Tom Clarke
+ */
+public class ResizerTest {
+
+    private static final int[] TYPES = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB};
+
+    @Test
+    public void testKeepsTypeAndSize() {
+        for (int type : TYPES) {
+            for (ResizeFilter filter : ResizeFilter.values()) {
+                BufferedImage resized = Resizer.resize(checkerboard(type, 300, 200), 120, 70, filter);
+                assertEquals(type, resized.getType());
+                assertEquals(120, resized.getWidth());
+                assertEquals(70, resized.getHeight());
+            }
+        }
+    }
+
+    @Test
+    public void testAveragesWhenShrinking() {
+        // Skipping pixels would give pure black or white, filtering gives grey
+        for (int type : TYPES) {
+            for (ResizeFilter filter : ResizeFilter.values()) {
+                BufferedImage resized = Resizer.resize(checkerboard(type, 400, 400), 100, 100, filter);
+                for (int y = 0; y < 100; y += 7) {
+                    for (int x = 0; x < 100; x += 7) {
+                        // Read the raw sample, as getRGB would gamma correct grey images
+                        int grey = resized.getRaster().getSample(x, y, 0);
+                        assertTrue(filter + " gave " + grey, Math.abs(grey - 128) <= 2);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFlatColourUnchanged() {
+        BufferedImage image = new BufferedImage(97, 61, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0x80336699);
+            }
+        }
+        for (ResizeFilter filter : ResizeFilter.values()) {
+            // Up and down, both ways at once
+            BufferedImage resized = Resizer.resize(image, 250, 20, filter);
+            assertEquals(0x80336699, resized.getRGB(0, 0));
+            assertEquals(0x80336699, resized.getRGB(249, 19));
+            assertEquals(0x80336699, resized.getRGB(125, 10));
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        BufferedImage image = checkerboard(BufferedImage.TYPE_3BYTE_BGR, 1000, 700);
+        BufferedImage sequential = Resizer.resize(image, 333, 222, ResizeFilter.LANCZOS3, new ForkJoinPool(1));
+        BufferedImage parallel = Resizer.resize(image, 333, 222, ResizeFilter.LANCZOS3, new ForkJoinPool(4));
+        for (int y = 0; y < 222; y++) {
+            for (int x = 0; x < 333; x++) {
+                assertEquals(sequential.getRGB(x, y), parallel.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testPooledMatchesAllocated() {
+        for (int type : TYPES) {
+            PixelBufferPool buffers = new PixelBufferPool(64 * 1024 * 1024);
+            BufferedImage allocated = Resizer.resize(checkerboard(type, 300, 200), 120, 70, ResizeFilter.LANCZOS3);
+            // The second resize gets the first's buffers back, still holding its pixels
+            for (int i = 0; i < 2; i++) {
+                BufferedImage image = checkerboard(type, 300, 200);
+                BufferedImage pooled = Resizer.resize(image, 120, 70, ResizeFilter.LANCZOS3, ForkJoinPool.commonPool(), buffers);
+                for (int y = 0; y < 70; y++) {
+                    for (int x = 0; x < 120; x++) {
+                        assertEquals(allocated.getRGB(x, y), pooled.getRGB(x, y));
+                    }
+                }
+                buffers.give(pooled);
+            }
+            // The image and the intermediate
+            assertEquals(2, buffers.getReused());
+        }
+    }
+
+    @Test
+    public void testConvertsToSmallestLayout() {
+        // Layouts the passes can't read get the smallest one that holds them, not always 4 bytes a pixel
+        BufferedImage grey = new BufferedImage(64, 48, BufferedImage.TYPE_USHORT_GRAY);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, Resizer.resize(grey, 32, 24, ResizeFilter.BOX).getType());
+        BufferedImage indexed = new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_INDEXED);
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, Resizer.resize(indexed, 32, 24, ResizeFilter.BOX).getType());
+        BufferedImage premultiplied = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB_PRE);
+        assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, Resizer.resize(premultiplied, 32, 24, ResizeFilter.BOX).getType());
+        BufferedImage packed = new BufferedImage(64, 48, BufferedImage.TYPE_USHORT_565_RGB);
+        assertEquals(BufferedImage.TYPE_3BYTE_BGR, Resizer.resize(packed, 32, 24, ResizeFilter.BOX).getType());
+    }
+
+    /**
+     * @return An image of alternating black and white pixels
+     */
+    private static BufferedImage checkerboard(int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x + y) % 2 == 0 ? 0xFF000000 : 0xFFFFFFFF);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,78 @@
+package me.tombclarke.imageutils;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the run metrics and their latency histograms
+ *
+ * @author Tom Clarke
+ */
+public class RunMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        assertEquals(500_500, histogram.getMeanNanos(), 1);
+        // Buckets are a quarter of a power of two wide, so estimates are at most 25% high
+        long p50 = histogram.getPercentileNanos(50);
+        assertTrue(p50 >= 500_000 && p50 <= 625_000);
+        long p99 = histogram.getPercentileNanos(99);
+        assertTrue(p99 >= 990_000 && p99 <= 1_000_000);
+        assertEquals(0, new LatencyHistogram().getPercentileNanos(50));
+    }
+
+    @Test
+    public void testCounts() {
+        RunMetrics metrics = new RunMetrics("RunMetricsTest");
+        metrics.fileStarted();
+        metrics.fileStarted();
+        metrics.fileFinished(false);
+        metrics.fileFinished(true);
+        metrics.addBytesRead(100);
+        metrics.record(RunMetrics.Stage.DECODE, System.nanoTime());
+        metrics.finish();
+
+        assertEquals(2, metrics.getFilesProcessed());
+        assertEquals(1, metrics.getFilesFailed());
+        assertEquals(0, metrics.getInFlight());
+        assertEquals(2, metrics.getPeakInFlight());
+        assertEquals(100, metrics.getBytesRead());
+        assertEquals(1, metrics.getStageCount(RunMetrics.Stage.DECODE));
+        assertEquals(1, metrics.getStageSummaries().length);
+        assertTrue(metrics.getHeapHighWaterBytes() > 0);
+
+        String json = metrics.getSummaryJson();
+        assertTrue(json.contains("\"filesProcessed\": 2,"));
+        assertTrue(json.contains("\"decode\": {\"count\": 1,"));
+        assertTrue(json.contains("\"resize\": {\"count\": 0,"));
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        RunMetrics metrics = new RunMetrics("RunMetricsTest");
+        metrics.register();
+        ObjectName name = metrics.getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            metrics.addBytesWritten(42);
+            assertEquals(42L, server.getAttribute(name, "BytesWritten"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,135 @@
+package me.tombclarke.imageutils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests splitting work between processes through a shared folder
+ *
+ * @author Tom Clarke
+ */
+public class ShardQueueTest {
+
+    private File testFolder = null;
+    private File queueFolder = null;
+
+    @Before
+    public void init() throws IOException {
+        testFolder = ImageUtilsTest.setupTestDir(this);
+        queueFolder = new File(testFolder.getParentFile(), "queue");
+    }
+
+    @After
+    public void clean() {
+        ImageUtilsTest.clean(testFolder);
+        for (String sub : new String[]{"shards", "leases", "results"}) {
+            ImageUtilsTest.clean(new File(queueFolder, sub));
+        }
+        ImageUtilsTest.clean(queueFolder);
+    }
+
+    @Test
+    public void testWorkerProcessesShareTheImages() throws Exception {
+        BatchBadImageRemover local = new BatchBadImageRemover(testFolder);
+        local.setScanMode(ScanMode.FAST);
+        local.findCorruptImages();
+
+        BatchBadImageRemover coordinator = new BatchBadImageRemover(testFolder);
+        coordinator.setScanMode(ScanMode.FAST);
+        // One image a shard, so both workers get some
+        Thread coordinating = new Thread(() -> {
+            try {
+                coordinator.coordinate(queueFolder, 1, false);
+            } catch (IOException | ImageException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        coordinating.start();
+        // Workers need the queue to be there before they start
+        while (!new File(queueFolder, "queue").exists()) {
+            Thread.sleep(10);
+        }
+
+        List<Process> workers = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            workers.add(new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-cp", System.getProperty("java.class.path"), BatchBadImageRemover.class.getName(),
+                    "-f", testFolder.getPath(), "-worker", queueFolder.getPath(), "-fast")
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start());
+        }
+        for (Process worker : workers) {
+            assertTrue(worker.waitFor(60, TimeUnit.SECONDS));
+            assertEquals(0, worker.exitValue());
+        }
+        coordinating.join(10000);
+        assertFalse(coordinating.isAlive());
+
+        assertEquals(local.getCorruptImages(), coordinator.getCorruptImages());
+        assertFalse(coordinator.getCorruptImages().isEmpty());
+    }
+
+    @Test
+    public void testExpiredLeasesAreTakenOver() throws IOException, ImageException {
+        List<File> images = Arrays.asList(new File(testFolder, "good (1).JPG"), new File(testFolder, "good (2).JPG"));
+        try (ShardQueue queue = ShardQueue.create(queueFolder, "task", images, 1)) {
+            queue.setLeaseMillis(1000);
+
+            // A worker that died holding the first shard a while ago, and one still working on the second
+            File dead = new File(queueFolder, "leases/000000.1");
+            Files.write(dead.toPath(), "dead".getBytes());
+            Files.setLastModifiedTime(dead.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 5000));
+            File live = new File(queueFolder, "leases/000001.1");
+            Files.write(live.toPath(), "live".getBytes());
+
+            ShardQueue.Shard shard = queue.claim();
+            assertNotNull(shard);
+            assertEquals(0, shard.getIndex());
+            assertEquals(Collections.singletonList(images.get(0).getAbsoluteFile()), shard.getImages());
+            assertFalse(dead.exists());
+            assertTrue(new File(queueFolder, "leases/000000.2").exists());
+            // Nothing else is free
+            assertNull(queue.claim());
+            assertFalse(shard.isLost());
+
+            // The second shard's worker can tell once its lease has been taken over
+            try (ShardQueue.Shard stalled = queue.new Shard(1, live.toPath(), images.subList(1, 2))) {
+                assertFalse(stalled.isLost());
+                Files.delete(live.toPath());
+                assertTrue(stalled.isLost());
+            }
+
+            shard.complete(Collections.singletonMap("failed", shard.getImages()));
+            shard.close();
+            assertFalse(queue.isFinished());
+            assertEquals(Collections.singletonList(images.get(0).getAbsoluteFile()), queue.getResults().get("failed"));
+        }
+
+        // A worker for other work can't join in
+        try {
+            ShardQueue.open(queueFolder, "other task");
+            fail();
+        } catch (ImageException e) {
+            // Expected
+        }
+    }
+}